@@ -0,0 +1,233 @@
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct ByteBuffers in power-of-two size classes, shared by the NIO
+ * servers so read and write paths do not allocate per event.
+ * Each thread keeps a small cache per size class in front of a shared
+ * free list; buffers larger than the biggest class are allocated unpooled.
+ * In debug mode every lease is tracked, and a buffer that is garbage
+ * collected without being released is reported with the stack trace of the
+ * code that leased it.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 9;   // 512 B
+    private static final int MAX_SHIFT = 20;  // 1 MB
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int LOCAL_CACHE_SIZE = 16;
+
+    private static final BufferPool SHARED = new BufferPool(
+            64L * 1024 * 1024, Boolean.getBoolean("bufferpool.debug"));
+
+    /** The process-wide pool */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    private final long maxPooledBytes;
+    private final boolean debug;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Queue<ByteBuffer>[] global = new Queue[CLASSES];
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> local;
+
+    private final AtomicLong pooledBytes = new AtomicLong();   // free bytes held by the global lists
+    private final AtomicLong reservedBytes = new AtomicLong(); // every direct byte the pool allocated and still owns
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    // debug mode: identityHashCode -> records of leased buffers with that hash
+    private final ConcurrentHashMap<Integer, List<LeaseRecord>> live = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    /** A leased buffer, remembered with where it was leased from */
+    private static final class LeaseRecord extends PhantomReference<ByteBuffer> {
+        final int hash;
+        final int capacity;
+        final Throwable site;
+
+        LeaseRecord(ByteBuffer buf, ReferenceQueue<ByteBuffer> queue) {
+            super(buf, queue);
+            this.hash = System.identityHashCode(buf);
+            this.capacity = buf.capacity();
+            this.site = new Throwable("Buffer of " + buf.capacity() + " bytes leased here");
+        }
+    }
+
+    /** Point-in-time counters, see {@link #stats()} */
+    public static final class Stats {
+        public final long outstanding;
+        public final long leases;
+        public final long hits;
+        public final long misses;
+        public final long leaks;
+        public final long bytesReserved;
+        public final long bytesPooled;
+
+        Stats(long outstanding, long leases, long hits, long misses,
+              long leaks, long bytesReserved, long bytesPooled) {
+            this.outstanding = outstanding;
+            this.leases = leases;
+            this.hits = hits;
+            this.misses = misses;
+            this.leaks = leaks;
+            this.bytesReserved = bytesReserved;
+            this.bytesPooled = bytesPooled;
+        }
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("outstanding=%d leases=%d hitRate=%.3f reserved=%d pooled=%d leaks=%d",
+                    outstanding, leases, hitRate(), bytesReserved, bytesPooled, leaks);
+        }
+    }
+
+    /**
+     * @param maxPooledBytes upper bound on free bytes kept in the shared lists
+     * @param debug track every lease and report leaked buffers
+     */
+    public BufferPool(long maxPooledBytes, boolean debug) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.debug = debug;
+        for (int i = 0; i < CLASSES; i++) global[i] = new ConcurrentLinkedQueue<>();
+        this.local = ThreadLocal.withInitial(() -> {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++) caches[i] = new ArrayDeque<>(LOCAL_CACHE_SIZE);
+            return caches;
+        });
+    }
+
+    /**
+     * Leases a cleared direct buffer with at least {@code minCapacity} bytes.
+     * The buffer must be handed back with {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer lease(int minCapacity) {
+        leases.increment();
+        if (debug) pollLeaks();
+        int cls = sizeClass(minCapacity);
+        ByteBuffer buf;
+        if (cls < 0) {
+            misses.increment();
+            buf = ByteBuffer.allocateDirect(minCapacity);
+        } else {
+            buf = local.get()[cls].pollFirst();
+            if (buf == null) {
+                buf = global[cls].poll();
+                if (buf != null) pooledBytes.addAndGet(-buf.capacity());
+            }
+            if (buf != null) {
+                hits.increment();
+                buf.clear();
+            } else {
+                misses.increment();
+                buf = ByteBuffer.allocateDirect(1 << (cls + MIN_SHIFT));
+                reservedBytes.addAndGet(buf.capacity());
+            }
+        }
+        if (debug) track(buf);
+        return buf;
+    }
+
+    /** Returns a leased buffer; it must not be used by the caller afterwards */
+    public void release(ByteBuffer buf) {
+        if (buf == null) return;
+        releases.increment();
+        if (debug && !untrack(buf)) {
+            System.err.println("BufferPool: release of a buffer that is not leased (double release?)");
+            return;
+        }
+        int cls = buf.isDirect() ? exactClass(buf.capacity()) : -1;
+        if (cls < 0) return; // unpooled size, let the GC free it
+
+        ArrayDeque<ByteBuffer> cache = local.get()[cls];
+        if (cache.size() < LOCAL_CACHE_SIZE) {
+            cache.addFirst(buf);
+        } else if (pooledBytes.addAndGet(buf.capacity()) <= maxPooledBytes) {
+            global[cls].offer(buf);
+        } else {
+            pooledBytes.addAndGet(-buf.capacity());
+            reservedBytes.addAndGet(-buf.capacity());
+        }
+    }
+
+    public Stats stats() {
+        if (debug) pollLeaks();
+        long l = leases.sum();
+        return new Stats(l - releases.sum(), l, hits.sum(), misses.sum(),
+                leaks.sum(), reservedBytes.get(), pooledBytes.get());
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity > 1 << MAX_SHIFT) return -1;
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+        return shift - MIN_SHIFT;
+    }
+
+    private static int exactClass(int capacity) {
+        if (Integer.bitCount(capacity) != 1) return -1;
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        return (shift < MIN_SHIFT || shift > MAX_SHIFT) ? -1 : shift - MIN_SHIFT;
+    }
+
+    private void track(ByteBuffer buf) {
+        LeaseRecord record = new LeaseRecord(buf, collected);
+        live.compute(record.hash, (h, list) -> {
+            if (list == null) list = new ArrayList<>();
+            list.add(record);
+            return list;
+        });
+    }
+
+    private boolean untrack(ByteBuffer buf) {
+        boolean[] found = {false};
+        live.computeIfPresent(System.identityHashCode(buf), (h, list) -> {
+            for (int i = 0; i < list.size(); i++) {
+                LeaseRecord r = list.get(i);
+                if (r.refersTo(buf)) {
+                    r.clear();
+                    list.remove(i);
+                    found[0] = true;
+                    break;
+                }
+            }
+            return list.isEmpty() ? null : list;
+        });
+        return found[0];
+    }
+
+    /** Reports every leased buffer that was collected without being released */
+    private void pollLeaks() {
+        Reference<? extends ByteBuffer> ref;
+        while ((ref = collected.poll()) != null) {
+            LeaseRecord record = (LeaseRecord) ref;
+            live.computeIfPresent(record.hash, (h, list) -> {
+                list.remove(record);
+                return list.isEmpty() ? null : list;
+            });
+            leaks.increment();
+            if (exactClass(record.capacity) >= 0) reservedBytes.addAndGet(-record.capacity);
+            System.err.println("BufferPool LEAK: buffer was garbage collected without release()");
+            record.site.printStackTrace();
+        }
+    }
+}
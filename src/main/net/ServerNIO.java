@@ -2,68 +2,418 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ServerNIO {
     private final int port;
     private final ReadHandler handler;
+    private final WriteHandler writeHandler;
+    private final ConnectHandler connectHandler;
+    private final ErrorHandler errorHandler;
+    private final int loopCount;
+    private final Balancer balancer;
+
+    private volatile boolean running = true;
+    private volatile ServerSocketChannel serverChannel;
+    private final CountDownLatch bound = new CountDownLatch(1);
+    private final List<SelectorLoop> loops = new ArrayList<>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    // every loop drives its own timing wheel; 512 slots of 100 ms span 51.2 s
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_SLOTS = 512;
+    private static final ThreadLocal<TimingWheel> LOOP_TIMERS = new ThreadLocal<>();
+
+    // how long the acceptor waits after running out of file descriptors, so
+    // closing connections can free some before the next accept
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
 
     @FunctionalInterface
     public interface ReadHandler {
         void handle(SelectionKey key) throws IOException;
     }
 
+    /** Called when a key registered for OP_WRITE becomes writable */
+    @FunctionalInterface
+    public interface WriteHandler {
+        void handle(SelectionKey key) throws IOException;
+    }
+
+    /** Called on the owning loop's thread once an accepted channel is registered for OP_READ */
+    @FunctionalInterface
+    public interface ConnectHandler {
+        void handle(SelectionKey key) throws IOException;
+    }
+
+    /**
+     * Called on the owning loop's thread when a handler throws. It owns the
+     * connection from then on and must close it, releasing whatever is attached.
+     */
+    @FunctionalInterface
+    public interface ErrorHandler {
+        void handle(SelectionKey key, Exception error);
+    }
+
+    /** How the acceptor picks the selector loop for a new connection */
+    public enum Balancer {
+        ROUND_ROBIN,
+        LEAST_LOADED
+    }
+
     public ServerNIO(int port, ReadHandler handler) {
+        this(port, handler, 0, Balancer.ROUND_ROBIN);
+    }
+
+    /**
+     * Creates a multi-reactor server: one acceptor thread plus {@code loops}
+     * selector threads, each running its own Selector.
+     * @param port the port to listen on (0 picks a free port)
+     * @param handler called on the owning loop's thread when a key is readable
+     * @param loops number of selector loops, 0 keeps the single-selector mode
+     * @param balancer how accepted channels are spread over the loops
+     */
+    public ServerNIO(int port, ReadHandler handler, int loops, Balancer balancer) {
+        this(port, handler, null, loops, balancer);
+    }
+
+    /**
+     * Same as the multi-reactor constructor, with a handler for OP_WRITE
+     * readiness so the caller can drain its own outbound queues.
+     * @param writeHandler called when a key is writable, may be null
+     */
+    public ServerNIO(int port, ReadHandler handler, WriteHandler writeHandler,
+                     int loops, Balancer balancer) {
+        this(port, handler, writeHandler, null, loops, balancer);
+    }
+
+    /**
+     * Same as above, with a handler that sees every new connection before its
+     * first read, e.g. to attach state or arm a timeout on {@link #timers()}.
+     * @param connectHandler called when a connection is registered, may be null
+     */
+    public ServerNIO(int port, ReadHandler handler, WriteHandler writeHandler,
+                     ConnectHandler connectHandler, int loops, Balancer balancer) {
+        this(port, handler, writeHandler, connectHandler, null, loops, balancer);
+    }
+
+    /**
+     * Same as above, with a handler that takes over a connection whose
+     * handler threw, so the caller's cleanup runs instead of a bare close.
+     * @param errorHandler called when a handler throws, may be null to just close the channel
+     */
+    public ServerNIO(int port, ReadHandler handler, WriteHandler writeHandler,
+                     ConnectHandler connectHandler, ErrorHandler errorHandler, int loops, Balancer balancer) {
         this.port = port;
         this.handler = handler;
+        this.writeHandler = writeHandler;
+        this.connectHandler = connectHandler;
+        this.errorHandler = errorHandler;
+        this.loopCount = loops;
+        this.balancer = balancer;
     }
 
     public ServerNIO() {
-        this.port = 3000;
-        this.handler = this::defaultEcho;
+        this(3000, null, 0, Balancer.ROUND_ROBIN);
+    }
+
+    /**
+     * The timing wheel of the selector loop running on the calling thread,
+     * or null on any other thread. Its tasks run on that loop, between
+     * selects, so they may touch the loop's keys directly.
+     */
+    public static TimingWheel timers() {
+        return LOOP_TIMERS.get();
+    }
+
+    /** The monotonic clock, in milliseconds, the loops' timing wheels run on */
+    public static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /** Number of selector loops to use when one per core is wanted */
+    public static int defaultLoops() {
+        return Runtime.getRuntime().availableProcessors();
     }
 
     private void defaultEcho(SelectionKey key) throws IOException {
         SocketChannel client = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        int bytesRead = client.read(buffer);
-        System.out.println("Read bytes: " + bytesRead);
-        if (bytesRead == -1) {
-            client.close();
-            System.out.println("Client disconnected");
-            return;
+        ByteBuffer buffer = BufferPool.shared().lease(1024);
+        try {
+            int bytesRead = client.read(buffer);
+            System.out.println("Read bytes: " + bytesRead);
+            if (bytesRead == -1) {
+                client.close();
+                System.out.println("Client disconnected");
+                return;
+            }
+            buffer.flip();
+            client.write(buffer);
+        } finally {
+            BufferPool.shared().release(buffer);
         }
-        buffer.flip();
-        client.write(buffer);
+    }
+
+    private ReadHandler handler() {
+        return handler != null ? handler : this::defaultEcho;
     }
 
     public void start() {
+        if (loopCount > 0) {
+            startMultiReactor();
+            return;
+        }
+        ReadHandler handler = handler();
         try (Selector selector = Selector.open();
              ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
             serverChannel.bind(new InetSocketAddress(port));
             serverChannel.configureBlocking(false);
             serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            bound.countDown();
             System.out.println("NIO server started on port " + port);
-            while (true) {
-                selector.select();
+            TimingWheel timers = new TimingWheel(TIMER_TICK_MILLIS, TIMER_SLOTS, now());
+            LOOP_TIMERS.set(timers);
+            while (running) {
+                select(selector, timers);
                 Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
                 while (keys.hasNext()) {
                     SelectionKey key = keys.next();
                     keys.remove();
                     if (key.isAcceptable()) handleAccept(serverChannel, selector);
-                    if (key.isReadable())   handler.handle(key);
+                    if (key.isValid() && key.isWritable() && writeHandler != null) writeHandler.handle(key);
+                    if (key.isValid() && key.isReadable())   handler.handle(key);
+                }
+                timers.advance(now());
+            }
+        } catch (IOException e) {
+            if (running) System.err.println("Server error: " + e.getMessage());
+        } finally {
+            LOOP_TIMERS.remove();
+        }
+    }
+
+    // sleeps no longer than a tick while timeouts are pending
+    private static void select(Selector selector, TimingWheel timers) throws IOException {
+        if (timers.isEmpty()) selector.select();
+        else selector.select(timers.tickMillis());
+    }
+
+    /**
+     * Runs the acceptor on the calling thread and hands every accepted
+     * channel to one of the selector loops.
+     */
+    private void startMultiReactor() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(true);
+
+            for (int i = 0; i < loopCount; i++) {
+                SelectorLoop loop = new SelectorLoop(i, handler());
+                loops.add(loop);
+                Thread t = new Thread(loop, "nio-loop-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            bound.countDown();
+            System.out.println("NIO server started on port " + getPort()
+                    + " with " + loopCount + " selector loops (" + balancer + ")");
+
+            while (running) {
+                SocketChannel client = null;
+                try {
+                    client = serverChannel.accept();
+                    client.configureBlocking(false);
+                    pickLoop().assign(client);
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // one connection failed, e.g. reset before it was set up or no descriptor left for it
+                    acceptFailed(client, e);
                 }
             }
+        } catch (ClosedChannelException e) {
+            // stop() closed the listening socket
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            if (running) System.err.println("Server error: " + e.getMessage());
+        } finally {
+            for (SelectorLoop loop : loops) loop.shutdown();
         }
     }
 
+    private SelectorLoop pickLoop() {
+        if (balancer == Balancer.LEAST_LOADED) {
+            SelectorLoop best = loops.get(0);
+            for (SelectorLoop loop : loops)
+                if (loop.load() < best.load()) best = loop;
+            return best;
+        }
+        return loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
+    }
+
+    /**
+     * Blocks until the listening socket is bound and returns the local port.
+     * Useful when the server was created with port 0.
+     */
+    public int getPort() {
+        try {
+            bound.await();
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        } catch (InterruptedException | IOException e) {
+            return port;
+        }
+    }
+
+    /** Connections currently owned by the selector loops; 0 in single-selector mode */
+    public int connections() {
+        int n = 0;
+        for (SelectorLoop loop : loops) n += loop.load();
+        return n;
+    }
+
+    /** Stops accepting, closes every selector loop and the listening socket */
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+        for (SelectorLoop loop : loops) loop.shutdown();
+    }
+
     private void handleAccept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
-        SocketChannel client = serverChannel.accept();
-        client.configureBlocking(false);
-        client.register(selector, SelectionKey.OP_READ, new ByteArrayOutputStream());
-        System.out.println("Client connected: " + client.getRemoteAddress());
+        SocketChannel client = null;
+        try {
+            client = serverChannel.accept();
+            if (client == null) return;
+            client.configureBlocking(false);
+            SelectionKey key = client.register(selector, SelectionKey.OP_READ, new ByteArrayOutputStream());
+            System.out.println("Client connected: " + client.getRemoteAddress());
+            if (connectHandler != null) connectHandler.handle(key);
+        } catch (ClosedChannelException e) {
+            if (client == null) throw e; // the listening socket itself
+            acceptFailed(client, e);
+        } catch (IOException e) {
+            acceptFailed(client, e);
+        }
+    }
+
+    /**
+     * Drops a connection that could not be accepted and keeps the server
+     * running; backs off a little when the process is out of descriptors.
+     */
+    private void acceptFailed(SocketChannel client, IOException e) {
+        if (client != null) {
+            try { client.close(); } catch (IOException ignored) {}
+        }
+        if (!running) return;
+        System.err.println("Accept failed: " + e.getMessage());
+        String msg = e.getMessage();
+        if (msg != null && msg.contains("Too many open files")) {
+            try {
+                Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * One selector and the thread that drives it. Channels handed over by the
+     * acceptor are queued and registered from the loop thread itself, since
+     * registering from another thread would block on the selector.
+     */
+    private final class SelectorLoop implements Runnable {
+        private final int id;
+        private final ReadHandler handler;
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private volatile int registered;
+
+        SelectorLoop(int id, ReadHandler handler) throws IOException {
+            this.id = id;
+            this.handler = handler;
+            this.selector = Selector.open();
+        }
+
+        /** Connections owned by this loop, including ones not yet registered */
+        int load() {
+            return registered + pending.size();
+        }
+
+        void assign(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            TimingWheel timers = new TimingWheel(TIMER_TICK_MILLIS, TIMER_SLOTS, now());
+            LOOP_TIMERS.set(timers);
+            try (Selector selector = this.selector) {
+                while (running) {
+                    select(selector, timers);
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+                        try {
+                            if (key.isWritable() && writeHandler != null) writeHandler.handle(key);
+                            if (key.isValid() && key.isReadable()) handler.handle(key);
+                        } catch (IOException | RuntimeException e) {
+                            fail(key, e);
+                        }
+                    }
+                    timers.advance(now());
+                    registered = selector.keys().size();
+                }
+                for (SelectionKey key : selector.keys()) {
+                    try { key.channel().close(); } catch (IOException ignored) {}
+                }
+            } catch (IOException e) {
+                System.err.println("Loop " + id + " error: " + e.getMessage());
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
+                SelectionKey key = null;
+                try {
+                    key = client.register(selector, SelectionKey.OP_READ, new ByteArrayOutputStream());
+                    if (connectHandler != null) connectHandler.handle(key);
+                } catch (IOException | RuntimeException e) {
+                    if (key != null) fail(key, e);
+                    else try { client.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        // hands the connection to the error handler; closes it here if there is none or it throws too
+        private void fail(SelectionKey key, Exception e) {
+            if (errorHandler != null) {
+                try {
+                    errorHandler.handle(key, e);
+                    return;
+                } catch (RuntimeException again) {
+                    e = again;
+                }
+            }
+            System.err.println("Loop " + id + " handler error: " + e.getMessage());
+            key.cancel();
+            try { key.channel().close(); } catch (IOException ignored) {}
+        }
     }
 
     public static void main(String[] args) {
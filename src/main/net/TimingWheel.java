@@ -0,0 +1,137 @@
+/**
+ * Hashed timing wheel for connection deadlines: a ring of slots, each a
+ * doubly linked list of timeouts, advanced one tick at a time by the thread
+ * that owns it. Scheduling and cancelling are O(1); a timeout further out
+ * than one revolution just stays in its slot until its tick comes round.
+ * Not thread-safe: every call must come from the owning selector loop.
+ */
+public final class TimingWheel {
+
+    /** A scheduled task; cancel it when the deadline no longer matters */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private TimingWheel wheel; // null once fired or cancelled
+        private boolean due;       // taken off its slot, about to run
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public boolean isPending() {
+            return wheel != null;
+        }
+
+        public void cancel() {
+            if (wheel == null) return;
+            if (due) wheel = null;
+            else wheel.unlink(this);
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timeout[] heads;
+    private final int mask;
+    private long tick; // last tick processed
+    private int size;
+
+    /**
+     * @param tickMillis resolution; timeouts fire up to one tick late
+     * @param slots number of slots, rounded up to a power of two
+     * @param nowMillis the current time on the clock later passed to {@link #advance}
+     */
+    public TimingWheel(long tickMillis, int slots, long nowMillis) {
+        if (tickMillis < 1 || slots < 1) throw new IllegalArgumentException("tick and slots must be positive");
+        this.tickMillis = tickMillis;
+        this.startMillis = nowMillis;
+        int n = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.heads = new Timeout[Math.max(2, n)];
+        this.mask = heads.length - 1;
+    }
+
+    public long tickMillis() {
+        return tickMillis;
+    }
+
+    /** Timeouts waiting to fire */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Runs {@code task} from {@link #advance} once {@code delayMillis} have passed */
+    public Timeout schedule(long delayMillis, Runnable task) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout t = new Timeout(task, tick + ticks);
+        int slot = (int) (t.deadlineTick & mask);
+        t.wheel = this;
+        t.next = heads[slot];
+        if (t.next != null) t.next.prev = t;
+        heads[slot] = t;
+        size++;
+        return t;
+    }
+
+    /**
+     * Moves the wheel to {@code nowMillis} and runs every timeout that is due.
+     * Timeouts scheduled by those tasks never fire in the same call.
+     * @return the number of tasks run
+     */
+    public int advance(long nowMillis) {
+        long target = (nowMillis - startMillis) / tickMillis;
+        if (target <= tick) return 0;
+        long first = tick + 1;
+        // after a long pause one revolution visits every slot
+        long steps = Math.min(target - tick, heads.length);
+        tick = target;
+        int fired = 0;
+        for (long i = 0; i < steps; i++) fired += expire((int) ((first + i) & mask), target);
+        return fired;
+    }
+
+    // takes the due timeouts off the slot before running any, so a task may
+    // freely schedule or cancel others, even ones in the same slot
+    private int expire(int slot, long upTo) {
+        Timeout due = null;
+        for (Timeout t = heads[slot], next; t != null; t = next) {
+            next = t.next;
+            if (t.deadlineTick > upTo) continue; // a later revolution
+            unlink(t);
+            t.wheel = this;
+            t.due = true;
+            t.next = due;
+            due = t;
+        }
+        int fired = 0;
+        while (due != null) {
+            Timeout t = due;
+            due = t.next;
+            t.next = null;
+            if (t.wheel == null) continue; // cancelled by an earlier task
+            t.wheel = null;
+            fired++;
+            try {
+                t.task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Timeout task failed: " + e);
+            }
+        }
+        return fired;
+    }
+
+    private void unlink(Timeout t) {
+        int slot = (int) (t.deadlineTick & mask);
+        if (t.prev != null) t.prev.next = t.next;
+        else heads[slot] = t.next;
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.wheel = null;
+        size--;
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log kept off the request path. Each answered request is one
+ * fixed-size binary record (time, method, route, status, bytes, duration)
+ * written into preallocated parallel arrays that form a ring, so recording
+ * allocates nothing and takes no lock. A background thread formats the
+ * records it finds into text lines and appends them to the file in batches.
+ * <p>
+ * Any thread may record. A slot is claimed with a CAS on the write sequence
+ * and published by storing its sequence number once the fields are filled,
+ * so the writer never reads a half-written record. When the writer falls a
+ * whole ring behind, new records are dropped and counted rather than
+ * blocking a selector loop.
+ * <p>
+ * Line format: {@code 2026-10-18T10:31:21.123Z GET /video 206 1048576 3.412ms}
+ */
+final class AccessLog {
+
+    /** Request methods as they are stored in a record */
+    enum Method {
+        GET, HEAD, POST, PATCH, DELETE, OTHER;
+
+        static Method of(HttpRequestParser req) {
+            if (req.methodIs(HttpRequestParser.GET)) return GET;
+            if (req.methodIs(HttpRequestParser.POST)) return POST;
+            if (req.methodIs(HttpRequestParser.HEAD)) return HEAD;
+            if (req.methodIs(HttpRequestParser.PATCH)) return PATCH;
+            if (req.methodIs(HttpRequestParser.DELETE)) return DELETE;
+            return OTHER;
+        }
+
+        /** The method of an HTTP/2 request */
+        static Method of(String method) {
+            switch (method) {
+                case "GET": return GET;
+                case "HEAD": return HEAD;
+                case "POST": return POST;
+                case "PATCH": return PATCH;
+                case "DELETE": return DELETE;
+                default: return OTHER;
+            }
+        }
+    }
+
+    private static final Method[] METHODS = Method.values();
+    private static final Metrics.Route[] ROUTES = Metrics.Route.values();
+    private static final int BATCH = 512;             // records formatted per write
+    private static final long IDLE_PARK_NANOS = 20_000_000;
+
+    private final int mask;
+    private final long[] time;       // wall clock millis
+    private final long[] nanos;      // head parsed to response queued
+    private final long[] bytes;      // response bytes, head included
+    private final int[] status;
+    private final byte[] method;
+    private final byte[] route;
+    private final AtomicLongArray published; // sequence + 1 of the record in each slot
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;          // records the writer is done with
+    private final LongAdder dropped = new LongAdder();
+
+    private final Path file;
+    private final long maxBytes;
+    private FileChannel out;
+    private final StringBuilder line = new StringBuilder(BATCH * 64);
+    private final Thread writer;
+
+    /**
+     * @param capacity records the ring holds, rounded up to a power of two
+     * @param maxBytes the file is moved to {@code <file>.1} once it grows past this; 0 never rotates
+     */
+    AccessLog(Path file, int capacity, long maxBytes) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = slots - 1;
+        this.time = new long[slots];
+        this.nanos = new long[slots];
+        this.bytes = new long[slots];
+        this.status = new int[slots];
+        this.method = new byte[slots];
+        this.route = new byte[slots];
+        this.published = new AtomicLongArray(slots);
+        this.file = file;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.out = open(file);
+
+        writer = new Thread(this::run, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+    }
+
+    /** Records one answered request; never blocks */
+    void record(Method m, Metrics.Route r, int statusCode, long responseBytes, long durationNanos) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        int i = (int) seq & mask;
+        time[i] = System.currentTimeMillis();
+        nanos[i] = durationNanos;
+        bytes[i] = responseBytes;
+        status[i] = statusCode;
+        method[i] = (byte) m.ordinal();
+        route[i] = (byte) r.ordinal();
+        published.lazySet(i, seq + 1);
+        if (seq - consumed == BATCH) LockSupport.unpark(writer);
+    }
+
+    /** Records lost because the writer was a whole ring behind */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void run() {
+        while (true) {
+            if (drain() == 0) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Formats and writes every published record in batches.
+     * @return records written
+     */
+    synchronized int drain() {
+        int total = 0;
+        while (true) {
+            long seq = consumed;
+            int n = 0;
+            line.setLength(0);
+            // stops at the first slot still being filled; its producer is about to publish it
+            while (n < BATCH && published.get((int) (seq + n) & mask) == seq + n + 1) {
+                format((int) (seq + n) & mask);
+                n++;
+            }
+            if (n == 0) return total;
+            write();
+            consumed = seq + n;
+            total += n;
+        }
+    }
+
+    private void format(int i) {
+        line.append(Instant.ofEpochMilli(time[i])).append(' ')
+                .append(METHODS[method[i]]).append(' ')
+                .append(ROUTES[route[i]].label).append(' ')
+                .append(status[i]).append(' ')
+                .append(bytes[i]).append(' ');
+        long micros = nanos[i] / 1000;
+        line.append(micros / 1000).append('.');
+        long frac = micros % 1000;
+        if (frac < 100) line.append('0');
+        if (frac < 10) line.append('0');
+        line.append(frac).append("ms\n");
+    }
+
+    private void write() {
+        ByteBuffer buf = StandardCharsets.US_ASCII.encode(CharBuffer.wrap(line));
+        try {
+            while (buf.hasRemaining()) out.write(buf);
+            if (maxBytes > 0 && out.size() > maxBytes) rotate();
+        } catch (IOException e) {
+            System.err.println("Access log write failed: " + e.getMessage());
+        }
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        out = open(file);
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Boyer-Moore-Horspool search for a fixed byte pattern, such as a multipart
+ * delimiter. The skip table lets the scan jump up to the pattern length per
+ * step, so long patterns over random data look at a fraction of the bytes.
+ * A caller feeding a stream in chunks carries the bytes {@link #prefixAtEnd}
+ * reports over to the next chunk, so a pattern split across reads is found.
+ */
+final class BytePattern {
+
+    private final byte[] pattern;
+    private final int[] skip = new int[256];
+
+    BytePattern(byte[] pattern) {
+        if (pattern.length == 0) throw new IllegalArgumentException("Empty pattern");
+        this.pattern = pattern.clone();
+        int m = pattern.length;
+        Arrays.fill(skip, m);
+        for (int i = 0; i < m - 1; i++) skip[pattern[i] & 0xff] = m - 1 - i;
+    }
+
+    int length() {
+        return pattern.length;
+    }
+
+    /** First index of the pattern in data[from, to), or -1 */
+    int indexOf(byte[] data, int from, int to) {
+        int m = pattern.length;
+        byte last = pattern[m - 1];
+        int i = from;
+        while (i <= to - m) {
+            byte c = data[i + m - 1];
+            if (c == last && matchesAt(data, i)) return i;
+            i += skip[c & 0xff];
+        }
+        return -1;
+    }
+
+    /** First absolute index of the pattern in buf[from, to), or -1; the buffer's position is untouched */
+    int indexOf(ByteBuffer buf, int from, int to) {
+        if (buf.hasArray()) {
+            int off = buf.arrayOffset();
+            int hit = indexOf(buf.array(), from + off, to + off);
+            return hit < 0 ? -1 : hit - off;
+        }
+        int m = pattern.length;
+        byte last = pattern[m - 1];
+        int i = from;
+        while (i <= to - m) {
+            byte c = buf.get(i + m - 1);
+            if (c == last && matchesAt(buf, i)) return i;
+            i += skip[c & 0xff];
+        }
+        return -1;
+    }
+
+    /** Length of the longest suffix of buf[from, to) that is a proper prefix of the pattern */
+    int prefixAtEnd(ByteBuffer buf, int from, int to) {
+        outer:
+        for (int i = Math.max(from, to - pattern.length + 1); i < to; i++) {
+            for (int j = 0; j < to - i; j++)
+                if (buf.get(i + j) != pattern[j]) continue outer;
+            return to - i;
+        }
+        return 0;
+    }
+
+    /** True if the first {@code len} bytes of {@code b} are a prefix of the pattern */
+    boolean isPrefix(byte[] b, int len) {
+        for (int i = 0; i < len; i++) if (b[i] != pattern[i]) return false;
+        return true;
+    }
+
+    byte at(int i) {
+        return pattern[i];
+    }
+
+    private boolean matchesAt(byte[] data, int i) {
+        for (int j = 0; j < pattern.length - 1; j++)
+            if (data[i + j] != pattern[j]) return false;
+        return true;
+    }
+
+    private boolean matchesAt(ByteBuffer buf, int i) {
+        for (int j = 0; j < pattern.length - 1; j++)
+            if (buf.get(i + j) != pattern[j]) return false;
+        return true;
+    }
+}
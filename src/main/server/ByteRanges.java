@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser for {@code Range: bytes=...} headers (RFC 7233): single and
+ * multiple ranges, open-ended ranges and suffix ranges, resolved against the
+ * size of the representation. Overlapping or adjacent ranges are merged so a
+ * client cannot make the server send the same bytes many times over.
+ */
+final class ByteRanges {
+
+    // more ranges than this are answered with the whole file
+    static final int MAX_RANGES = 16;
+
+    /** An inclusive byte range within a file */
+    static final class Range {
+        final long first;
+        final long last;
+
+        Range(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        long length() {
+            return last - first + 1;
+        }
+    }
+
+    /** Returned when the header is valid but no range overlaps the file */
+    static final List<Range> UNSATISFIABLE = List.of();
+
+    private ByteRanges() {}
+
+    /**
+     * Resolves a Range header against a file of {@code size} bytes.
+     * @return the ranges in ascending order, {@link #UNSATISFIABLE} for a 416,
+     *         or null if the header is malformed or too fragmented and must be ignored
+     */
+    static List<Range> parse(String header, long size) {
+        if (header == null) return null;
+        String h = header.trim();
+        if (h.length() < 6 || !h.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+
+        List<Range> ranges = new ArrayList<>();
+        boolean any = false;
+        for (String spec : h.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) continue;
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            String a = spec.substring(0, dash).trim(), b = spec.substring(dash + 1).trim();
+            long first, last;
+            try {
+                if (a.isEmpty()) {
+                    // suffix range: the last N bytes
+                    if (b.isEmpty()) return null;
+                    long n = Long.parseLong(b);
+                    if (n < 0) return null;
+                    any = true;
+                    if (n == 0 || size == 0) continue;
+                    first = Math.max(0, size - n);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(a);
+                    last = b.isEmpty() ? Long.MAX_VALUE : Long.parseLong(b);
+                    if (first < 0 || last < first) return null;
+                    any = true;
+                    if (first >= size) continue;
+                    last = Math.min(last, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            ranges.add(new Range(first, last));
+        }
+        if (!any) return null;
+        if (ranges.isEmpty()) return UNSATISFIABLE;
+        if (ranges.size() > MAX_RANGES * 4) return null;
+
+        ranges.sort((x, y) -> Long.compare(x.first, y.first));
+        List<Range> merged = new ArrayList<>();
+        Range cur = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            Range r = ranges.get(i);
+            if (r.first <= cur.last + 1) cur = new Range(cur.first, Math.max(cur.last, r.last));
+            else { merged.add(cur); cur = r; }
+        }
+        merged.add(cur);
+        return merged.size() > MAX_RANGES ? null : merged;
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Side directory of precompressed copies of static files, built the first
+ * time a file is requested with an encoding and reused afterwards, so
+ * repeat requests cost no CPU.
+ * A variant's name carries the source's size and modification time, so a
+ * changed file simply misses and gets a fresh variant, and variants stay
+ * valid across restarts. Older variants of the same file are deleted when
+ * a new one is built.
+ */
+class CompressedVariants {
+
+    private final Path dir;
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+
+    CompressedVariants(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    /**
+     * The up-to-date variant of {@code src}, compressing it now if needed.
+     * @return null if another thread is building it right now; serve identity meanwhile
+     */
+    Path get(Path src, long size, long lastModified, Compression.Encoding enc) throws IOException {
+        String prefix = prefix(src, enc);
+        Path variant = dir.resolve(prefix + size + "-" + lastModified + enc.suffix);
+        if (Files.exists(variant)) return variant;
+        if (!building.add(prefix)) return null;
+        try {
+            Path tmp = dir.resolve(variant.getFileName() + ".tmp");
+            try {
+                Compression.compress(src, tmp, enc);
+                Files.move(tmp, variant, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            deleteOlder(prefix, variant);
+            return variant;
+        } finally {
+            building.remove(prefix);
+        }
+    }
+
+    private void deleteOlder(String prefix, Path keep) throws IOException {
+        try (DirectoryStream<Path> s = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path p : s) {
+                if (p.equals(keep) || p.getFileName().toString().endsWith(".tmp")) continue;
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    // stable, file-name safe key for a source path and encoding
+    private static String prefix(Path src, Compression.Encoding enc) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256")
+                    .digest(src.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(40);
+            for (int i = 0; i < 12; i++) sb.append(String.format("%02x", d[i]));
+            return sb.append('-').append(enc.token).append('-').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Content-Encoding negotiation and gzip/deflate compression with pooled
+ * Deflaters. A Deflater holds native zlib state of a few hundred KB, so
+ * it is reset and reused rather than created per response.
+ */
+final class Compression {
+
+    enum Encoding {
+        GZIP("gzip", ".gz"),
+        DEFLATE("deflate", ".zz"); // zlib format, which is what HTTP calls deflate
+
+        final String token;
+        final String suffix;
+
+        Encoding(String token, String suffix) {
+            this.token = token;
+            this.suffix = suffix;
+        }
+    }
+
+    // below this the headers outweigh the savings
+    static final int MIN_SIZE = 512;
+
+    private static final int LEVEL = 6;
+    private static final int CHUNK = 64 * 1024;
+    private static final int MAX_POOLED = 16;
+
+    // gzip header: magic, CM=deflate, no flags, no mtime, no XFL, OS unknown
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final Queue<Deflater> RAW_POOL = new ConcurrentLinkedQueue<>();
+    private static final Queue<Deflater> ZLIB_POOL = new ConcurrentLinkedQueue<>();
+
+    private Compression() {}
+
+    /** True for textual types; media and archives are already compressed */
+    static boolean compressible(String contentType) {
+        String t = contentType.toLowerCase(Locale.ROOT);
+        return t.startsWith("text/") || t.startsWith("application/json")
+                || t.startsWith("application/javascript") || t.startsWith("application/xml")
+                || t.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Picks the encoding for an Accept-Encoding header, preferring gzip.
+     * @return null if the client accepts neither (or sent no header)
+     */
+    static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        double gzip = -1, deflate = -1, any = -1;
+        for (String item : acceptEncoding.split(",")) {
+            String[] f = item.split(";");
+            String token = f[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < f.length; i++) {
+                String p = f[i].trim();
+                if (p.startsWith("q=")) {
+                    try { q = Double.parseDouble(p.substring(2)); } catch (NumberFormatException e) { q = 0; }
+                }
+            }
+            if (token.equals("gzip") || token.equals("x-gzip")) gzip = q;
+            else if (token.equals("deflate")) deflate = q;
+            else if (token.equals("*")) any = q;
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip > 0 && gzip >= deflate) return Encoding.GZIP;
+        if (deflate > 0) return Encoding.DEFLATE;
+        return null;
+    }
+
+    /** The tag of an encoded variant, derived from the identity tag */
+    static String variantTag(String etag, Encoding enc) {
+        if (etag == null) return null;
+        return etag.substring(0, etag.length() - 1) + "-" + enc.token + "\"";
+    }
+
+    /** Compresses a small in-memory body, such as a JSON response */
+    static byte[] compress(byte[] data, Encoding enc) {
+        Sink out = new Sink(data.length / 2 + 64);
+        Deflater d = borrow(enc);
+        try {
+            CRC32 crc = new CRC32();
+            if (enc == Encoding.GZIP) out.write(GZIP_HEADER, GZIP_HEADER.length);
+            d.setInput(data);
+            d.finish();
+            byte[] buf = new byte[Math.min(CHUNK, Math.max(512, data.length))];
+            while (!d.finished()) out.write(buf, d.deflate(buf));
+            if (enc == Encoding.GZIP) {
+                crc.update(data);
+                out.writeTrailer(crc.getValue(), data.length);
+            }
+            return out.toByteArray();
+        } finally {
+            giveBack(enc, d);
+        }
+    }
+
+    /**
+     * Streams {@code src} through a pooled Deflater into {@code dst}, which is
+     * created or truncated. Memory use is two chunk buffers regardless of size.
+     * @return the compressed size
+     */
+    static long compress(Path src, Path dst, Encoding enc) throws IOException {
+        Deflater d = borrow(enc);
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            long inBytes = 0;
+            byte[] input = new byte[CHUNK];
+            byte[] output = new byte[CHUNK];
+            ByteBuffer inBuf = ByteBuffer.wrap(input);
+            if (enc == Encoding.GZIP) writeFully(out, ByteBuffer.wrap(GZIP_HEADER));
+            int n;
+            while ((n = in.read(inBuf.clear())) >= 0) {
+                if (n == 0) continue;
+                crc.update(input, 0, n);
+                inBytes += n;
+                d.setInput(input, 0, n);
+                while (!d.needsInput()) writeFully(out, ByteBuffer.wrap(output, 0, d.deflate(output)));
+            }
+            d.finish();
+            while (!d.finished()) writeFully(out, ByteBuffer.wrap(output, 0, d.deflate(output)));
+            if (enc == Encoding.GZIP) {
+                Sink trailer = new Sink(8);
+                trailer.writeTrailer(crc.getValue(), inBytes);
+                writeFully(out, ByteBuffer.wrap(trailer.toByteArray()));
+            }
+            return out.size();
+        } finally {
+            giveBack(enc, d);
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) out.write(b);
+    }
+
+    private static Deflater borrow(Encoding enc) {
+        Deflater d = (enc == Encoding.GZIP ? RAW_POOL : ZLIB_POOL).poll();
+        return d != null ? d : new Deflater(LEVEL, enc == Encoding.GZIP);
+    }
+
+    private static void giveBack(Encoding enc, Deflater d) {
+        Queue<Deflater> pool = enc == Encoding.GZIP ? RAW_POOL : ZLIB_POOL;
+        if (pool.size() < MAX_POOLED) {
+            d.reset();
+            pool.offer(d);
+        } else {
+            d.end();
+        }
+    }
+
+    /** Growable byte array with the little-endian gzip trailer helper */
+    private static final class Sink {
+        private byte[] buf;
+        private int len;
+
+        Sink(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void write(byte[] b, int n) {
+            if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+            System.arraycopy(b, 0, buf, len, n);
+            len += n;
+        }
+
+        void writeTrailer(long crc, long size) {
+            byte[] t = new byte[8];
+            for (int i = 0; i < 4; i++) {
+                t[i] = (byte) (crc >>> (8 * i));
+                t[4 + i] = (byte) (size >>> (8 * i));
+            }
+            write(t, 8);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+    }
+}
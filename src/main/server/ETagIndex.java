@@ -0,0 +1,173 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Strong entity tags derived from file content (SHA-256, first 128 bits).
+ * A file is hashed once, on a background thread, the first time its tag is
+ * asked for; until then no tag is known and callers fall back to
+ * Last-Modified. Tags are keyed by path, size and modification time and
+ * appended to an index file, so a restart does not rehash large media.
+ * <p>
+ * Index format, one entry per line, later lines win:
+ * {@code size TAB lastModifiedMillis TAB tag TAB absolutePath}
+ */
+class ETagIndex {
+
+    private static final int HASH_CHUNK = 256 * 1024;
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final String tag;
+
+        Entry(long size, long lastModified, String tag) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.tag = tag;
+        }
+    }
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService hasher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "etag-hasher");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private final BufferedWriter journal; // null when tags are kept in memory only
+
+    /**
+     * Loads the index file, drops entries for files that are gone or have
+     * changed, rewrites it compacted and keeps it open for appending.
+     * @param indexFile where tags are persisted, or null to keep them in memory only
+     */
+    ETagIndex(Path indexFile) throws IOException {
+        if (indexFile == null) {
+            journal = null;
+            return;
+        }
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        if (Files.exists(indexFile)) {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t", 4);
+                if (f.length != 4) continue;
+                try {
+                    entries.put(Paths.get(f[3]), new Entry(Long.parseLong(f[0]), Long.parseLong(f[1]), f[2]));
+                } catch (RuntimeException ignored) {} // torn last line after a crash
+            }
+            entries.entrySet().removeIf(e -> !stillValid(e.getKey(), e.getValue()));
+        }
+
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<Path, Entry> e : entries.entrySet()) w.write(line(e.getKey(), e.getValue()));
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * The quoted strong tag for the file if its content hash is known for
+     * exactly this size and modification time; otherwise schedules hashing
+     * and returns null.
+     */
+    String get(Path path, long size, long lastModified) {
+        Entry e = entries.get(path);
+        if (e != null && e.size == size && e.lastModified == lastModified) return e.tag;
+        if (pending.add(path)) hasher.execute(() -> {
+            try { compute(path); }
+            finally { pending.remove(path); }
+        });
+        return null;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void compute(Path path) {
+        try {
+            BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+            String tag = hash(path);
+            BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+            // a file rewritten while it was hashed gets its tag on the next request
+            if (before.size() != after.size() || !before.lastModifiedTime().equals(after.lastModifiedTime())) return;
+            Entry e = new Entry(after.size(), after.lastModifiedTime().toMillis(), tag);
+            entries.put(path, e);
+            persist(path, e);
+        } catch (IOException ignored) {
+            // deleted or unreadable: no tag, Last-Modified still works
+        }
+    }
+
+    private synchronized void persist(Path path, Entry e) throws IOException {
+        if (journal == null || path.toString().indexOf('\n') >= 0) return;
+        journal.write(line(path, e));
+        journal.flush();
+    }
+
+    private static String hash(Path path) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(HASH_CHUNK);
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (fc.read(buf) >= 0) {
+                buf.flip();
+                sha.update(buf);
+                buf.clear();
+            }
+        }
+        byte[] d = sha.digest();
+        StringBuilder sb = new StringBuilder(34).append('"');
+        for (int i = 0; i < 16; i++) sb.append(Character.forDigit((d[i] >> 4) & 0xf, 16)).append(Character.forDigit(d[i] & 0xf, 16));
+        return sb.append('"').toString();
+    }
+
+    private static boolean stillValid(Path path, Entry e) {
+        try {
+            BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class);
+            return a.size() == e.size && a.lastModifiedTime().toMillis() == e.lastModified;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static String line(Path path, Entry e) {
+        return e.size + "\t" + e.lastModified + "\t" + e.tag + "\t" + path + "\n";
+    }
+
+    /**
+     * Weak comparison of an If-None-Match value against a strong tag, as
+     * RFC 7232 prescribes for GET: "*" or any listed tag, W/ prefix ignored.
+     * A null tag (not hashed yet) only matches "*".
+     */
+    static boolean noneMatchHits(String ifNoneMatch, String tag) {
+        for (String t : ifNoneMatch.split(",")) {
+            t = t.trim();
+            if (t.startsWith("W/")) t = t.substring(2);
+            if (t.equals("*") || t.equals(tag)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,406 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). A header block refers to
+ * the 61-entry static table and to a per-direction dynamic table both sides
+ * keep in step, so headers a response repeats (content-type, accept-ranges,
+ * vary, ...) shrink to one byte after their first use on a connection.
+ * Strings are Huffman coded when that is shorter.
+ * <p>
+ * Names and values are kept as ISO-8859-1 Strings, one char per octet, so
+ * their length is also their size in the table.
+ */
+final class Hpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /** One header field */
+    static final class Field {
+        final String name;
+        final String value;
+
+        Field(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        int size() {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + value;
+        }
+    }
+
+    private static final Field[] STATIC = {
+            null,
+            new Field(":authority", ""), new Field(":method", "GET"), new Field(":method", "POST"),
+            new Field(":path", "/"), new Field(":path", "/index.html"), new Field(":scheme", "http"),
+            new Field(":scheme", "https"), new Field(":status", "200"), new Field(":status", "204"),
+            new Field(":status", "206"), new Field(":status", "304"), new Field(":status", "400"),
+            new Field(":status", "404"), new Field(":status", "500"), new Field("accept-charset", ""),
+            new Field("accept-encoding", "gzip, deflate"), new Field("accept-language", ""),
+            new Field("accept-ranges", ""), new Field("accept", ""), new Field("access-control-allow-origin", ""),
+            new Field("age", ""), new Field("allow", ""), new Field("authorization", ""),
+            new Field("cache-control", ""), new Field("content-disposition", ""), new Field("content-encoding", ""),
+            new Field("content-language", ""), new Field("content-length", ""), new Field("content-location", ""),
+            new Field("content-range", ""), new Field("content-type", ""), new Field("cookie", ""),
+            new Field("date", ""), new Field("etag", ""), new Field("expect", ""), new Field("expires", ""),
+            new Field("from", ""), new Field("host", ""), new Field("if-match", ""),
+            new Field("if-modified-since", ""), new Field("if-none-match", ""), new Field("if-range", ""),
+            new Field("if-unmodified-since", ""), new Field("last-modified", ""), new Field("link", ""),
+            new Field("location", ""), new Field("max-forwards", ""), new Field("proxy-authenticate", ""),
+            new Field("proxy-authorization", ""), new Field("range", ""), new Field("referer", ""),
+            new Field("refresh", ""), new Field("retry-after", ""), new Field("server", ""),
+            new Field("set-cookie", ""), new Field("strict-transport-security", ""),
+            new Field("transfer-encoding", ""), new Field("user-agent", ""), new Field("vary", ""),
+            new Field("via", ""), new Field("www-authenticate", ""),
+    };
+    private static final int STATIC_COUNT = STATIC.length - 1;
+
+    // static table lookups for the encoder: "name\0value" and name -> lowest index
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    static {
+        for (int i = STATIC_COUNT; i >= 1; i--) {
+            STATIC_NAMES.put(STATIC[i].name, i);
+            if (!STATIC[i].value.isEmpty()) STATIC_FIELDS.put(STATIC[i].name + '\0' + STATIC[i].value, i);
+        }
+    }
+
+    /**
+     * Code lengths of the Huffman code (RFC 7541 Appendix B) for octets 0-255
+     * and EOS. The code is canonical, so the codes themselves follow from the
+     * lengths: shorter codes first, equal lengths in symbol order.
+     */
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30,
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+
+    private static final int[] HUFFMAN_CODES = new int[257];
+    // canonical decoding: for each length, the first code, how many codes and where their symbols start
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 2];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 2];
+    private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 2];
+    private static final int[] SYMBOLS = new int[257];
+
+    static {
+        int n = 0;
+        for (int len = 1; len <= MAX_CODE_LENGTH; len++)
+            for (int sym = 0; sym <= EOS; sym++)
+                if (HUFFMAN_LENGTHS[sym] == len) SYMBOLS[n++] = sym;
+        int code = 0;
+        int prevLen = HUFFMAN_LENGTHS[SYMBOLS[0]];
+        for (int i = 0; i < SYMBOLS.length; i++) {
+            int len = HUFFMAN_LENGTHS[SYMBOLS[i]];
+            if (i > 0) code = (code + 1) << (len - prevLen);
+            prevLen = len;
+            HUFFMAN_CODES[SYMBOLS[i]] = code;
+            if (CODE_COUNT[len]++ == 0) {
+                FIRST_CODE[len] = code;
+                FIRST_SYMBOL[len] = i;
+            }
+        }
+    }
+
+    private Hpack() {}
+
+    /** A dynamic table: newest entry first, evicting the oldest to stay within its size */
+    private static final class Table {
+        private Field[] ring = new Field[16];
+        private int newest;  // ring index of entry 0
+        private int count;
+        private int size;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /** Entry {@code i}, 0 being the newest */
+        Field get(int i) {
+            return ring[(newest + i) & (ring.length - 1)];
+        }
+
+        int count() {
+            return count;
+        }
+
+        void add(Field f) {
+            if (f.size() > maxSize) {
+                clear(); // an entry larger than the table empties it
+                return;
+            }
+            while (size + f.size() > maxSize) evictOldest();
+            if (count == ring.length) grow();
+            newest = (newest - 1) & (ring.length - 1);
+            ring[newest] = f;
+            count++;
+            size += f.size();
+        }
+
+        void setMaxSize(int n) {
+            maxSize = n;
+            while (size > maxSize) evictOldest();
+        }
+
+        private void evictOldest() {
+            int i = (newest + count - 1) & (ring.length - 1);
+            size -= ring[i].size();
+            ring[i] = null;
+            count--;
+        }
+
+        private void clear() {
+            while (count > 0) evictOldest();
+        }
+
+        private void grow() {
+            Field[] bigger = new Field[ring.length * 2];
+            for (int i = 0; i < count; i++) bigger[i] = get(i);
+            ring = bigger;
+            newest = 0;
+        }
+    }
+
+    /** Decodes the header blocks of one direction of a connection, in the order they arrive */
+    static final class Decoder {
+        private final int tableLimit; // the SETTINGS_HEADER_TABLE_SIZE we advertised
+        private final Table table;
+
+        Decoder(int tableLimit) {
+            this.tableLimit = tableLimit;
+            this.table = new Table(tableLimit);
+        }
+
+        /**
+         * Decodes one complete header block.
+         * @param maxListSize largest header list accepted, counted as RFC 9113 does
+         * @throws IOException if the block is malformed or too large; the
+         *         connection has to end, as its table may now be out of step
+         */
+        List<Field> decode(ByteBuffer block, int maxListSize) throws IOException {
+            List<Field> fields = new ArrayList<>();
+            int listSize = 0;
+            while (block.hasRemaining()) {
+                int b = block.get(block.position()) & 0xff;
+                Field f;
+                if ((b & 0x80) != 0) {                    // indexed
+                    f = field(integer(block, 7));
+                } else if ((b & 0xc0) == 0x40) {          // literal with incremental indexing
+                    f = literal(block, 6);
+                    table.add(f);
+                } else if ((b & 0xe0) == 0x20) {          // dynamic table size update
+                    if (!fields.isEmpty()) throw new IOException("HPACK: table size update after a field");
+                    int n = integer(block, 5);
+                    if (n > tableLimit) throw new IOException("HPACK: table size " + n + " over " + tableLimit);
+                    table.setMaxSize(n);
+                    continue;
+                } else {                                  // literal without indexing or never indexed
+                    f = literal(block, 4);
+                }
+                listSize += f.size();
+                if (listSize > maxListSize) throw new IOException("HPACK: header list over " + maxListSize + " bytes");
+                fields.add(f);
+            }
+            return fields;
+        }
+
+        private Field literal(ByteBuffer block, int prefix) throws IOException {
+            int index = integer(block, prefix);
+            String name = index == 0 ? string(block) : field(index).name;
+            return new Field(name, string(block));
+        }
+
+        private Field field(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_COUNT) return STATIC[index];
+            int dynamic = index - STATIC_COUNT - 1;
+            if (index < 1 || dynamic >= table.count()) throw new IOException("HPACK: no table entry " + index);
+            return table.get(dynamic);
+        }
+    }
+
+    /** Encodes the header blocks of one direction of a connection */
+    static final class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private int pendingSizeUpdate = -1; // smallest size the peer allowed since the last block
+
+        /** Applies the peer's SETTINGS_HEADER_TABLE_SIZE; the next block announces the change */
+        void setMaxTableSize(int n) {
+            n = Math.min(n, DEFAULT_TABLE_SIZE);
+            table.setMaxSize(n);
+            pendingSizeUpdate = pendingSizeUpdate < 0 ? n : Math.min(pendingSizeUpdate, n);
+        }
+
+        /** Starts a header block; call before its first {@link #encode} */
+        void begin(ByteArrayOutputStream out) {
+            if (pendingSizeUpdate >= 0) {
+                if (pendingSizeUpdate < table.maxSize) integer(out, 0x20, 5, pendingSizeUpdate);
+                integer(out, 0x20, 5, table.maxSize);
+                pendingSizeUpdate = -1;
+            }
+        }
+
+        /**
+         * Appends one field.
+         * @param index whether the field may enter the dynamic table; pass false
+         *              for values that change with every response
+         */
+        void encode(ByteArrayOutputStream out, String name, String value, boolean index) {
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (exact != null) {
+                integer(out, 0x80, 7, exact);
+                return;
+            }
+            int nameIndex = 0;
+            for (int i = 0; i < table.count(); i++) {
+                Field f = table.get(i);
+                if (!f.name.equals(name)) continue;
+                if (f.value.equals(value)) {
+                    integer(out, 0x80, 7, STATIC_COUNT + 1 + i);
+                    return;
+                }
+                if (nameIndex == 0) nameIndex = STATIC_COUNT + 1 + i;
+            }
+            Integer staticName = STATIC_NAMES.get(name);
+            if (staticName != null) nameIndex = staticName;
+
+            Field f = new Field(name, value);
+            if (index && f.size() <= table.maxSize) {
+                integer(out, 0x40, 6, nameIndex);
+                table.add(f);
+            } else {
+                integer(out, 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) string(out, name);
+            string(out, value);
+        }
+    }
+
+    // RFC 7541 5.1: an integer in the low bits of the first octet, continued 7 bits per octet
+    static int integer(ByteBuffer in, int prefixBits) throws IOException {
+        if (!in.hasRemaining()) throw new IOException("HPACK: truncated integer");
+        int mask = (1 << prefixBits) - 1;
+        int v = in.get() & mask;
+        if (v < mask) return v;
+        for (int shift = 0; ; shift += 7) {
+            if (!in.hasRemaining() || shift > 21) throw new IOException("HPACK: bad integer");
+            int b = in.get() & 0xff;
+            v += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+    }
+
+    static void integer(ByteArrayOutputStream out, int firstBits, int prefixBits, int v) {
+        int mask = (1 << prefixBits) - 1;
+        if (v < mask) {
+            out.write(firstBits | v);
+            return;
+        }
+        out.write(firstBits | mask);
+        v -= mask;
+        while (v >= 0x80) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static String string(ByteBuffer in) throws IOException {
+        if (!in.hasRemaining()) throw new IOException("HPACK: truncated string");
+        boolean huffman = (in.get(in.position()) & 0x80) != 0;
+        int length = integer(in, 7);
+        if (length > in.remaining()) throw new IOException("HPACK: string runs past the block");
+        ByteBuffer raw = in.slice();
+        raw.limit(length);
+        in.position(in.position() + length);
+        if (huffman) return huffmanDecode(raw);
+        byte[] b = new byte[length];
+        raw.get(b);
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void string(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength < s.length()) {
+            integer(out, 0x80, 7, huffmanLength);
+            huffmanEncode(out, s);
+        } else {
+            integer(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+        }
+    }
+
+    static void huffmanEncode(ByteArrayOutputStream out, String s) {
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int sym = s.charAt(i) & 0xff;
+            int len = HUFFMAN_LENGTHS[sym];
+            acc = (acc << len) | HUFFMAN_CODES[sym];
+            bits += len;
+            while (bits >= 8) {
+                bits -= 8;
+                out.write((int) (acc >>> bits));
+            }
+        }
+        if (bits > 0) out.write((int) ((acc << (8 - bits)) | (0xff >>> bits))); // padded with the EOS prefix
+    }
+
+    static String huffmanDecode(ByteBuffer in) throws IOException {
+        StringBuilder sb = new StringBuilder(in.remaining() * 8 / 5);
+        int code = 0;
+        int len = 0;
+        while (in.hasRemaining()) {
+            int b = in.get() & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((b >>> bit) & 1);
+                len++;
+                int offset = code - FIRST_CODE[len];
+                if (CODE_COUNT[len] > 0 && offset >= 0 && offset < CODE_COUNT[len]) {
+                    int sym = SYMBOLS[FIRST_SYMBOL[len] + offset];
+                    if (sym == EOS) throw new IOException("HPACK: EOS in a string");
+                    sb.append((char) sym);
+                    code = 0;
+                    len = 0;
+                } else if (len == MAX_CODE_LENGTH) {
+                    throw new IOException("HPACK: bad Huffman code");
+                }
+            }
+        }
+        // what is left must be a short run of ones, the start of EOS
+        if (len > 7 || code != (1 << len) - 1) throw new IOException("HPACK: bad Huffman padding");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,698 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server side of one HTTP/2 connection (RFC 9113) over cleartext TCP:
+ * frames are parsed from the connection's read buffer, requests are handed
+ * to a {@link Handler} as {@link Stream}s, and responses are written to the
+ * connection's outbound queue as HEADERS and DATA frames. Response bodies
+ * are interleaved frame by frame between streams within the flow-control
+ * windows the client grants; a file body is cut into regions of its channel,
+ * so DATA payloads still go out with transferTo (or from the mapping).
+ * <p>
+ * Not thread-safe: everything runs on the connection's selector loop.
+ */
+final class Http2Connection {
+
+    /** What a client sends first, before its SETTINGS */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FRAME_HEADER = 9;
+
+    // frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // frame flags
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    // error codes
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    // settings
+    private static final int HEADER_TABLE_SIZE = 0x1;
+    private static final int ENABLE_PUSH = 0x2;
+    private static final int MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int INITIAL_WINDOW_SIZE = 0x4;
+    private static final int MAX_FRAME_SIZE = 0x5;
+    private static final int MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int DEFAULT_FRAME_SIZE = 16384;  // also the largest frame we accept
+    private static final int MAX_FRAME_LIMIT = (1 << 24) - 1;
+    private static final int MAX_HEADER_LIST = 64 * 1024; // decoded, as advertised
+    private static final int MAX_HEADER_BLOCK = 64 * 1024; // encoded, across CONTINUATION frames
+
+    // response headers that differ from one response to the next stay out of the HPACK table
+    private static final Set<String> NOT_INDEXED =
+            Set.of("content-length", "content-range", "etag", "last-modified");
+    // HTTP/1.1 connection headers have no meaning in HTTP/2 and make a request malformed
+    private static final Set<String> CONNECTION_HEADERS =
+            Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    /** Where frames go: the connection's outbound queue */
+    interface Output {
+        /**
+         * Appends parts to the connection's outbound queue.
+         * @param close close the connection once they are written
+         */
+        void queue(boolean close, Object... parts);
+    }
+
+    /** Answers requests; called on the loop thread as each request's headers complete */
+    interface Handler {
+        void request(Stream stream);
+    }
+
+    /** A connection-level error: the connection ends with GOAWAY and this code */
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /** One request and its response */
+    final class Stream {
+        final int id;
+        String method;
+        String scheme;
+        String authority;
+        String path;
+        String query;
+        /** Request headers by lower-case name; repeated ones joined as HTTP/1.1 would */
+        final Map<String, String> headers = new HashMap<>();
+
+        private long window;         // flow-control credit for our DATA on this stream
+        private boolean remoteClosed; // the client's END_STREAM arrived
+        private boolean responded;
+        private final List<String[]> responseHeaders = new ArrayList<>();
+        private ByteBuffer bodyBuffer;                 // a heap body still to send, or
+        private OutboundQueue.FileRegion bodyRegion;   // a file body still to send
+        private boolean scheduled;                     // in the send rotation
+
+        private Stream(int id) {
+            this.id = id;
+            this.window = initialWindow;
+        }
+
+        /** A request header, or null */
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        /** Adds a response header; the name must be lower case */
+        Stream header(String name, String value) {
+            responseHeaders.add(new String[]{name, value});
+            return this;
+        }
+
+        Stream header(String name, long value) {
+            return header(name, Long.toString(value));
+        }
+
+        /**
+         * Sends the response: HEADERS now, and the body, if any, as DATA
+         * frames while the flow-control windows allow.
+         * @param body null, a ByteBuffer ready to read, or a FileRegion, whose
+         *             release runs once it is sent or the stream is dropped
+         */
+        void respond(int status, Object body) {
+            if (responded) throw new IllegalStateException("stream " + id + " already answered");
+            responded = true;
+            if (!streams.containsKey(id)) { // reset or the connection failed while it was being handled
+                releaseBody(body);
+                return;
+            }
+            long length = body instanceof ByteBuffer ? ((ByteBuffer) body).remaining()
+                    : body != null ? ((OutboundQueue.FileRegion) body).remaining : 0;
+            writeHeaders(this, status, length == 0);
+            if (length == 0) {
+                releaseBody(body);
+                finish(this, control);
+                return;
+            }
+            if (body instanceof ByteBuffer) bodyBuffer = (ByteBuffer) body;
+            else bodyRegion = (OutboundQueue.FileRegion) body;
+            schedule(this);
+        }
+
+        private long bodyRemaining() {
+            return bodyBuffer != null ? bodyBuffer.remaining() : bodyRegion != null ? bodyRegion.remaining : 0;
+        }
+    }
+
+    private final Output out;
+    private final Handler handler;
+    private final int maxStreams;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final ArrayDeque<Stream> sending = new ArrayDeque<>(); // streams with DATA to send and window left
+    // small frames (settings, acks, window updates, HEADERS) collected until the next pump
+    private final ByteArrayOutputStream control = new ByteArrayOutputStream();
+
+    private boolean prefaceSeen;
+    private boolean settingsSeen;
+    private boolean closed;
+    private boolean peerGoingAway;
+    private int lastStreamId;     // highest stream the client opened
+
+    private long connectionWindow = DEFAULT_WINDOW; // credit for our DATA on the whole connection
+    private int initialWindow = DEFAULT_WINDOW;     // the client's SETTINGS_INITIAL_WINDOW_SIZE
+    private int peerMaxFrame = DEFAULT_FRAME_SIZE;
+
+    // a header block spread over HEADERS and CONTINUATION frames
+    private int headerStream;
+    private int headerFlags;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    /**
+     * Starts the connection; our SETTINGS are the first frame sent.
+     * @param maxStreams requests answered concurrently; more are refused
+     */
+    Http2Connection(Output out, Handler handler, int maxStreams) {
+        this.out = out;
+        this.handler = handler;
+        this.maxStreams = maxStreams;
+        ByteBuffer settings = ByteBuffer.allocate(18)
+                .putShort((short) MAX_CONCURRENT_STREAMS).putInt(maxStreams)
+                .putShort((short) MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST)
+                .putShort((short) ENABLE_PUSH).putInt(0);
+        frame(control, SETTINGS, 0, 0, settings.array());
+    }
+
+    /** Whether the buffered bytes can still be the start of a client preface */
+    static boolean startsWithPreface(ByteBuffer in) {
+        int n = Math.min(in.remaining(), PREFACE.length);
+        for (int i = 0; i < n; i++)
+            if (in.get(in.position() + i) != PREFACE[i]) return false;
+        return true;
+    }
+
+    /**
+     * Takes over a connection that asked for "Upgrade: h2c": applies the
+     * HTTP2-Settings of the request, which becomes stream 1, already closed by
+     * the client. The 101 response must already be queued. The caller fills in
+     * the request headers and answers the stream.
+     */
+    Stream upgrade(byte[] settingsPayload, String method, String path, String query) {
+        try {
+            applySettings(ByteBuffer.wrap(settingsPayload));
+        } catch (ConnectionError e) {
+            goAway(e.code, e.getMessage());
+        }
+        Stream s = new Stream(1);
+        s.method = method;
+        s.scheme = "http";
+        s.path = path;
+        s.query = query;
+        s.remoteClosed = true;
+        lastStreamId = 1;
+        streams.put(1, s);
+        return s;
+    }
+
+    /**
+     * Consumes the complete frames in {@code in}, which is in read mode, and
+     * leaves a partial frame unread. Requests are handed to the handler as
+     * their headers complete. A protocol error queues GOAWAY and the connection
+     * closes once it is sent.
+     */
+    void onRead(ByteBuffer in) {
+        if (closed) {
+            in.position(in.limit());
+            return;
+        }
+        try {
+            if (!prefaceSeen) {
+                if (!startsWithPreface(in)) throw new ConnectionError(PROTOCOL_ERROR, "bad connection preface");
+                if (in.remaining() < PREFACE.length) return;
+                in.position(in.position() + PREFACE.length);
+                prefaceSeen = true;
+            }
+            while (!closed && in.remaining() >= FRAME_HEADER) {
+                int p = in.position();
+                int length = (in.get(p) & 0xff) << 16 | (in.get(p + 1) & 0xff) << 8 | (in.get(p + 2) & 0xff);
+                int type = in.get(p + 3) & 0xff;
+                int flags = in.get(p + 4) & 0xff;
+                int stream = in.getInt(p + 5) & 0x7fffffff;
+                if (length > DEFAULT_FRAME_SIZE)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+                if (in.remaining() < FRAME_HEADER + length) return;
+                ByteBuffer payload = in.slice(p + FRAME_HEADER, length);
+                in.position(p + FRAME_HEADER + length);
+                onFrame(type, flags, stream, payload);
+            }
+        } catch (ConnectionError e) {
+            goAway(e.code, e.getMessage());
+            in.position(in.limit());
+        }
+    }
+
+    private void onFrame(int type, int flags, int stream, ByteBuffer payload) throws ConnectionError {
+        if (!settingsSeen && type != SETTINGS) throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS must come first");
+        if (headerStream != 0 && (type != CONTINUATION || stream != headerStream))
+            throw new ConnectionError(PROTOCOL_ERROR, "header block interrupted");
+        switch (type) {
+            case DATA: onData(flags, stream, payload); break;
+            case HEADERS: onHeaders(flags, stream, payload); break;
+            case CONTINUATION: onContinuation(flags, stream, payload); break;
+            case PRIORITY:
+                if (stream == 0) throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                if (payload.remaining() != 5) throw new ConnectionError(FRAME_SIZE_ERROR, "PRIORITY size");
+                break; // every stream gets an equal share
+            case RST_STREAM: onReset(stream, payload); break;
+            case SETTINGS: onSettings(flags, stream, payload); break;
+            case PUSH_PROMISE: throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING: onPing(flags, stream, payload); break;
+            case GOAWAY:
+                if (stream != 0) throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+                if (payload.remaining() < 8) throw new ConnectionError(FRAME_SIZE_ERROR, "GOAWAY size");
+                peerGoingAway = true; // the streams already open still get their responses
+                break;
+            case WINDOW_UPDATE: onWindowUpdate(stream, payload); break;
+            default: break; // unknown frame types are ignored
+        }
+    }
+
+    private void onData(int flags, int stream, ByteBuffer payload) throws ConnectionError {
+        if (stream == 0) throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        if (stream > lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + stream);
+        int length = payload.remaining();
+        if ((flags & PADDED) != 0 && (length == 0 || (payload.get(0) & 0xff) >= length))
+            throw new ConnectionError(PROTOCOL_ERROR, "bad padding");
+        // request bodies are not used; the credit is handed straight back so the client is never stuck
+        if (length > 0) windowUpdate(0, length);
+        Stream s = streams.get(stream);
+        if (s == null || s.remoteClosed) return;
+        if ((flags & END_STREAM) != 0) s.remoteClosed = true;
+        else if (length > 0) windowUpdate(stream, length);
+    }
+
+    private void onHeaders(int flags, int stream, ByteBuffer payload) throws ConnectionError {
+        if (stream == 0) throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        int padding = 0;
+        if ((flags & PADDED) != 0) {
+            if (!payload.hasRemaining()) throw new ConnectionError(FRAME_SIZE_ERROR, "HEADERS size");
+            padding = payload.get() & 0xff;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            if (payload.remaining() < 5) throw new ConnectionError(FRAME_SIZE_ERROR, "HEADERS size");
+            payload.position(payload.position() + 5);
+        }
+        if (padding > payload.remaining()) throw new ConnectionError(PROTOCOL_ERROR, "bad padding");
+        payload.limit(payload.limit() - padding);
+
+        Stream s = streams.get(stream);
+        boolean trailers = s != null && !s.remoteClosed;
+        if (!trailers) {
+            if ((stream & 1) == 0 || stream <= lastStreamId)
+                throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + stream);
+            lastStreamId = stream;
+        }
+        headerStream = stream;
+        headerFlags = flags;
+        headerBlock.reset();
+        appendHeaderBlock(payload);
+        if ((flags & END_HEADERS) != 0) endHeaderBlock();
+    }
+
+    private void onContinuation(int flags, int stream, ByteBuffer payload) throws ConnectionError {
+        if (headerStream == 0) throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        appendHeaderBlock(payload);
+        if ((flags & END_HEADERS) != 0) endHeaderBlock();
+    }
+
+    private void appendHeaderBlock(ByteBuffer payload) throws ConnectionError {
+        if (headerBlock.size() + payload.remaining() > MAX_HEADER_BLOCK)
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "header block over " + MAX_HEADER_BLOCK + " bytes");
+        while (payload.hasRemaining()) headerBlock.write(payload.get());
+    }
+
+    private void endHeaderBlock() throws ConnectionError {
+        int stream = headerStream;
+        boolean endStream = (headerFlags & END_STREAM) != 0;
+        headerStream = 0;
+        List<Hpack.Field> fields;
+        try {
+            // decoded even if the stream is refused, to keep the table in step
+            fields = decoder.decode(ByteBuffer.wrap(headerBlock.toByteArray()), MAX_HEADER_LIST);
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        Stream s = streams.get(stream);
+        if (s != null) { // trailers, which end the request
+            if (!endStream) throw new ConnectionError(PROTOCOL_ERROR, "trailers without END_STREAM");
+            s.remoteClosed = true;
+            return;
+        }
+        if (peerGoingAway) return;
+        if (streams.size() >= maxStreams) {
+            resetFrame(control, stream, REFUSED_STREAM);
+            return;
+        }
+        s = new Stream(stream);
+        s.remoteClosed = endStream;
+        if (!request(s, fields)) {
+            resetFrame(control, stream, PROTOCOL_ERROR);
+            return;
+        }
+        streams.put(stream, s);
+        handler.request(s);
+    }
+
+    /** Fills in a request from its header list; false if it is malformed */
+    private static boolean request(Stream s, List<Hpack.Field> fields) {
+        boolean regular = false;
+        for (Hpack.Field f : fields) {
+            String name = f.name;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c >= 'A' && c <= 'Z') return false;
+            }
+            if (name.startsWith(":")) {
+                if (regular) return false; // pseudo-headers come first
+                switch (name) {
+                    case ":method": if (s.method != null) return false; s.method = f.value; break;
+                    case ":scheme": if (s.scheme != null) return false; s.scheme = f.value; break;
+                    case ":authority": if (s.authority != null) return false; s.authority = f.value; break;
+                    case ":path":
+                        if (s.path != null || f.value.isEmpty()) return false;
+                        int q = f.value.indexOf('?');
+                        s.path = q < 0 ? f.value : f.value.substring(0, q);
+                        s.query = q < 0 ? null : f.value.substring(q + 1);
+                        break;
+                    default: return false;
+                }
+                continue;
+            }
+            regular = true;
+            if (CONNECTION_HEADERS.contains(name)) return false;
+            if (name.equals("te") && !f.value.equals("trailers")) return false;
+            String prev = s.headers.get(name);
+            s.headers.put(name, prev == null ? f.value : prev + (name.equals("cookie") ? "; " : ", ") + f.value);
+        }
+        if (s.authority == null) s.authority = s.headers.get("host");
+        return s.method != null && s.scheme != null && s.path != null;
+    }
+
+    private void onReset(int stream, ByteBuffer payload) throws ConnectionError {
+        if (stream == 0) throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        if (payload.remaining() != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM size");
+        if (stream > lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + stream);
+        Stream s = streams.remove(stream);
+        if (s != null) drop(s);
+    }
+
+    private void onSettings(int flags, int stream, ByteBuffer payload) throws ConnectionError {
+        if (stream != 0) throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+        if ((flags & ACK) != 0) {
+            if (payload.hasRemaining()) throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            return;
+        }
+        applySettings(payload);
+        settingsSeen = true;
+        frame(control, SETTINGS, ACK, 0, new byte[0]);
+    }
+
+    private void applySettings(ByteBuffer payload) throws ConnectionError {
+        if (payload.remaining() % 6 != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS size");
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            long value = payload.getInt() & 0xffffffffL;
+            switch (id) {
+                case HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case ENABLE_PUSH:
+                    if (value > 1) throw new ConnectionError(PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+                    break; // nothing is pushed either way
+                case INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) throw new ConnectionError(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + value);
+                    int delta = (int) value - initialWindow;
+                    initialWindow = (int) value;
+                    // open streams move by the difference, possibly below zero
+                    for (Stream s : streams.values()) {
+                        s.window += delta;
+                        if (s.window > MAX_WINDOW) throw new ConnectionError(FLOW_CONTROL_ERROR, "window overflow");
+                        if (s.window > 0) {
+                            schedule(s);
+                        } else if (s.scheduled) {
+                            // waits for a WINDOW_UPDATE that brings it above zero again
+                            s.scheduled = false;
+                            sending.remove(s);
+                        }
+                    }
+                    break;
+                case MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_LIMIT)
+                        throw new ConnectionError(PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+                    peerMaxFrame = (int) value;
+                    break;
+                default:
+                    break; // MAX_CONCURRENT_STREAMS limits pushes, MAX_HEADER_LIST_SIZE is advisory
+            }
+        }
+    }
+
+    private void onPing(int flags, int stream, ByteBuffer payload) throws ConnectionError {
+        if (stream != 0) throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+        if (payload.remaining() != 8) throw new ConnectionError(FRAME_SIZE_ERROR, "PING size");
+        if ((flags & ACK) != 0) return;
+        byte[] data = new byte[8];
+        payload.get(data);
+        frame(control, PING, ACK, 0, data);
+    }
+
+    private void onWindowUpdate(int stream, ByteBuffer payload) throws ConnectionError {
+        if (payload.remaining() != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE size");
+        int increment = payload.getInt() & 0x7fffffff;
+        if (stream == 0) {
+            if (increment == 0) throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            connectionWindow += increment;
+            if (connectionWindow > MAX_WINDOW) throw new ConnectionError(FLOW_CONTROL_ERROR, "window overflow");
+            return;
+        }
+        if (stream > lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + stream);
+        Stream s = streams.get(stream);
+        if (s == null) return; // already finished
+        if (increment == 0 || s.window + increment > MAX_WINDOW) {
+            reset(s, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+            return;
+        }
+        s.window += increment;
+        schedule(s);
+    }
+
+    /**
+     * Queues the frames collected so far, then DATA frames for up to
+     * {@code budget} bytes, taking one frame from each stream in turn so
+     * that concurrent responses progress together. Nothing is sent before the
+     * client's preface: after an upgrade, frames that arrive together with
+     * the 101 trip up some clients.
+     * @return the DATA bytes queued
+     */
+    long pump(long budget) {
+        if (closed || !prefaceSeen) return 0;
+        List<Object> parts = new ArrayList<>();
+        if (control.size() > 0) {
+            parts.add(ByteBuffer.wrap(control.toByteArray()));
+            control.reset();
+        }
+        long queued = 0;
+        ByteArrayOutputStream trailing = new ByteArrayOutputStream();
+        while (queued < budget && connectionWindow > 0 && !sending.isEmpty()) {
+            Stream s = sending.poll();
+            s.scheduled = false;
+            if (s.window <= 0) continue;
+            long n = Math.min(Math.min(peerMaxFrame, s.window), Math.min(connectionWindow, s.bodyRemaining()));
+            boolean last = n == s.bodyRemaining();
+            ByteBuffer head = ByteBuffer.allocate(FRAME_HEADER);
+            putFrameHeader(head, (int) n, DATA, last ? END_STREAM : 0, s.id);
+            head.flip();
+            if (s.bodyBuffer != null) {
+                ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + (int) n);
+                frame.put(head).put(s.bodyBuffer.slice(s.bodyBuffer.position(), (int) n)).flip();
+                s.bodyBuffer.position(s.bodyBuffer.position() + (int) n);
+                parts.add(frame);
+                if (last) s.bodyBuffer = null;
+            } else {
+                OutboundQueue.FileRegion r = s.bodyRegion;
+                // the last slice carries the region's release, earlier ones release nothing
+                parts.add(head);
+                parts.add(new OutboundQueue.FileRegion(r.channel, r.mapped, r.position, n, last ? r.release : () -> {}));
+                r.position += n;
+                r.remaining -= n;
+                if (last) s.bodyRegion = null;
+            }
+            s.window -= n;
+            connectionWindow -= n;
+            queued += n;
+            if (last) {
+                trailing.reset();
+                finish(s, trailing);
+                if (trailing.size() > 0) parts.add(ByteBuffer.wrap(trailing.toByteArray()));
+            } else {
+                schedule(s);
+            }
+        }
+        if (!parts.isEmpty()) out.queue(false, parts.toArray());
+        return queued;
+    }
+
+    /** Ends the connection gracefully: GOAWAY, then close once everything queued is sent */
+    void shutdown() {
+        goAway(NO_ERROR, null);
+    }
+
+    /** Drops the responses still waiting to be sent; the connection is closing */
+    void release() {
+        closed = true;
+        for (Stream s : streams.values()) releaseBody(s.bodyRegion);
+        streams.clear();
+        sending.clear();
+    }
+
+    /** Streams whose response has not been completely queued */
+    int active() {
+        return streams.size();
+    }
+
+    /** Whether frames are waiting for a pump that can send them */
+    boolean hasPending() {
+        return prefaceSeen && (control.size() > 0 || (!sending.isEmpty() && connectionWindow > 0));
+    }
+
+    private void goAway(int code, String debug) {
+        if (closed) return;
+        byte[] message = debug == null ? new byte[0] : debug.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + message.length).putInt(lastStreamId).putInt(code).put(message);
+        frame(control, GOAWAY, 0, 0, payload.array());
+        List<Object> parts = new ArrayList<>();
+        parts.add(ByteBuffer.wrap(control.toByteArray()));
+        control.reset();
+        for (Stream s : streams.values()) {
+            // a file body may have slices queued already, so its release goes behind them
+            if (s.bodyRegion != null) parts.add(deferredRelease(s.bodyRegion));
+        }
+        streams.clear();
+        sending.clear();
+        closed = true;
+        out.queue(true, parts.toArray());
+    }
+
+    /** RST_STREAM for a stream we give up on */
+    private void reset(Stream s, int code) {
+        streams.remove(s.id);
+        resetFrame(control, s.id, code);
+        drop(s);
+    }
+
+    /** Forgets a stream that was reset; its body is not sent */
+    private void drop(Stream s) {
+        sending.remove(s);
+        s.scheduled = false;
+        s.bodyBuffer = null;
+        if (s.bodyRegion != null) {
+            // slices of it may still be queued, so its release waits behind them
+            out.queue(false, deferredRelease(s.bodyRegion));
+            s.bodyRegion = null;
+        }
+    }
+
+    /** The response is completely queued: the stream is done, and the client told to stop any body it still sends */
+    private void finish(Stream s, ByteArrayOutputStream frames) {
+        streams.remove(s.id);
+        if (!s.remoteClosed) resetFrame(frames, s.id, NO_ERROR);
+    }
+
+    private void schedule(Stream s) {
+        if (!s.scheduled && s.bodyRemaining() > 0 && s.window > 0 && streams.containsKey(s.id)) {
+            s.scheduled = true;
+            sending.add(s);
+        }
+    }
+
+    private void writeHeaders(Stream s, int status, boolean endStream) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.begin(block);
+        encoder.encode(block, ":status", Integer.toString(status), true);
+        for (String[] h : s.responseHeaders) encoder.encode(block, h[0], h[1], !NOT_INDEXED.contains(h[0]));
+        byte[] b = block.toByteArray();
+        int offset = 0;
+        int type = HEADERS;
+        do {
+            int n = Math.min(b.length - offset, peerMaxFrame);
+            boolean lastFrame = offset + n == b.length;
+            int flags = (lastFrame ? END_HEADERS : 0) | (type == HEADERS && endStream ? END_STREAM : 0);
+            byte[] chunk = new byte[n];
+            System.arraycopy(b, offset, chunk, 0, n);
+            frame(control, type, flags, s.id, chunk);
+            offset += n;
+            type = CONTINUATION;
+        } while (offset < b.length);
+    }
+
+    private void windowUpdate(int stream, int increment) {
+        frame(control, WINDOW_UPDATE, 0, stream, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static void resetFrame(ByteArrayOutputStream to, int stream, int code) {
+        frame(to, RST_STREAM, 0, stream, ByteBuffer.allocate(4).putInt(code).array());
+    }
+
+    private static void frame(ByteArrayOutputStream to, int type, int flags, int stream, byte[] payload) {
+        ByteBuffer head = ByteBuffer.allocate(FRAME_HEADER);
+        putFrameHeader(head, payload.length, type, flags, stream);
+        to.write(head.array(), 0, FRAME_HEADER);
+        to.write(payload, 0, payload.length);
+    }
+
+    private static void putFrameHeader(ByteBuffer b, int length, int type, int flags, int stream) {
+        b.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length)
+                .put((byte) type).put((byte) flags).putInt(stream);
+    }
+
+    // an empty region whose only job is to run the release once the queue reaches it
+    private static OutboundQueue.FileRegion deferredRelease(OutboundQueue.FileRegion r) {
+        return new OutboundQueue.FileRegion(r.channel, r.mapped, r.position, 0, r.release);
+    }
+
+    private static void releaseBody(Object body) {
+        if (body instanceof OutboundQueue.FileRegion) ((OutboundQueue.FileRegion) body).release.run();
+    }
+}
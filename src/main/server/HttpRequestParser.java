@@ -0,0 +1,323 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Incremental HTTP/1.1 request-head parser that works in place on the
+ * connection's read buffer.
+ * It only records offsets of the method, path, query and headers, so parsing
+ * creates no Strings; values are decoded only when a caller asks for them.
+ * Each call resumes where the previous one stopped, so a head arriving over
+ * several reads is scanned exactly once.
+ */
+class HttpRequestParser {
+
+    enum Result { INCOMPLETE, COMPLETE, MALFORMED, TOO_MANY_HEADERS }
+
+    /** A header name pre-encoded in lower case together with its hash */
+    static final class Header {
+        final byte[] lower;
+        final int hash;
+
+        Header(String name) {
+            this.lower = name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+            int h = 0;
+            for (byte b : lower) h = 31 * h + b;
+            this.hash = mix(h);
+        }
+    }
+
+    static final Header CONNECTION        = new Header("Connection");
+    static final Header CONTENT_TYPE      = new Header("Content-Type");
+    static final Header CONTENT_LENGTH    = new Header("Content-Length");
+    static final Header RANGE             = new Header("Range");
+    static final Header IF_MODIFIED_SINCE = new Header("If-Modified-Since");
+    static final Header IF_RANGE          = new Header("If-Range");
+    static final Header IF_NONE_MATCH     = new Header("If-None-Match");
+    static final Header ACCEPT_ENCODING   = new Header("Accept-Encoding");
+    static final Header UPLOAD_LENGTH     = new Header("Upload-Length");
+    static final Header UPLOAD_OFFSET     = new Header("Upload-Offset");
+    static final Header UPLOAD_NAME       = new Header("Upload-Name");
+    static final Header UPGRADE           = new Header("Upgrade");
+    static final Header HTTP2_SETTINGS    = new Header("HTTP2-Settings");
+    static final Header HOST              = new Header("Host");
+
+    static final byte[] GET  = "GET".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] POST = "POST".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] HEAD   = "HEAD".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] PATCH  = "PATCH".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] DELETE = "DELETE".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_HEADERS = 64;
+    private static final int TABLE_MASK  = 127; // open-addressed, at most half full
+
+    private static final int S_METHOD = 0, S_TARGET = 1, S_VERSION = 2, S_REQUEST_LF = 3,
+            S_LINE_START = 4, S_NAME = 5, S_VALUE_WS = 6, S_VALUE = 7, S_HEADER_LF = 8,
+            S_END_LF = 9, S_DONE = 10;
+
+    private ByteBuffer buf;
+    private int start;   // absolute index of the first byte of this request
+    private int pos;     // next byte to scan, relative to start
+    private int state;
+
+    // all offsets below are relative to start
+    private int methodEnd, targetStart, targetEnd, queryStart, versionEnd, headEnd;
+    private final int[] nameStart  = new int[MAX_HEADERS];
+    private final int[] nameEnd    = new int[MAX_HEADERS];
+    private final int[] valueStart = new int[MAX_HEADERS];
+    private final int[] valueEnd   = new int[MAX_HEADERS];
+    private int headerCount;
+    private int nameHash;
+
+    // header-name hash -> header index + 1, 0 marks a free slot
+    private final int[] table = new int[TABLE_MASK + 1];
+
+    HttpRequestParser() {
+        reset(0);
+    }
+
+    /** Forgets the current request; the next one starts at absolute index {@code start} */
+    void reset(int start) {
+        this.start = start;
+        pos = 0;
+        state = S_METHOD;
+        queryStart = -1;
+        headEnd = 0;
+        if (headerCount > 0) Arrays.fill(table, 0);
+        headerCount = 0;
+    }
+
+    /** Call after the buffer was compacted by {@code delta} bytes towards index 0 */
+    void shift(int delta) {
+        start -= delta;
+    }
+
+    int start() {
+        return start;
+    }
+
+    /** Absolute index just past the blank line that ends the head */
+    int headEnd() {
+        return start + headEnd;
+    }
+
+    boolean isComplete() {
+        return state == S_DONE;
+    }
+
+    /**
+     * Scans the bytes of {@code buf} between the resume point and
+     * {@code buf.position()}; the buffer stays in write mode.
+     */
+    Result parse(ByteBuffer buf) {
+        this.buf = buf;
+        if (state == S_DONE) return Result.COMPLETE;
+        int limit = buf.position();
+        for (int i = start + pos; i < limit; i++) {
+            byte b = buf.get(i);
+            int rel = i - start;
+            switch (state) {
+                case S_METHOD:
+                    if (b == ' ' && rel > 0) { methodEnd = rel; targetStart = rel + 1; state = S_TARGET; }
+                    else if ((b == '\r' || b == '\n') && rel == 0) { start++; i = start - 1; }
+                    else if (b <= ' ' || b >= 127) return Result.MALFORMED;
+                    break;
+                case S_TARGET:
+                    if (b == ' ') { targetEnd = rel; state = S_VERSION; }
+                    else if (b == '?' && queryStart < 0) queryStart = rel + 1;
+                    else if (b == '\r' || b == '\n') return Result.MALFORMED;
+                    break;
+                case S_VERSION:
+                    if (b == '\r') { versionEnd = rel; state = S_REQUEST_LF; }
+                    else if (b == '\n') { versionEnd = rel; state = S_LINE_START; }
+                    break;
+                case S_REQUEST_LF:
+                case S_HEADER_LF:
+                    if (b != '\n') return Result.MALFORMED;
+                    state = S_LINE_START;
+                    break;
+                case S_LINE_START:
+                    if (b == '\r') { state = S_END_LF; break; }
+                    if (b == '\n') return complete(rel + 1);
+                    if (b == ' ' || b == '\t' || b == ':') return Result.MALFORMED; // no obsolete line folding
+                    if (headerCount == MAX_HEADERS) return Result.TOO_MANY_HEADERS;
+                    nameStart[headerCount] = rel;
+                    nameHash = lower(b);
+                    state = S_NAME;
+                    break;
+                case S_NAME:
+                    if (b == ':') { nameEnd[headerCount] = rel; state = S_VALUE_WS; }
+                    else if (b <= ' ') return Result.MALFORMED;
+                    else nameHash = 31 * nameHash + lower(b);
+                    break;
+                case S_VALUE_WS:
+                    if (b == ' ' || b == '\t') break;
+                    valueStart[headerCount] = rel;
+                    valueEnd[headerCount] = rel;
+                    if (b == '\r') { commitHeader(); state = S_HEADER_LF; }
+                    else if (b == '\n') { commitHeader(); state = S_LINE_START; }
+                    else { valueEnd[headerCount] = rel + 1; state = S_VALUE; }
+                    break;
+                case S_VALUE:
+                    if (b == '\r') { commitHeader(); state = S_HEADER_LF; }
+                    else if (b == '\n') { commitHeader(); state = S_LINE_START; }
+                    else if (b != ' ' && b != '\t') valueEnd[headerCount] = rel + 1;
+                    break;
+                case S_END_LF:
+                    if (b != '\n') return Result.MALFORMED;
+                    return complete(rel + 1);
+                default:
+                    return Result.MALFORMED;
+            }
+        }
+        pos = limit - start;
+        return Result.INCOMPLETE;
+    }
+
+    private Result complete(int end) {
+        headEnd = end;
+        state = S_DONE;
+        pos = end;
+        // a proxy in front that picked the other value would frame the body differently (RFC 9112 6.3)
+        return repeatsDiffer(CONTENT_LENGTH) ? Result.MALFORMED : Result.COMPLETE;
+    }
+
+    private void commitHeader() {
+        int slot = mix(nameHash) & TABLE_MASK;
+        while (table[slot] != 0) slot = (slot + 1) & TABLE_MASK;
+        table[slot] = headerCount + 1;
+        headerCount++;
+    }
+
+    /** Index of the first header called {@code name}, or -1 */
+    private int find(Header name) {
+        int slot = name.hash & TABLE_MASK;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int idx = entry - 1;
+            if (nameEquals(idx, name.lower)) return idx;
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return -1;
+    }
+
+    /** True if {@code name} appears more than once and not always with the same value */
+    private boolean repeatsDiffer(Header name) {
+        int slot = name.hash & TABLE_MASK;
+        int first = -1, entry;
+        while ((entry = table[slot]) != 0) {
+            int idx = entry - 1;
+            if (nameEquals(idx, name.lower)) {
+                if (first < 0) first = idx;
+                else if (!valueEquals(first, idx)) return true;
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return false;
+    }
+
+    private boolean valueEquals(int a, int b) {
+        int length = valueEnd[a] - valueStart[a];
+        if (valueEnd[b] - valueStart[b] != length) return false;
+        for (int i = 0; i < length; i++)
+            if (buf.get(start + valueStart[a] + i) != buf.get(start + valueStart[b] + i)) return false;
+        return true;
+    }
+
+    private boolean nameEquals(int idx, byte[] lower) {
+        int from = start + nameStart[idx];
+        if (nameEnd[idx] - nameStart[idx] != lower.length) return false;
+        for (int i = 0; i < lower.length; i++)
+            if (lower(buf.get(from + i)) != lower[i]) return false;
+        return true;
+    }
+
+    boolean methodIs(byte[] method) {
+        if (methodEnd != method.length) return false;
+        for (int i = 0; i < method.length; i++)
+            if (buf.get(start + i) != method[i]) return false;
+        return true;
+    }
+
+    String method() {
+        return ascii(0, methodEnd);
+    }
+
+    /** The request target without its query string */
+    String path() {
+        return ascii(targetStart, queryStart >= 0 ? queryStart - 1 : targetEnd);
+    }
+
+    /** The raw query string, or null if the target has none */
+    String query() {
+        return queryStart >= 0 ? ascii(queryStart, targetEnd) : null;
+    }
+
+    String requestLine() {
+        return ascii(0, versionEnd);
+    }
+
+    boolean hasHeader(Header name) {
+        return find(name) >= 0;
+    }
+
+    /** The trimmed header value, or null when absent */
+    String header(Header name) {
+        int idx = find(name);
+        return idx < 0 ? null : ascii(valueStart[idx], valueEnd[idx]);
+    }
+
+    boolean headerEqualsIgnoreCase(Header name, String value) {
+        int idx = find(name);
+        if (idx < 0 || valueEnd[idx] - valueStart[idx] != value.length()) return false;
+        return regionMatches(start + valueStart[idx], value);
+    }
+
+    boolean headerContainsIgnoreCase(Header name, String needle) {
+        int idx = find(name);
+        if (idx < 0) return false;
+        int from = start + valueStart[idx], to = start + valueEnd[idx] - needle.length();
+        for (int i = from; i <= to; i++)
+            if (regionMatches(i, needle)) return true;
+        return false;
+    }
+
+    /**
+     * Parses a non-negative decimal header value without allocating.
+     * @return the value, -1 if absent, -2 if not a valid number
+     */
+    long headerLong(Header name) {
+        int idx = find(name);
+        if (idx < 0) return -1;
+        int from = start + valueStart[idx], to = start + valueEnd[idx];
+        if (from == to || to - from > 18) return -2;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buf.get(i);
+            if (b < '0' || b > '9') return -2;
+            v = v * 10 + (b - '0');
+        }
+        return v;
+    }
+
+    private boolean regionMatches(int from, String lowerAscii) {
+        for (int i = 0; i < lowerAscii.length(); i++)
+            if (lower(buf.get(from + i)) != Character.toLowerCase(lowerAscii.charAt(i))) return false;
+        return true;
+    }
+
+    private String ascii(int from, int to) {
+        byte[] out = new byte[to - from];
+        buf.get(start + from, out);
+        return new String(out, StandardCharsets.US_ASCII);
+    }
+
+    private static int lower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b | 0x20 : b;
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in the HdrHistogram layout: every power of two
+ * is split into 16 linear sub-buckets, so a recorded value keeps about 6%
+ * precision from nanoseconds up to minutes in under a thousand counters.
+ * Recording is one index computation and one atomic increment, cheap
+ * enough for every request; reads sum the counters and are meant for the
+ * occasional scrape.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    /** Records one value, in nanoseconds; negative values count as 0 */
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+    }
+
+    static int index(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /** Smallest value that falls into bucket {@code i} */
+    static long lowerBound(int i) {
+        if (i < SUB_COUNT) return i;
+        int exp = i / SUB_COUNT + SUB_BITS - 1;
+        return (long) (SUB_COUNT + i % SUB_COUNT) << (exp - SUB_BITS);
+    }
+
+    /** Largest value that falls into bucket {@code i} */
+    static long upperBound(int i) {
+        return i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    long sumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * The value below which {@code quantile} of the recordings fall, to bucket
+     * precision (the bucket's upper bound); 0 when nothing was recorded.
+     */
+    long valueAt(double quantile) {
+        long[] snap = snapshot();
+        long total = 0;
+        for (long c : snap) total += c;
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snap[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * A copy corrected for coordinated omission, like HdrHistogram's
+     * copyCorrectedForCoordinatedOmission: a client that waits for each
+     * response before sending the next request sends nothing during a stall,
+     * so for every recording longer than {@code expectedIntervalNanos} the
+     * copy adds the requests that would have been sent meanwhile, with
+     * latencies falling by one interval each. Uses each bucket's lower
+     * bound, so it never corrects by more than the recordings justify.
+     */
+    LatencyHistogram correctedFor(long expectedIntervalNanos) {
+        LatencyHistogram out = new LatencyHistogram();
+        long[] snap = snapshot();
+        out.sum.add(sum.sum());
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = snap[i];
+            if (c == 0) continue;
+            out.counts.addAndGet(i, c);
+            if (expectedIntervalNanos <= 0) continue;
+            for (long v = lowerBound(i) - expectedIntervalNanos; v >= expectedIntervalNanos; v -= expectedIntervalNanos) {
+                out.counts.addAndGet(index(v), c);
+                out.sum.add(v * c);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Cumulative counts for Prometheus buckets: element k is the number of
+     * recordings whose bucket lies entirely at or below {@code bounds[k]}, and
+     * the extra last element is the total. Bounds must be ascending.
+     */
+    long[] cumulative(long[] bounds) {
+        long[] snap = snapshot();
+        long[] out = new long[bounds.length + 1];
+        int k = 0;
+        long running = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            while (k < bounds.length && upperBound(i) > bounds[k]) out[k++] = running;
+            running += snap[i];
+        }
+        while (k < bounds.length) out[k++] = running;
+        out[bounds.length] = running;
+        return out;
+    }
+
+    private long[] snapshot() {
+        long[] snap = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) snap[i] = counts.get(i);
+        return snap;
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared, reference-counted open files for large media, so concurrent
+ * viewers of the same video reuse one FileChannel (and, in MMAP mode, one
+ * mapping) instead of opening the file per request.
+ * A handle whose last user released it is closed after it stayed idle for
+ * the configured time; a handle whose file changed on disk is retired and
+ * closed as soon as its current users are done.
+ */
+class MediaChannelCache {
+
+    /** How file regions are sent to the socket */
+    enum Mode {
+        SENDFILE,  // FileChannel.transferTo
+        MMAP       // writes from a MappedByteBuffer shared by all readers
+    }
+
+    // a single mapping is limited to 2 GB; bigger files always use transferTo
+    private static final long MAX_MAPPED = Integer.MAX_VALUE;
+
+    /** One open file shared by every response currently streaming it */
+    final class Handle {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer mapped;
+        final long size;
+        final long lastModified;
+        private int refs = 0;
+        private long idleSince;
+        private boolean retired = false;
+
+        Handle(Path path, FileChannel channel, MappedByteBuffer mapped, long size, long lastModified) {
+            this.path = path;
+            this.channel = channel;
+            this.mapped = mapped;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /** A region of this file for the outbound queue; releases the handle once sent */
+        OutboundQueue.FileRegion region(long position, long count) {
+            return new OutboundQueue.FileRegion(channel, mapped, position, count, () -> release(this));
+        }
+
+        private void close() {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private final Mode mode;
+    private final long idleMillis;
+    private final Map<Path, Handle> handles = new HashMap<>();
+
+    MediaChannelCache(Mode mode, long idleMillis) {
+        this.mode = mode;
+        this.idleMillis = idleMillis;
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "media-channel-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleWithFixedDelay(this::closeIdle, idleMillis, Math.max(1, idleMillis / 2), TimeUnit.MILLISECONDS);
+    }
+
+    Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Returns a handle for the file, opening it only if no live handle
+     * matches the given size and modification time.
+     * Every acquire must be paired with exactly one release, which happens
+     * automatically when a region from {@link Handle#region} is fully sent
+     * or dropped.
+     */
+    synchronized Handle acquire(Path path, long size, long lastModified) throws IOException {
+        Handle h = handles.get(path);
+        if (h != null && (h.size != size || h.lastModified != lastModified)) {
+            handles.remove(path);
+            h.retired = true;
+            if (h.refs == 0) h.close();
+            h = null;
+        }
+        if (h == null) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            MappedByteBuffer mapped = null;
+            try {
+                if (mode == Mode.MMAP && size > 0 && size <= MAX_MAPPED)
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            h = new Handle(path, channel, mapped, size, lastModified);
+            handles.put(path, h);
+        }
+        h.refs++;
+        return h;
+    }
+
+    synchronized void release(Handle h) {
+        if (--h.refs > 0) return;
+        h.idleSince = System.currentTimeMillis();
+        if (h.retired) h.close();
+    }
+
+    /** Number of files currently held open */
+    synchronized int openFiles() {
+        return handles.size();
+    }
+
+    private synchronized void closeIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        Iterator<Handle> it = handles.values().iterator();
+        while (it.hasNext()) {
+            Handle h = it.next();
+            if (h.refs == 0 && h.idleSince <= cutoff) {
+                it.remove();
+                h.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Server metrics in the Prometheus text format: a latency histogram per
+ * route, byte counters kept here, and gauges or counters registered as
+ * suppliers that are read only when /metrics is scraped. Nothing on the
+ * request path takes a lock.
+ */
+final class Metrics {
+
+    /** The routes latency is tracked for */
+    enum Route {
+        INDEX("/"),
+        IMAGES("/images"),
+        FILES("/files"),
+        VIDEO("/video"),
+        UPLOADS("/uploads"),
+        PLAYLIST("/playlist"),
+        METRICS("/metrics"),
+        UPLOAD("upload"); // POST bodies, multipart or not
+
+        final String label;
+
+        Route(String label) {
+            this.label = label;
+        }
+
+        /** The route of a GET path; anything outside the named folders is served from Public */
+        static Route of(String path) {
+            if (path.startsWith("/images/")) return IMAGES;
+            if (path.startsWith("/files/")) return FILES;
+            if (path.startsWith("/video/")) return VIDEO;
+            if (path.startsWith("/uploads/")) return UPLOADS;
+            if (path.equals("/playlist")) return PLAYLIST;
+            if (path.equals("/metrics")) return METRICS;
+            return INDEX;
+        }
+    }
+
+    // Prometheus "le" bucket bounds: 100 us .. 10 s
+    private static final double[] BOUNDS_SECONDS =
+            {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+    private static final String[] BOUNDS_LABELS = new String[BOUNDS_SECONDS.length];
+    static {
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            BOUNDS_NANOS[i] = Math.round(BOUNDS_SECONDS[i] * 1e9);
+            BOUNDS_LABELS[i] = BigDecimal.valueOf(BOUNDS_SECONDS[i]).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private static final class Sample {
+        final String name, help, type;
+        final DoubleSupplier value;
+
+        Sample(String name, String help, String type, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[Route.values().length];
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder http2Connections = new LongAdder();
+    final LongAdder http2Streams = new LongAdder();
+    private final List<Sample> samples = new ArrayList<>();
+
+    Metrics() {
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
+        counter("http_sent_bytes_total", "Response bytes written to sockets", bytesSent::sum);
+        counter("http_received_bytes_total", "Request bytes read from sockets", bytesReceived::sum);
+        counter("http2_connections_total", "Connections that switched to HTTP/2", http2Connections::sum);
+        counter("http2_streams_total", "Requests received over HTTP/2", http2Streams::sum);
+    }
+
+    /** Records one request, from its parsed head to its queued response */
+    void record(Route route, long nanos) {
+        latency[route.ordinal()].record(nanos);
+    }
+
+    LatencyHistogram latency(Route route) {
+        return latency[route.ordinal()];
+    }
+
+    /** Registers a value that only goes up; the name should end in _total */
+    synchronized void counter(String name, String help, DoubleSupplier value) {
+        samples.add(new Sample(name, help, "counter", value));
+    }
+
+    synchronized void gauge(String name, String help, DoubleSupplier value) {
+        samples.add(new Sample(name, help, "gauge", value));
+    }
+
+    /** Everything in the Prometheus text exposition format, version 0.0.4 */
+    synchronized String render() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        String h = "http_request_duration_seconds";
+        sb.append("# HELP ").append(h).append(" Time from a parsed request head to its queued response\n");
+        sb.append("# TYPE ").append(h).append(" histogram\n");
+        for (Route r : Route.values()) {
+            LatencyHistogram hist = latency[r.ordinal()];
+            long[] cum = hist.cumulative(BOUNDS_NANOS);
+            String label = "{route=\"" + r.label + "\"";
+            for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+                sb.append(h).append("_bucket").append(label).append(",le=\"")
+                        .append(BOUNDS_LABELS[i]).append("\"} ").append(cum[i]).append('\n');
+            }
+            long count = cum[BOUNDS_SECONDS.length];
+            sb.append(h).append("_bucket").append(label).append(",le=\"+Inf\"} ").append(count).append('\n');
+            sb.append(h).append("_sum").append(label).append("} ").append(hist.sumNanos() / 1e9).append('\n');
+            sb.append(h).append("_count").append(label).append("} ").append(count).append('\n');
+        }
+        for (Sample s : samples) {
+            sb.append("# HELP ").append(s.name).append(' ').append(s.help).append('\n');
+            sb.append("# TYPE ").append(s.name).append(' ').append(s.type).append('\n');
+            sb.append(s.name).append(' ');
+            double v = s.value.getAsDouble();
+            if (v == Math.rint(v) && Math.abs(v) < 1e15) sb.append((long) v);
+            else sb.append(v);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
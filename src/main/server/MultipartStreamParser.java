@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Incremental multipart/form-data parser that is fed the request body chunk
+ * by chunk as it arrives and writes every file part straight to the uploads
+ * directory, under a temporary name until the part has ended so that
+ * nothing half-written can be downloaded or listed.
+ * Heap use is constant: part bodies are written from the caller's buffer, and
+ * only part headers and a possible partial boundary (a few bytes) are
+ * carried over between chunks.
+ */
+class MultipartStreamParser {
+
+    private static final int MAX_PART_HEADER = 8192;
+
+    /**
+     * Suffix of an upload still being written; the file gets its final name once complete.
+     * {@link #safeFileName} never lets a '~' through, so no finished upload ends with it.
+     */
+    static final String TEMP_SUFFIX = ".tmp~";
+
+    private static final int S_BODY = 0, S_AFTER_BOUNDARY = 1, S_HEADERS = 2, S_DONE = 3;
+
+    private final Path dir;
+    private final BytePattern delimiter;   // CRLF "--" boundary
+    private final byte[] carry;            // bytes that may be the start of a delimiter
+    private int carryLen = 0;
+    private final byte[] headerBuf = new byte[MAX_PART_HEADER];
+    private int headerLen = 0;
+    private final byte[] afterBoundary = new byte[2];
+    private int afterLen = 0;
+
+    private int state = S_BODY;
+    private boolean sawBoundary = false;
+
+    private FileChannel current;           // null while skipping a preamble or non-file field
+    private String currentName;
+    private long currentSize;
+
+    private final List<Path> created = new ArrayList<>(); // final names, and the temporary one being written
+    private final List<String> saved = new ArrayList<>();
+    private final List<Long> savedSizes = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+
+    MultipartStreamParser(String boundary, Path dir) {
+        this.dir = dir;
+        this.delimiter = new BytePattern(("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII));
+        this.carry = new byte[delimiter.length()];
+        // the body starts with "--boundary"; pretend a CRLF preceded it so the
+        // first boundary is found by the same delimiter search as the others
+        carry[0] = '\r';
+        carry[1] = '\n';
+        carryLen = 2;
+    }
+
+    /** Names of the files written so far */
+    List<String> saved() {
+        return saved;
+    }
+
+    List<Long> savedSizes() {
+        return savedSizes;
+    }
+
+    List<String> errors() {
+        return errors;
+    }
+
+    /**
+     * Consumes all remaining bytes of {@code chunk}.
+     * @throws IOException if writing a part to disk fails
+     */
+    void feed(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining() && state != S_DONE) {
+            switch (state) {
+                case S_BODY:           feedBody(chunk); break;
+                case S_AFTER_BOUNDARY: feedAfterBoundary(chunk); break;
+                case S_HEADERS:        feedHeaders(chunk); break;
+                default: break;
+            }
+        }
+        chunk.position(chunk.limit());
+    }
+
+    private void feedBody(ByteBuffer chunk) throws IOException {
+        if (carryLen > 0 && !resolveCarry(chunk)) return;
+        if (state != S_BODY) return;
+
+        int p = chunk.position(), end = chunk.limit();
+        int hit = delimiter.indexOf(chunk, p, end);
+        if (hit >= 0) {
+            writeData(chunk, p, hit);
+            chunk.position(hit + delimiter.length());
+            endPart();
+            return;
+        }
+        // keep a trailing partial delimiter for the next chunk
+        int keep = delimiter.prefixAtEnd(chunk, p, end);
+        writeData(chunk, p, end - keep);
+        for (int i = 0; i < keep; i++) carry[i] = chunk.get(end - keep + i);
+        carryLen = keep;
+        chunk.position(end);
+    }
+
+    /**
+     * The carry holds a prefix of the delimiter. Decides, using the head of
+     * the new chunk, whether it completes one.
+     * @return false if the chunk was used up and the decision is still open
+     */
+    private boolean resolveCarry(ByteBuffer chunk) throws IOException {
+        while (carryLen > 0) {
+            int p = chunk.position();
+            int need = delimiter.length() - carryLen;
+            int avail = Math.min(need, chunk.remaining());
+            int matched = 0;
+            while (matched < avail && chunk.get(p + matched) == delimiter.at(carryLen + matched)) matched++;
+
+            if (matched == need) {
+                chunk.position(p + need);
+                carryLen = 0;
+                endPart();
+                return true;
+            }
+            if (matched == avail) {
+                for (int i = 0; i < avail; i++) carry[carryLen++] = chunk.get(p + i);
+                chunk.position(p + avail);
+                return false;
+            }
+            // not a delimiter: emit the first carried byte as data and retry with the rest
+            writeCarried(1);
+            while (carryLen > 0 && !delimiter.isPrefix(carry, carryLen)) writeCarried(1);
+        }
+        return true;
+    }
+
+    private void feedAfterBoundary(ByteBuffer chunk) {
+        while (afterLen < 2 && chunk.hasRemaining()) afterBoundary[afterLen++] = chunk.get();
+        if (afterLen < 2) return;
+        afterLen = 0;
+        if (afterBoundary[0] == '-' && afterBoundary[1] == '-') {
+            state = S_DONE;
+        } else if (afterBoundary[0] == '\r' && afterBoundary[1] == '\n') {
+            headerLen = 0;
+            state = S_HEADERS;
+        } else {
+            errors.add("Malformed multipart boundary");
+            state = S_DONE;
+        }
+    }
+
+    private void feedHeaders(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            if (headerLen == MAX_PART_HEADER) {
+                errors.add("Part headers too large");
+                state = S_DONE;
+                return;
+            }
+            headerBuf[headerLen++] = chunk.get();
+            if (headerLen >= 4 && headerBuf[headerLen - 4] == '\r' && headerBuf[headerLen - 3] == '\n'
+                    && headerBuf[headerLen - 2] == '\r' && headerBuf[headerLen - 1] == '\n') {
+                String partHeaders = new String(headerBuf, 0, headerLen - 4, StandardCharsets.US_ASCII);
+                beginPart(partHeaders);
+                state = S_BODY;
+                return;
+            }
+        }
+    }
+
+    private void beginPart(String partHeaders) throws IOException {
+        String filename = extractFilename(extractPartHeader(partHeaders, "Content-Disposition"));
+        if (filename == null || filename.isEmpty()) return; // plain text field, skip
+
+        currentName = createTemp(dir, safeFileName(filename));
+        currentSize = 0;
+        Path temp = dir.resolve(currentName + TEMP_SUFFIX);
+        created.add(temp);
+        current = FileChannel.open(temp, StandardOpenOption.WRITE);
+    }
+
+    private void endPart() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+            String name = publish(dir, currentName);
+            created.set(created.size() - 1, dir.resolve(name));
+            saved.add(name);
+            savedSizes.add(currentSize);
+        }
+        sawBoundary = true;
+        state = S_AFTER_BOUNDARY;
+    }
+
+    /**
+     * Called once the whole body was fed. A last part without a closing
+     * boundary is kept, as the old whole-body parser did.
+     */
+    void finish() throws IOException {
+        if (state == S_BODY && carryLen > 0 && sawBoundary) writeCarried(carryLen);
+        if (current != null) endPart();
+        if (!sawBoundary) errors.add("Malformed multipart body");
+        state = S_DONE;
+    }
+
+    /** Closes and deletes every file this upload created */
+    void abort() {
+        if (current != null) {
+            try { current.close(); } catch (IOException ignored) {}
+            current = null;
+        }
+        for (Path p : created) {
+            try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+        }
+        saved.clear();
+        savedSizes.clear();
+        state = S_DONE;
+    }
+
+    private void writeData(ByteBuffer chunk, int from, int to) throws IOException {
+        if (to <= from || current == null) return;
+        ByteBuffer slice = chunk.duplicate();
+        slice.limit(to).position(from);
+        while (slice.hasRemaining()) current.write(slice);
+        currentSize += to - from;
+    }
+
+    private void writeCarried(int n) throws IOException {
+        if (current != null) {
+            ByteBuffer b = ByteBuffer.wrap(carry, 0, n);
+            while (b.hasRemaining()) current.write(b);
+            currentSize += n;
+        }
+        System.arraycopy(carry, n, carry, 0, carryLen - n);
+        carryLen -= n;
+    }
+
+    /** The last path element of a client-supplied name, with anything but [a-zA-Z0-9._-] replaced */
+    static String safeFileName(String filename) {
+        Path last = Paths.get(filename).getFileName();
+        String name = last == null ? "" : last.toString().replaceAll("[^a-zA-Z0-9._\\-]", "_");
+        // "." and ".." would name the uploads folder or its parent
+        return name.isEmpty() || name.equals(".") || name.equals("..") ? "_" : name;
+    }
+
+    /**
+     * Picks the first candidate name that is free both as a file and as a
+     * temporary file, and creates the temporary file {@code <name>.tmp~}.
+     * @return the name, without the suffix
+     */
+    static String createTemp(Path dir, String filename) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            String name = candidateName(filename, attempt);
+            try {
+                if (Files.exists(dir.resolve(name))) throw new FileAlreadyExistsException(name);
+                Files.createFile(dir.resolve(name + TEMP_SUFFIX));
+                return name;
+            } catch (FileAlreadyExistsException e) {
+                if (attempt > 10) throw e;
+            }
+        }
+    }
+
+    /**
+     * Gives a complete temporary file its final name, or a free variant of
+     * it if another upload took the name meanwhile.
+     * @return the name the file now has
+     */
+    static String publish(Path dir, String name) throws IOException {
+        Path temp = dir.resolve(name + TEMP_SUFFIX);
+        for (int attempt = 0; ; attempt++) {
+            String target = candidateName(name, attempt);
+            try {
+                Files.move(temp, dir.resolve(target));
+                return target;
+            } catch (FileAlreadyExistsException e) {
+                if (attempt > 10) throw e;
+            }
+        }
+    }
+
+    /** The name to try on attempt n when earlier names were taken: a.png, a_<millis>.png, a_<millis>_2.png */
+    static String candidateName(String filename, int attempt) {
+        if (attempt == 0) return filename;
+        String ext  = filename.contains(".") ? filename.substring(filename.lastIndexOf('.')) : "";
+        String base = filename.contains(".") ? filename.substring(0, filename.lastIndexOf('.')) : filename;
+        return base + "_" + System.currentTimeMillis() + (attempt > 1 ? "_" + attempt : "") + ext;
+    }
+
+    static String extractFilename(String disposition) {
+        if (disposition == null) return null;
+        for (String p : disposition.split(";")) {
+            p = p.trim();
+            if (p.toLowerCase(Locale.ROOT).startsWith("filename=")) {
+                String v = p.substring("filename=".length()).trim();
+                if (v.startsWith("\"") && v.endsWith("\"")) v = v.substring(1, v.length()-1);
+                return v;
+            }
+        }
+        return null;
+    }
+
+    private static String extractPartHeader(String partHeaders, String name) {
+        for (String line : partHeaders.split("\r\n"))
+            if (line.toLowerCase(Locale.ROOT).startsWith(name.toLowerCase(Locale.ROOT) + ":"))
+                return line.substring(line.indexOf(':')+1).trim();
+        return null;
+    }
+}
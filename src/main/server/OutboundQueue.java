@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+
+/**
+ * Per-connection queue of response data waiting to be written.
+ * Any thread may append or drain; draining never blocks, it stops as soon as
+ * the socket send buffer is full and the caller waits for OP_WRITE.
+ * One drain call sends at most DRAIN_BUDGET bytes, so a single large stream
+ * cannot monopolise the selector loop it shares with other connections.
+ * <p>
+ * Pipelined requests may finish out of order, so every response has a
+ * sequence number reserved in request order, and a response that completes
+ * early waits until all earlier ones have been queued.
+ */
+class OutboundQueue {
+
+    private static final long DRAIN_BUDGET = 512 * 1024;
+
+    /**
+     * A slice of a file still to be sent, either from a channel with
+     * transferTo (sendfile) or from a memory-mapped view of the file.
+     * The release action runs once the region is fully sent or dropped.
+     */
+    static final class FileRegion {
+        final FileChannel channel;
+        final ByteBuffer mapped;
+        final Runnable release;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel channel, ByteBuffer mapped, long position, long count, Runnable release) {
+            this.channel = channel;
+            this.mapped = mapped;
+            this.position = position;
+            this.remaining = count;
+            this.release = release;
+        }
+
+        long send(SocketChannel client, long max) throws IOException {
+            if (mapped == null) return channel.transferTo(position, Math.min(remaining, max), client);
+            ByteBuffer slice = mapped.slice((int) position, (int) Math.min(remaining, max));
+            return client.write(slice);
+        }
+    }
+
+    /** A response that completed before an earlier one */
+    private static final class Parked {
+        final Object[] parts;
+        final boolean close;
+
+        Parked(Object[] parts, boolean close) {
+            this.parts = parts;
+            this.close = close;
+        }
+    }
+
+    private final ArrayDeque<Object> items = new ArrayDeque<>();
+    private long pendingBytes = 0;
+    private boolean closeWhenDrained = false;
+
+    private long nextSeq = 0;     // next number handed out by reserve()
+    private long nextToQueue = 0; // the response that may be queued next
+    private final TreeMap<Long, Parked> parked = new TreeMap<>();
+
+    /** Reserves the next response slot; must be called in request order */
+    synchronized long reserve() {
+        return nextSeq++;
+    }
+
+    /**
+     * Supplies the response for a reserved slot. Its parts are appended
+     * atomically once every earlier response has been, so responses produced
+     * by different threads neither interleave nor overtake each other.
+     * @param close close the connection once this response is written;
+     *              responses after it are dropped
+     * @param parts ByteBuffers (ready to read) and FileRegions, in order
+     */
+    synchronized void complete(long seq, boolean close, Object... parts) {
+        if (closeWhenDrained) {
+            releaseAll(parts);
+            return;
+        }
+        if (seq != nextToQueue) {
+            parked.put(seq, new Parked(parts, close));
+            return;
+        }
+        enqueue(parts, close);
+        Parked p;
+        while (!closeWhenDrained && (p = parked.remove(nextToQueue)) != null) enqueue(p.parts, p.close);
+        if (closeWhenDrained) releaseParked();
+    }
+
+    private void enqueue(Object[] parts, boolean close) {
+        for (Object part : parts) {
+            if (part instanceof ByteBuffer) pendingBytes += ((ByteBuffer) part).remaining();
+            else pendingBytes += ((FileRegion) part).remaining;
+            items.add(part);
+        }
+        nextToQueue++;
+        if (close) closeWhenDrained = true;
+    }
+
+    /** Responses reserved but not yet queued, i.e. still being produced or waiting their turn */
+    synchronized long unfinished() {
+        return nextSeq - nextToQueue;
+    }
+
+    synchronized boolean isClosing() {
+        return closeWhenDrained;
+    }
+
+    synchronized boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /** Bytes (heap and file) still queued */
+    synchronized long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Writes as much as the socket accepts right now.
+     * @return true when the queue is empty afterwards
+     * @throws IOException if the peer went away or a file shrank under us
+     */
+    synchronized boolean drain(SocketChannel client) throws IOException {
+        long budget = DRAIN_BUDGET;
+        while (!items.isEmpty()) {
+            if (budget <= 0) return false;
+            Object head = items.peek();
+            if (head instanceof ByteBuffer) {
+                ByteBuffer buf = (ByteBuffer) head;
+                int sent = client.write(buf);
+                pendingBytes -= sent;
+                budget -= sent;
+                if (buf.hasRemaining()) return false;
+            } else {
+                FileRegion region = (FileRegion) head;
+                long sent = region.send(client, budget);
+                region.position += sent;
+                region.remaining -= sent;
+                pendingBytes -= sent;
+                budget -= sent;
+                if (region.remaining > 0) {
+                    if (sent == 0 && region.mapped == null && region.position >= region.channel.size())
+                        throw new IOException("File truncated while sending");
+                    if (sent == 0) return false;
+                    continue;
+                }
+                region.release.run();
+            }
+            items.poll();
+        }
+        return true;
+    }
+
+    /** Drops everything still queued and closes any open file channels */
+    synchronized void release() {
+        releaseAll(items.toArray());
+        items.clear();
+        pendingBytes = 0;
+        releaseParked();
+    }
+
+    private void releaseParked() {
+        for (Parked p : parked.values()) releaseAll(p.parts);
+        parked.clear();
+    }
+
+    private static void releaseAll(Object[] parts) {
+        for (Object part : parts) {
+            if (part instanceof FileRegion) ((FileRegion) part).release.run();
+        }
+    }
+}
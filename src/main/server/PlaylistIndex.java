@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * In-memory index of the uploads folder behind /playlist, kept current by a
+ * WatchService and by the upload path instead of listing the folder on
+ * every request.
+ * Every change bumps a version; the JSON for a version is rendered once and
+ * then served as is, together with its gzip/deflate forms once asked for.
+ * Entries are sorted by name, so a name works as a stable page cursor.
+ */
+class PlaylistIndex {
+
+    static final int MAX_LIMIT = 1000;
+
+    /** The full playlist at one version, rendered once */
+    static final class Snapshot {
+        final long version;
+        final String etag;
+        final byte[] json;
+        private final byte[][] encoded = new byte[Compression.Encoding.values().length][];
+
+        Snapshot(long version, String etag, byte[] json) {
+            this.version = version;
+            this.etag = etag;
+            this.json = json;
+        }
+
+        /** The body in the given encoding, compressed on first use */
+        synchronized byte[] encoded(Compression.Encoding enc) {
+            byte[] b = encoded[enc.ordinal()];
+            if (b == null) b = encoded[enc.ordinal()] = Compression.compress(json, enc);
+            return b;
+        }
+    }
+
+    private final Path dir;
+    private final TreeMap<String, String> items = new TreeMap<>(); // name -> "video" / "image"
+    // tags must not repeat across restarts, when the version starts over
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private volatile long version = 0;
+    private volatile Snapshot snapshot;
+
+    PlaylistIndex(Path dir) throws IOException {
+        this.dir = dir;
+        rescan();
+    }
+
+    /** Re-reads the whole folder; used at startup and when watch events were lost */
+    synchronized void rescan() throws IOException {
+        items.clear();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                if (Files.isDirectory(p)) continue;
+                String name = p.getFileName().toString();
+                if (listed(name)) items.put(name, typeOf(name));
+            }
+        }
+        version++;
+    }
+
+    /** Records a file that now exists in the folder, e.g. a finished upload */
+    synchronized void added(String name) {
+        if (listed(name) && items.put(name, typeOf(name)) == null) version++;
+    }
+
+    synchronized void removed(String name) {
+        if (items.remove(name) != null) version++;
+    }
+
+    synchronized int size() {
+        return items.size();
+    }
+
+    /** The current playlist; re-rendered only if it changed since the last call */
+    Snapshot snapshot() {
+        Snapshot s = snapshot;
+        if (s != null && s.version == version) return s;
+        synchronized (this) {
+            s = snapshot;
+            if (s != null && s.version == version) return s;
+            StringBuilder sb = new StringBuilder(items.size() * 40 + 2).append('[');
+            appendItems(sb, items.entrySet().iterator(), Integer.MAX_VALUE);
+            s = new Snapshot(version, "\"pl-" + epoch + "-" + version + "\"",
+                    sb.append(']').toString().getBytes(StandardCharsets.UTF_8));
+            snapshot = s;
+            return s;
+        }
+    }
+
+    /**
+     * One page of the playlist:
+     * {@code {"version":..,"items":[..],"next":"<cursor>"|null}}.
+     * @param cursor the name after which the page starts, or null for the first page
+     */
+    synchronized byte[] page(String cursor, int limit) {
+        limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        Map<String, String> tail = cursor == null ? items : items.tailMap(cursor, false);
+        Iterator<Map.Entry<String, String>> it = tail.entrySet().iterator();
+        StringBuilder sb = new StringBuilder(limit * 40 + 64)
+                .append("{\"version\":").append(version).append(",\"items\":[");
+        String last = appendItems(sb, it, limit);
+        sb.append("],\"next\":");
+        if (it.hasNext() && last != null) appendString(sb, last);
+        else sb.append("null");
+        return sb.append('}').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Appends up to {@code max} items and returns the last name written */
+    private static String appendItems(StringBuilder sb, Iterator<Map.Entry<String, String>> it, int max) {
+        String last = null;
+        for (int n = 0; n < max && it.hasNext(); n++) {
+            Map.Entry<String, String> e = it.next();
+            if (n > 0) sb.append(',');
+            sb.append("{\"name\":");
+            appendString(sb, e.getKey());
+            sb.append(",\"type\":\"").append(e.getValue()).append("\"}");
+            last = e.getKey();
+        }
+        return last;
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    // uploads being received keep their temporary name until complete
+    private static boolean listed(String name) {
+        return !name.endsWith(MultipartStreamParser.TEMP_SUFFIX);
+    }
+
+    private static String typeOf(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".mp4") || lower.endsWith(".webm") || lower.endsWith(".ogg")
+                || lower.endsWith(".mov") || lower.endsWith(".avi")) {
+            return "video";
+        }
+        return "image";
+    }
+
+    /** Starts a daemon thread that applies create/delete events of the folder */
+    void watch() throws IOException {
+        WatchService ws = FileSystems.getDefault().newWatchService();
+        dir.register(ws, ENTRY_CREATE, ENTRY_DELETE);
+        Thread t = new Thread(() -> watchLoop(ws), "playlist-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void watchLoop(WatchService ws) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = ws.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    try { rescan(); } catch (IOException ignored) {}
+                    continue;
+                }
+                Path name = (Path) event.context();
+                if (event.kind() == ENTRY_DELETE) removed(name.toString());
+                else if (!Files.isDirectory(dir.resolve(name))) added(name.toString());
+            }
+            key.reset();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a raw (application/octet-stream) request body into one new file in
+ * the uploads directory, named {@code <name>.tmp~} until {@link #finish}
+ * renames it. There is nothing to parse, so the body can go to
+ * disk without passing through the Java heap: in TRANSFER mode straight
+ * from the socket with {@link FileChannel#transferFrom}, in BUFFER mode from
+ * the connection's pooled direct read buffer with positional writes.
+ * BUFFER is the default: for a socket source the JDK's transferFrom copies
+ * through its own 8 KB temporary buffer, so it makes far more syscalls than
+ * one 64 KB read and one write per chunk (UploadBenchmark: ~240 MB/s against
+ * ~500 MB/s for 1 GB on loopback).
+ */
+class RawBodyWriter {
+
+    enum Mode { TRANSFER, BUFFER }
+
+    private final Path dir;
+    private final FileChannel file;
+    private Path path;
+    private String name;
+    private long written = 0;
+
+    /** Creates the temporary file for the requested name made safe, or a free variant of it */
+    RawBodyWriter(Path dir, String requestedName) throws IOException {
+        String safe = MultipartStreamParser.safeFileName(
+                requestedName == null || requestedName.isEmpty() ? "upload.bin" : requestedName);
+        this.dir = dir;
+        name = MultipartStreamParser.createTemp(dir, safe);
+        path = dir.resolve(name + MultipartStreamParser.TEMP_SUFFIX);
+        file = FileChannel.open(path, StandardOpenOption.WRITE);
+    }
+
+    /** The file's name in the uploads directory; final once {@link #finish} returned */
+    String name() {
+        return name;
+    }
+
+    long written() {
+        return written;
+    }
+
+    /** Appends bytes already read, e.g. the part of the body that arrived with the head */
+    void write(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) written += file.write(chunk, written);
+    }
+
+    /**
+     * Moves up to {@code max} bytes from a non-blocking socket to the file.
+     * @return bytes moved; 0 when nothing was readable or the peer closed
+     */
+    long transferFrom(ReadableByteChannel src, long max) throws IOException {
+        long n = file.transferFrom(src, written, max);
+        written += n;
+        return n;
+    }
+
+    /** Closes the file and gives it its final name */
+    void finish() throws IOException {
+        file.close();
+        name = MultipartStreamParser.publish(dir, name);
+        path = dir.resolve(name);
+    }
+
+    /** Closes and deletes the file */
+    void abort() {
+        try { file.close(); } catch (IOException ignored) {}
+        try { Files.deleteIfExists(path); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,139 @@
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs requests that were offloaded from the selector loops.
+ * FIXED is the classic pool of N platform threads. VIRTUAL starts a virtual
+ * thread per task where the runtime has them (Java 21+); older runtimes get
+ * a platform thread per task, reused through a cached pool.
+ * In both modes a Semaphore caps how many tasks run at once. Tasks beyond
+ * the cap wait in a queue without holding a thread, and {@link #execute}
+ * never blocks, so it is safe to call from a selector loop.
+ */
+final class RequestExecutor implements Executor {
+
+    enum Mode { FIXED, VIRTUAL }
+
+    private final Mode mode;
+    private final int limit;
+    private final boolean virtualThreads;
+    private final ExecutorService backing;
+    private final Semaphore permits;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param limit most tasks running at the same time; also the pool size in FIXED mode
+     */
+    RequestExecutor(Mode mode, int limit) {
+        if (limit < 1) throw new IllegalArgumentException("limit must be positive");
+        this.mode = mode;
+        this.limit = limit;
+        this.permits = new Semaphore(limit);
+        if (mode == Mode.FIXED) {
+            backing = Executors.newFixedThreadPool(limit, daemonThreads("io-"));
+            virtualThreads = false;
+        } else {
+            ExecutorService v = newVirtualThreadPerTaskExecutor();
+            virtualThreads = v != null;
+            backing = v != null ? v : Executors.newCachedThreadPool(daemonThreads("io-task-"));
+        }
+    }
+
+    /** Reads -Dio.executor (fixed|virtual) and -Dio.maxConcurrent */
+    static RequestExecutor fromSystemProperties() {
+        Mode mode = Mode.valueOf(System.getProperty("io.executor", "fixed").toUpperCase(Locale.ROOT));
+        int limit = Integer.getInteger("io.maxConcurrent", mode == Mode.FIXED ? 8 : 1024);
+        return new RequestExecutor(mode, limit);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        waiting.add(task);
+        queued.incrementAndGet();
+        startWaiting();
+    }
+
+    // every enqueue and every permit release ends here, so no task is stranded
+    private void startWaiting() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            Runnable task = waiting.poll();
+            if (task == null) {
+                permits.release();
+                continue;
+            }
+            queued.decrementAndGet();
+            backing.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                    startWaiting();
+                }
+            });
+        }
+    }
+
+    Mode mode() {
+        return mode;
+    }
+
+    boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    /** Tasks running right now */
+    int active() {
+        return limit - permits.availablePermits();
+    }
+
+    /** Tasks waiting for a permit */
+    int queued() {
+        return queued.get();
+    }
+
+    /** Stops accepting tasks and waits for the running ones; for benchmarks and tests */
+    void shutdown(long timeoutMillis) throws InterruptedException {
+        backing.shutdown();
+        backing.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return mode + (mode == Mode.VIRTUAL && !virtualThreads ? " (no virtual threads in this JDK, platform threads)" : "")
+                + ", limit " + limit;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() exists from Java 21; looked up
+    // reflectively so the server still compiles and runs on 17
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,250 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds a response head straight into a byte array from pre-encoded
+ * pieces: status lines and header names are ASCII constants, numbers and
+ * dates are written digit by digit, and String values are copied char by
+ * char, so no String, StringBuilder or formatter is created per response.
+ * The Date line is re-rendered once a second by a ticker thread and shared
+ * by every response in that second.
+ */
+final class ResponseHeaders {
+
+    static final byte[] OK                    = ascii("HTTP/1.1 200 OK\r\n");
+    static final byte[] CREATED               = ascii("HTTP/1.1 201 Created\r\n");
+    static final byte[] NO_CONTENT            = ascii("HTTP/1.1 204 No Content\r\n");
+    static final byte[] PARTIAL_CONTENT       = ascii("HTTP/1.1 206 Partial Content\r\n");
+    static final byte[] MULTI_STATUS          = ascii("HTTP/1.1 207 Multi-Status\r\n");
+    static final byte[] NOT_MODIFIED          = ascii("HTTP/1.1 304 Not Modified\r\n");
+    static final byte[] BAD_REQUEST           = ascii("HTTP/1.1 400 Bad Request\r\n");
+    static final byte[] NOT_FOUND             = ascii("HTTP/1.1 404 Not Found\r\n");
+    static final byte[] CONFLICT              = ascii("HTTP/1.1 409 Conflict\r\n");
+    static final byte[] RANGE_NOT_SATISFIABLE = ascii("HTTP/1.1 416 Range Not Satisfiable\r\n");
+    static final byte[] TOO_MANY_REQUESTS     = ascii("HTTP/1.1 429 Too Many Requests\r\n");
+
+    static final byte[] CONTENT_TYPE     = ascii("Content-Type: ");
+    static final byte[] CONTENT_LENGTH   = ascii("Content-Length: ");
+    static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+    static final byte[] LAST_MODIFIED    = ascii("Last-Modified: ");
+    static final byte[] ETAG             = ascii("ETag: ");
+    static final byte[] RETRY_AFTER      = ascii("Retry-After: ");
+    static final byte[] LOCATION         = ascii("Location: ");
+    static final byte[] UPLOAD_OFFSET    = ascii("Upload-Offset: ");
+    static final byte[] UPLOAD_LENGTH    = ascii("Upload-Length: ");
+    private static final byte[] CONTENT_RANGE = ascii("Content-Range: bytes ");
+
+    static final byte[] ACCEPT_RANGES        = ascii("Accept-Ranges: bytes\r\n");
+    static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+    static final byte[] NO_CACHE             = ascii("Cache-Control: no-cache\r\n");
+    static final byte[] NO_STORE             = ascii("Cache-Control: no-store\r\n");
+
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE      = ascii("Connection: close\r\n");
+    private static final byte[] CRLF       = ascii("\r\n");
+
+    private static final byte[][] DAYS = {ascii("Sun"), ascii("Mon"), ascii("Tue"), ascii("Wed"),
+            ascii("Thu"), ascii("Fri"), ascii("Sat")};
+    private static final byte[][] MONTHS = {ascii("Jan"), ascii("Feb"), ascii("Mar"), ascii("Apr"),
+            ascii("May"), ascii("Jun"), ascii("Jul"), ascii("Aug"), ascii("Sep"), ascii("Oct"),
+            ascii("Nov"), ascii("Dec")};
+    private static final int DATE_LENGTH = 29; // "Sun, 06 Nov 1994 08:49:37 GMT"
+
+    private static volatile byte[] dateLine = dateLine(System.currentTimeMillis());
+
+    static {
+        Thread t = new Thread(ResponseHeaders::tick, "date-ticker");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void tick() {
+        while (true) {
+            try {
+                Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            dateLine = dateLine(System.currentTimeMillis());
+        }
+    }
+
+    private static byte[] dateLine(long millis) {
+        ResponseHeaders h = new ResponseHeaders(ascii("Date: "));
+        h.date(millis);
+        return h.put(CRLF).toByteArray();
+    }
+
+    /** The current Date value, without the header name, e.g. for an HTTP/2 date field */
+    static String currentDate() {
+        return new String(dateLine, 6, DATE_LENGTH, StandardCharsets.US_ASCII);
+    }
+
+    /** {@code millis} as an IMF-fixdate, e.g. for an HTTP/2 last-modified field */
+    static String httpDate(long millis) {
+        ResponseHeaders h = lines();
+        h.date(millis);
+        return new String(h.buf, 0, h.len, StandardCharsets.US_ASCII);
+    }
+
+    private byte[] buf = new byte[256];
+    private int len;
+
+    /** Starts a head with a status line such as {@link #OK} and the current Date */
+    static ResponseHeaders status(byte[] statusLine) {
+        return new ResponseHeaders(statusLine).put(dateLine);
+    }
+
+    /** Header lines without a status line, e.g. the part of a head that is cached with a file */
+    static ResponseHeaders lines() {
+        return new ResponseHeaders(new byte[0]);
+    }
+
+    private ResponseHeaders(byte[] first) {
+        put(first);
+    }
+
+    /** Appends pre-encoded bytes, e.g. a whole header line */
+    ResponseHeaders put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+        return this;
+    }
+
+    ResponseHeaders header(byte[] name, String value) {
+        put(name);
+        putAscii(value);
+        return put(CRLF);
+    }
+
+    ResponseHeaders header(byte[] name, long value) {
+        put(name);
+        number(value);
+        return put(CRLF);
+    }
+
+    /** A header carrying an IMF-fixdate, e.g. Last-Modified */
+    ResponseHeaders dateHeader(byte[] name, long millis) {
+        put(name);
+        date(millis);
+        return put(CRLF);
+    }
+
+    /** {@code Content-Range: bytes first-last/size} */
+    ResponseHeaders contentRange(long first, long last, long size) {
+        put(CONTENT_RANGE);
+        number(first);
+        ensure(1);
+        buf[len++] = '-';
+        number(last);
+        ensure(1);
+        buf[len++] = '/';
+        number(size);
+        return put(CRLF);
+    }
+
+    /** {@code Content-Range: bytes *}{@code /size}, for a 416 */
+    ResponseHeaders unsatisfiedRange(long size) {
+        put(CONTENT_RANGE);
+        ensure(2);
+        buf[len++] = '*';
+        buf[len++] = '/';
+        number(size);
+        return put(CRLF);
+    }
+
+    /** The ETag line, or nothing while the tag is not known yet */
+    ResponseHeaders etag(String etag) {
+        return etag == null ? this : header(ETAG, etag);
+    }
+
+    ResponseHeaders connection(boolean keepAlive) {
+        return put(keepAlive ? KEEP_ALIVE : CLOSE);
+    }
+
+    /** Closes the head with the empty line */
+    ByteBuffer end() {
+        put(CRLF);
+        return toBuffer();
+    }
+
+    /** The head as built so far, for when the rest follows in another buffer */
+    ByteBuffer toBuffer() {
+        return ByteBuffer.wrap(buf, 0, len);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    private void putAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) buf[len + i] = (byte) s.charAt(i);
+        len += n;
+    }
+
+    private void number(long v) {
+        if (v < 0) {
+            ensure(1);
+            buf[len++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) digits++;
+        ensure(digits);
+        for (int i = len + digits - 1; i >= len; i--, v /= 10) buf[i] = (byte) ('0' + v % 10);
+        len += digits;
+    }
+
+    // civil-from-days (proleptic Gregorian), so no Calendar or java.time object is needed
+    private void date(long millis) {
+        long secs = Math.floorDiv(millis, 1000);
+        long days = Math.floorDiv(secs, 86400);
+        int secOfDay = Math.floorMod(secs, 86400);
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        ensure(DATE_LENGTH);
+        put(DAYS[Math.floorMod(days + 4, 7)]); // 1970-01-01 was a Thursday
+        buf[len++] = ',';
+        buf[len++] = ' ';
+        twoDigits(day);
+        buf[len++] = ' ';
+        put(MONTHS[month - 1]);
+        buf[len++] = ' ';
+        number(year);
+        buf[len++] = ' ';
+        twoDigits(secOfDay / 3600);
+        buf[len++] = ':';
+        twoDigits(secOfDay / 60 % 60);
+        buf[len++] = ':';
+        twoDigits(secOfDay % 60);
+        buf[len++] = ' ';
+        buf[len++] = 'G';
+        buf[len++] = 'M';
+        buf[len++] = 'T';
+    }
+
+    private void twoDigits(int v) {
+        buf[len++] = (byte) ('0' + v / 10);
+        buf[len++] = (byte) ('0' + v % 10);
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
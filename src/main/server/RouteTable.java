@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps URL prefixes to the directories they are served from.
+ * The prefixes sit in a character trie, so the longest matching prefix is
+ * found in one pass over the path, and every root is made absolute and
+ * normalized once when the table is built. Resolved file paths are kept in a
+ * concurrent map keyed by the request path, so a repeat request costs a
+ * lock-free lookup and no Path work at all. The map is bounded by evicting
+ * arbitrary entries on insert, which is cheap and good enough for a cache
+ * that is filled again in one trie walk.
+ * Traversal is rejected on the raw path before anything is resolved: a
+ * ".." segment, a backslash or a NUL never reaches the file system.
+ */
+class RouteTable {
+
+    /** The routes the server had hard-coded: everything else comes from Public */
+    static final Map<String, String> DEFAULT_ROUTES = defaults();
+
+    private static Map<String, String> defaults() {
+        Map<String, String> m = new LinkedHashMap<>();
+        m.put("/", "Public");
+        m.put("/images/", "images");
+        m.put("/files/", "documents");
+        m.put("/video/", "video");
+        m.put("/uploads/", "uploads");
+        return m;
+    }
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] kids = new Node[0];
+        Path root; // non-null where a prefix ends
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) if (keys[i] == c) return kids[i];
+            return null;
+        }
+
+        Node add(char c) {
+            Node n = child(c);
+            if (n != null) return n;
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            kids = Arrays.copyOf(kids, kids.length + 1);
+            keys[keys.length - 1] = c;
+            return kids[kids.length - 1] = new Node();
+        }
+    }
+
+    private final Node trie = new Node();
+    private final Set<Path> roots = new LinkedHashSet<>();
+    private final Map<String, Path> resolved = new ConcurrentHashMap<>();
+    private final int maxCached;
+
+    /**
+     * @param routes URL prefix to directory; relative directories are taken from {@code base}
+     * @param maxCached most resolved paths remembered
+     */
+    RouteTable(Path base, Map<String, String> routes, int maxCached) {
+        for (Map.Entry<String, String> e : routes.entrySet()) {
+            String prefix = e.getKey();
+            if (!prefix.startsWith("/")) throw new IllegalArgumentException("Route must start with /: " + prefix);
+            Path root = base.resolve(e.getValue()).toAbsolutePath().normalize();
+            Node n = trie;
+            for (int i = 0; i < prefix.length(); i++) n = n.add(prefix.charAt(i));
+            n.root = root;
+            roots.add(root);
+        }
+        this.maxCached = maxCached;
+    }
+
+    /**
+     * Builds the table from a properties file of {@code /prefix/ = dir} lines,
+     * or from the defaults when {@code file} is null.
+     */
+    static RouteTable load(Path base, Path file, int maxCached) throws IOException {
+        if (file == null) return new RouteTable(base, DEFAULT_ROUTES, maxCached);
+        Properties p = new Properties();
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            p.load(r);
+        }
+        Map<String, String> routes = new LinkedHashMap<>();
+        for (String prefix : p.stringPropertyNames()) routes.put(prefix.trim(), p.getProperty(prefix).trim());
+        return new RouteTable(base, routes, maxCached);
+    }
+
+    /** Every directory something is served from */
+    List<Path> roots() {
+        return new ArrayList<>(roots);
+    }
+
+    /**
+     * True if the path has no "..", backslash or NUL that could lead out of
+     * a root. Works on the undecoded request path, which is what gets resolved.
+     */
+    static boolean isSafe(String path) {
+        int segStart = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            char c = i < path.length() ? path.charAt(i) : '/';
+            if (c == '\\' || c == 0) return false;
+            if (c == '/') {
+                if (i - segStart == 2 && path.charAt(segStart) == '.' && path.charAt(segStart + 1) == '.')
+                    return false;
+                segStart = i + 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The file a safe request path maps to, or null if no route matches or the
+     * path names a route's directory itself. Callers check {@link #isSafe} first.
+     */
+    Path resolve(String path) {
+        Path cached = resolved.get(path);
+        if (cached != null) return cached;
+        Node n = trie;
+        Path root = null;
+        int prefixLength = 0;
+        for (int i = 0; n != null; i++) {
+            if (n.root != null) {
+                root = n.root;
+                prefixLength = i;
+            }
+            if (i == path.length()) break;
+            n = n.child(path.charAt(i));
+        }
+        if (root == null) return null;
+        int from = prefixLength;
+        while (from < path.length() && path.charAt(from) == '/') from++;
+        if (from == path.length()) return null;
+        Path p = root.resolve(path.substring(from)).normalize();
+        if (!p.startsWith(root)) return null;
+        Iterator<String> it = resolved.keySet().iterator();
+        while (resolved.size() >= maxCached && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        resolved.put(path, p);
+        return p;
+    }
+
+    /** Resolved paths currently cached */
+    int cached() {
+        return resolved.size();
+    }
+}
@@ -1,13 +1,19 @@
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import logger.Logger;
 import logger.LoggerManager;
@@ -17,38 +23,222 @@ public class SimpleHttpServer {
 
     private static final int PORT = 8080;
     private static final String BASE    = "/home/sudheshna/IdeaProjects/JavaAssignments/src";
-    private static final String UPLOADS = BASE + "/uploads";
-
-    private static final long MAX_UPLOAD_SIZE = 500L * 1024 * 1024; // 500 MB
-
+    static final String UPLOADS = BASE + "/uploads";
+
+    private static final long MAX_UPLOAD_SIZE = Long.getLong("upload.maxBytes", 500L * 1024 * 1024); // 500 MB
+
+    // application/octet-stream bodies go straight to a file through the pooled direct read
+    // buffer; -Dupload.rawMode=transfer uses FileChannel.transferFrom from the socket instead
+    private static final RawBodyWriter.Mode RAW_MODE =
+            RawBodyWriter.Mode.valueOf(System.getProperty("upload.rawMode", "buffer").toUpperCase(Locale.ROOT));
+
+    // seconds a client is told to wait when an upload is turned away
+    private static final int UPLOAD_RETRY_AFTER = 5;  // other uploads are using the slots
+    private static final int DISK_RETRY_AFTER   = 60; // the uploads disk is nearly full
+    private static final int THUMBNAIL_RETRY_AFTER = 1; // the thumbnail is being made
+
+    // resumable uploads: POST creates a session here, PATCH/HEAD/DELETE <path>/<id> use it;
+    // -Dupload.sessionDir holds the part files and journal, -Dupload.sessionTtlMillis expires them
+    private static final String SESSIONS_PATH = "/uploads/sessions";
+    private static final String SESSION_DIR = System.getProperty("upload.sessionDir", BASE + "/main/ioOutput/upload-sessions");
+    private static final long SESSION_TTL_MILLIS = Long.getLong("upload.sessionTtlMillis", 24L * 60 * 60 * 1000);
+
+    // one selector loop per core; each connection stays on the loop it was given
+    private static final int SELECTOR_LOOPS = ServerNIO.defaultLoops();
+
+    // outbound backpressure: stop reading from a connection above HIGH_WATER
+    // queued bytes, resume once it drains below LOW_WATER
+    private static final long HIGH_WATER = 1024 * 1024;
+    private static final long LOW_WATER  = 256 * 1024;
+
+    // hot-file cache for small static files; -Dcache.maxFileSize / -Dcache.maxBytes override
+    private static final long CACHE_MAX_FILE  = Long.getLong("cache.maxFileSize", 256 * 1024);
+    private static final long CACHE_MAX_BYTES = Long.getLong("cache.maxBytes", 64L * 1024 * 1024);
+
+    // large files are streamed from shared open channels; -Dmedia.mode=mmap maps them instead
+    private static final MediaChannelCache.Mode MEDIA_MODE =
+            MediaChannelCache.Mode.valueOf(System.getProperty("media.mode", "sendfile").toUpperCase(Locale.ROOT));
+    private static final long MEDIA_IDLE_MILLIS = 30_000;
+
+    // content hashes survive restarts here; -Detag.index overrides
+    private static final String ETAG_INDEX = System.getProperty("etag.index", BASE + "/main/ioOutput/etag.index");
+
+    // precompressed copies of text assets; -Dcompress.dir overrides
+    private static final String VARIANTS_DIR = System.getProperty("compress.dir", BASE + "/main/ioOutput/compressed");
+
+    // downscaled copies of uploaded images, served as /thumbs/<upload name>;
+    // -Dthumbnail.dir overrides, Thumbnails.fromSystemProperties reads the rest
+    private static final String THUMBNAIL_DIR = System.getProperty("thumbnail.dir", BASE + "/main/ioOutput/thumbnails");
+    private static final String THUMBNAILS = "/thumbs/";
+    // what thumbnail() answers while the thumbnail is being made; compared by identity
+    private static final Path NOT_READY = Paths.get("");
+
+    // connection deadlines, 0 turns one off: a keep-alive connection with no
+    // traffic either way, a request head still incomplete (slowloris), an
+    // upload body that stopped arriving; -Dtimeout.idleMillis etc. override
+    private static final long IDLE_TIMEOUT_MILLIS   = Long.getLong("timeout.idleMillis", 30_000);
+    private static final long HEADER_TIMEOUT_MILLIS = Long.getLong("timeout.headerMillis", 10_000);
+    private static final long UPLOAD_STALL_MILLIS   = Long.getLong("timeout.uploadStallMillis", 60_000);
+
+    // URL prefix -> folder; -Droutes.file=<properties> replaces RouteTable.DEFAULT_ROUTES
+    private static final String ROUTES_FILE = System.getProperty("routes.file");
+    private static final int ROUTE_CACHE_SIZE = 4096; // resolved request paths remembered
+
+    // one line per answered request, written by a background thread; -Daccess.log, -Daccess.maxBytes override
+    private static final String ACCESS_LOG = System.getProperty("access.log", BASE + "/main/ioOutput/access.log");
+    private static final long ACCESS_LOG_MAX_BYTES = Long.getLong("access.maxBytes", 64L * 1024 * 1024);
+    private static final int ACCESS_LOG_RECORDS = 65536; // ring slots between the loops and the writer
+
+    // HTTP/2 over cleartext TCP (h2c), by prior knowledge or Upgrade: h2c; -Dhttp2.enabled=false
+    // turns it off, -Dhttp2.maxStreams caps the requests one connection may have open at once
+    private static final boolean HTTP2_ENABLED = Boolean.parseBoolean(System.getProperty("http2.enabled", "true"));
+    private static final int HTTP2_MAX_STREAMS = Integer.getInteger("http2.maxStreams", 256);
+
+    // parses If-Modified-Since and If-Range dates; responses are rendered by ResponseHeaders
     private static final DateTimeFormatter HTTP_DATE =
             DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH)
                     .withZone(ZoneOffset.UTC);
 
     private final LoggerManager logger;
-    private final ExecutorService ioPool = Executors.newFixedThreadPool(8);
-
-    /** accumulates request headers */
-    private static class ReadAcc {
-        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    // -Dio.executor=virtual runs offloaded requests on virtual threads, -Dio.maxConcurrent caps them
+    private final RequestExecutor ioPool = RequestExecutor.fromSystemProperties();
+    private final StaticFileCache fileCache = new StaticFileCache(CACHE_MAX_FILE, CACHE_MAX_BYTES);
+    private final MediaChannelCache mediaChannels = new MediaChannelCache(MEDIA_MODE, MEDIA_IDLE_MILLIS);
+    private final ETagIndex etags;
+    private final CompressedVariants variants;
+    private final Thumbnails thumbnails;
+    private final PlaylistIndex playlist;
+    private final RouteTable routes;
+    private final Metrics metrics = new Metrics();
+    // -Dupload.maxConcurrent etc. bound running uploads; -Dquota.perSecond limits requests per client
+    private final UploadAdmission admission;
+    private final long maxUpload; // the smaller of upload.maxBytes and the admission's in-flight limit
+    private final byte[] uploadTooLarge;
+    private final TokenBuckets quotas = TokenBuckets.fromSystemProperties();
+    private final UploadSessions sessions;
+    private final AccessLog accessLog;
+
+    private static final int READ_BUFFER_SIZE = 65536; // also the largest accepted request head
+    private static final BufferPool BUFFERS = BufferPool.shared();
+    // status and bytes of the response an ioPool thread just queued, read back by endOffload
+    private static final ThreadLocal<long[]> OFFLOADED_RESPONSE = ThreadLocal.withInitial(() -> new long[2]);
+
+    // error responses never change, so they are encoded once and shared
+    private static final byte[] NOT_FOUND          = sendError(404, "Not Found", "Resource not found");
+    private static final byte[] FORBIDDEN          = sendError(403, "Forbidden", "Access denied");
+    private static final byte[] METHOD_NOT_ALLOWED = sendError(405, "Method Not Allowed", "Method not allowed");
+    private static final byte[] MALFORMED          = sendError(400, "Bad Request", "Malformed request");
+    private static final byte[] BAD_CONTENT_LENGTH = sendError(400, "Bad Request", "Invalid Content-Length");
+    private static final byte[] MISSING_BOUNDARY   = sendError(400, "Bad Request", "Missing boundary");
+    private static final byte[] INVALID_LIMIT      = sendError(400, "Bad Request", "Invalid limit");
+    private static final byte[] REQUEST_TIMEOUT    = sendError(408, "Request Timeout", "Request not received in time");
+    private static final byte[] LENGTH_REQUIRED    = sendError(411, "Length Required", "Content-Length missing");
+    private static final byte[] BODY_TOO_LARGE     = sendError(413, "Payload Too Large", "Send large bodies as multipart/form-data or application/octet-stream");
+    private static final byte[] HEAD_TOO_LARGE     = sendError(431, "Request Header Fields Too Large",
+            "Request head exceeds " + READ_BUFFER_SIZE + " bytes");
+    private static final byte[] UPLOAD_FAILED      = sendError(500, "Internal Server Error", "Upload failed");
+    private static final byte[] UPLOADS_BUSY       = sendError(503, "Service Unavailable",
+            "Too many uploads in progress", "Retry-After: " + UPLOAD_RETRY_AFTER + "\r\n");
+    private static final byte[] DISK_FULL          = sendError(503, "Service Unavailable",
+            "Not enough disk space for the upload", "Retry-After: " + DISK_RETRY_AFTER + "\r\n");
+    private static final byte[] THUMBNAIL_PENDING  = sendError(503, "Service Unavailable",
+            "Thumbnail not ready yet", "Retry-After: " + THUMBNAIL_RETRY_AFTER + "\r\n");
+    private static final byte[] TOO_MANY_REQUESTS  = ResponseHeaders.ascii("<h1>429 Too Many Requests</h1>");
+    private static final byte[] SESSION_NOT_FOUND  = sendError(404, "Not Found", "No such upload session");
+    private static final byte[] SESSION_BUSY       = sendError(409, "Conflict", "Another chunk is being received");
+    private static final byte[] BAD_UPLOAD_LENGTH  = sendError(400, "Bad Request", "Upload-Length missing or invalid");
+    private static final byte[] BAD_UPLOAD_OFFSET  = sendError(400, "Bad Request", "Upload-Offset missing or invalid");
+    private static final byte[] UNEXPECTED_BODY    = sendError(400, "Bad Request", "Session creation takes no body");
+    private static final byte[] CHUNK_TOO_LARGE    = sendError(413, "Payload Too Large", "Chunk runs past Upload-Length");
+
+    private static final byte[] POST_RECEIVED = ResponseHeaders.ascii("<h1>POST Received</h1>");
+    private static final byte[] SWITCHING_PROTOCOLS = ResponseHeaders.ascii(
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+
+    // request headers an upgraded HTTP/1.1 request carries over to its HTTP/2 stream
+    private static final HttpRequestParser.Header[] UPGRADE_HEADERS = {
+            HttpRequestParser.RANGE, HttpRequestParser.IF_RANGE, HttpRequestParser.IF_NONE_MATCH,
+            HttpRequestParser.IF_MODIFIED_SINCE, HttpRequestParser.ACCEPT_ENCODING};
+
+    // beginPost results besides a new offset
+    private static final int CLOSED    = -1;
+    private static final int UPLOADING = -2;
+    private static final int NEED_BODY = -3;
+    private static final int UPGRADED  = -4; // the connection now speaks HTTP/2
+
+    // pipelined requests answered concurrently per connection before reading pauses
+    private static final int MAX_PIPELINED = 16;
+    // send() slot meaning "the request being handled on the loop thread right now"
+    private static final long NEXT = -1;
+
+    /** Per-connection state, attached to the SelectionKey for the connection's lifetime */
+    private static class Connection {
+        final OutboundQueue out = new OutboundQueue();
+        final AtomicInteger inFlight = new AtomicInteger(); // requests running on ioPool
+        boolean lastRequest; // a Connection: close request was read; read nothing more
+        final Thread loopThread = Thread.currentThread();
+        InetAddress remote;  // the client's address, for its request quota
+        // pooled read buffer, leased on the loop thread and kept only while it
+        // holds unconsumed bytes; write mode, [parser.start(), position) is unconsumed
+        ByteBuffer in;
+        final HttpRequestParser parser = new HttpRequestParser();
+        volatile UploadState upload;                        // non-null while streaming a body
+        volatile boolean readPaused = false;
+        volatile long lastActivity = ServerNIO.now(); // last byte read or written
+        long headStarted;           // first byte of the buffered partial request; loop thread only
+        TimingWheel.Timeout timeout; // next deadline check; loop thread only
+        // the request being handled on the loop thread right now
+        long requestStarted;
+        Metrics.Route requestRoute;
+        AccessLog.Method requestMethod;
+        boolean offloaded;          // its response is produced on ioPool, which records it
+        int responseStatus;         // of the response queued on the loop thread, for the access log
+        long responseBytes;
+        Http2Connection h2;         // set once the connection speaks HTTP/2; loop thread only
+        boolean spokeHttp1;         // bytes other than the HTTP/2 preface arrived first
     }
 
-    /** Upload in progress: streaming body chunks to a temp file */
+    /** Upload in progress: body chunks are parsed as they arrive and parts written to their files */
     private static class UploadState {
-        final Path tempFile;
-        final FileChannel out;
+        final MultipartStreamParser parser;   // a multipart POST, or
+        final UploadSessions.Session session; // a PATCH chunk of a resumable upload, or
+        final RawBodyWriter raw;              // an application/octet-stream POST
         final long totalBodyBytes;
         long written = 0;
-        final String boundary;
         final boolean keepAlive;
-
-        UploadState(Path tempFile, FileChannel out,
-                    long totalBodyBytes, String boundary, boolean keepAlive) {
-            this.tempFile = tempFile;
-            this.out  = out;
+        final long started; // System.nanoTime() when the head was parsed
+        final UploadAdmission.Permit permit;
+
+        UploadState(MultipartStreamParser parser, UploadSessions.Session session, RawBodyWriter raw,
+                    long totalBodyBytes, boolean keepAlive, long started, UploadAdmission.Permit permit) {
+            this.parser = parser;
+            this.session = session;
+            this.raw = raw;
             this.totalBodyBytes = totalBodyBytes;
-            this.boundary = boundary;
             this.keepAlive = keepAlive;
+            this.started = started;
+            this.permit = permit;
+        }
+
+        void feed(ByteBuffer chunk) throws IOException {
+            if (session != null) session.write(chunk);
+            else if (raw != null) raw.write(chunk);
+            else parser.feed(chunk);
+        }
+
+        /**
+         * Frees the upload's admission slot; the partial files of a multipart or
+         * raw upload are removed, a session keeps what it received for the client to resume
+         */
+        void abort() {
+            if (session != null) session.release();
+            else if (raw != null) raw.abort();
+            else parser.abort();
+            permit.release();
+        }
+
+        String abortNote() {
+            return session != null ? "received bytes kept at offset " + session.offset() : "partial files removed";
         }
     }
 
@@ -58,286 +248,684 @@ public class SimpleHttpServer {
         this.logger = new LoggerManager(List.of(fileLogger, consoleLogger));
         try { Files.createDirectories(Paths.get(UPLOADS)); }
         catch (IOException e) { throw new RuntimeException("Cannot create uploads dir", e); }
+        try { admission = UploadAdmission.fromSystemProperties(Paths.get(UPLOADS)); }
+        catch (IOException e) { throw new RuntimeException("Cannot read uploads file store", e); }
+        // a body above the in-flight byte limit could never be admitted, so it is too large rather than busy
+        maxUpload = Math.min(MAX_UPLOAD_SIZE, admission.maxInFlightBytes());
+        uploadTooLarge = sendError(413, "Payload Too Large", "Max "
+                + (maxUpload >= 1024 * 1024 ? maxUpload / 1024 / 1024 + " MB" : maxUpload + " bytes"));
+        try { sessions = new UploadSessions(Paths.get(SESSION_DIR), SESSION_TTL_MILLIS); }
+        catch (IOException e) { throw new RuntimeException("Cannot open upload sessions", e); }
+        try { accessLog = new AccessLog(Paths.get(ACCESS_LOG), ACCESS_LOG_RECORDS, ACCESS_LOG_MAX_BYTES); }
+        catch (IOException e) { throw new RuntimeException("Cannot open access log", e); }
+        try { variants = new CompressedVariants(Paths.get(VARIANTS_DIR)); }
+        catch (IOException e) { throw new RuntimeException("Cannot create compressed variants dir", e); }
+        try { thumbnails = Thumbnails.fromSystemProperties(Paths.get(THUMBNAIL_DIR)); }
+        catch (IOException e) { throw new RuntimeException("Cannot create thumbnails dir", e); }
+
+        try { routes = RouteTable.load(Paths.get(BASE), ROUTES_FILE == null ? null : Paths.get(ROUTES_FILE), ROUTE_CACHE_SIZE); }
+        catch (IOException e) { throw new RuntimeException("Cannot read route table", e); }
+
+        try { fileCache.watch(routes.roots()); }
+        catch (IOException e) { throw new RuntimeException("Cannot watch static folders", e); }
+
+        this.etags = openETagIndex();
+
+        try {
+            playlist = new PlaylistIndex(Paths.get(UPLOADS));
+            playlist.watch();
+        } catch (IOException e) { throw new RuntimeException("Cannot index uploads dir", e); }
+
+        registerMetrics();
+    }
+
+    private ETagIndex openETagIndex() {
+        try {
+            return new ETagIndex(Paths.get(ETAG_INDEX));
+        } catch (IOException e) {
+            logger.info("ETag index unavailable, keeping tags in memory: " + e.getMessage());
+            try { return new ETagIndex(null); }
+            catch (IOException impossible) { throw new UncheckedIOException(impossible); }
+        }
+    }
+
+    /** Runs on the loop thread for every new connection, before its first read */
+    private void handleConnect(SelectionKey key) {
+        Connection conn = new Connection();
+        conn.remote = remoteAddress(key);
+        // a response is written as head and body separately; Nagle would hold the
+        // body back until the client's delayed ACK of the head, about 40 ms
+        try { ((SocketChannel) key.channel()).setOption(StandardSocketOptions.TCP_NODELAY, true); }
+        catch (IOException ignored) {}
+        key.attach(conn);
+        if (IDLE_TIMEOUT_MILLIS > 0 || HEADER_TIMEOUT_MILLIS > 0 || UPLOAD_STALL_MILLIS > 0)
+            conn.timeout = ServerNIO.timers().schedule(checkInterval(), () -> checkTimeouts(key));
     }
 
     private void handleClient(SelectionKey key) throws IOException {
         SocketChannel client = (SocketChannel) key.channel();
+        if (!(key.attachment() instanceof Connection)) handleConnect(key);
+        Connection conn = (Connection) key.attachment();
+        UploadState raw = conn.upload;
+        if (raw != null && raw.raw != null && RAW_MODE == RawBodyWriter.Mode.TRANSFER) {
+            transferUpload(key, client, conn, raw);
+            return;
+        }
+        boolean newRequest = conn.in == null; // nothing of a request buffered yet
+        if (newRequest) conn.in = BUFFERS.lease(READ_BUFFER_SIZE);
+        ByteBuffer in = conn.in;
 
-        ByteBuffer buffer = ByteBuffer.allocate(65536); // 64 KB read buffer
         int bytesRead;
         try {
-            bytesRead = client.read(buffer);
+            bytesRead = client.read(in);
         } catch (IOException e) {
             cancelAndClose(key, client); return;
         }
         if (bytesRead == -1) { cancelAndClose(key, client); return; }
-        buffer.flip();
-
-        Object attachment = key.attachment();
-
-        if (attachment instanceof UploadState) {
-            continueUpload(key, client, (UploadState) attachment, buffer);
+        long now = ServerNIO.now();
+        conn.lastActivity = now;
+        if (newRequest) conn.headStarted = now;
+        metrics.bytesReceived.add(bytesRead);
+
+        if (conn.h2 == null && !conn.spokeHttp1 && HTTP2_ENABLED) {
+            ByteBuffer head = in.duplicate().flip();
+            if (!Http2Connection.startsWithPreface(head)) {
+                conn.spokeHttp1 = true;
+            } else if (head.remaining() < Http2Connection.PREFACE.length) {
+                return; // could still be either
+            } else {
+                conn.h2 = startHttp2(key);
+            }
+        }
+        if (conn.h2 != null) {
+            readHttp2(key, conn);
             return;
         }
 
-        ReadAcc acc = (attachment instanceof ReadAcc) ? (ReadAcc) attachment : new ReadAcc();
-        acc.buf.write(buffer.array(), 0, buffer.limit());
-        key.attach(acc);
-
-        byte[] data     = acc.buf.toByteArray();
-        int    processed = 0;
+        UploadState upload = conn.upload;
+        if (upload != null) {
+            in.flip();
+            int read = in.limit();
+            continueUpload(key, client, upload, in);
+            if (conn.upload != null || conn.out.isClosing() || !key.isValid() || in.position() == read) {
+                releaseReadBuffer(conn);
+                return;
+            }
+            // the body ended inside this read; pipelined requests follow it
+            in.limit(read);
+            in.compact();
+            conn.parser.reset(0);
+            conn.headStarted = now;
+        }
 
+        HttpRequestParser req = conn.parser;
         while (true) {
-            int headerEnd = findHeaderEnd(data, processed);
-            if (headerEnd == -1) break;
-
-            int end = headerEnd + 4;
-            String headers = new String(data, processed, end - processed, StandardCharsets.US_ASCII);
-            String requestLine = headers.lines().findFirst().orElse("");
-
-            if (requestLine.isEmpty()) { cancelAndClose(key, client); return; }
-
-            String[] parts = requestLine.split(" ");
-            if (parts.length < 2)    { cancelAndClose(key, client); return; }
-
-            String method = parts[0];
-            String path   = parts[1];
-            int qIdx = path.indexOf('?');
-            if (qIdx != -1) path = path.substring(0, qIdx);
-
-            logger.info("Request: " + requestLine);
+            HttpRequestParser.Result result = req.parse(in);
+            if (result == HttpRequestParser.Result.INCOMPLETE) {
+                if (req.start() == 0 && !in.hasRemaining()) {
+                    sendResponse(key, HEAD_TOO_LARGE, false);
+                    return;
+                }
+                break;
+            }
+            if (result != HttpRequestParser.Result.COMPLETE) {
+                sendResponse(key, MALFORMED, false);
+                return;
+            }
 
-            String  connHdr   = extractHeader(headers, "Connection");
-            boolean keepAlive = !"close".equalsIgnoreCase(connHdr);
+            boolean keepAlive = !req.headerEqualsIgnoreCase(HttpRequestParser.CONNECTION, "close");
+            int end = req.headEnd();
+            int next;
+            boolean post = req.methodIs(HttpRequestParser.POST);
+            boolean patch = req.methodIs(HttpRequestParser.PATCH);
+            conn.requestStarted = System.nanoTime();
+            conn.requestRoute = post || patch ? Metrics.Route.UPLOAD : Metrics.Route.of(req.path());
+            conn.requestMethod = AccessLog.Method.of(req);
+            conn.offloaded = false;
+            conn.responseStatus = 0;
+            conn.responseBytes = 0;
+
+            long wait = quotas == null || conn.remote == null ? 0 : quotas.tryAcquire(conn.remote, ServerNIO.now());
+            byte[] h2Settings = post || patch ? null : http2Settings(conn, req);
+            if (wait > 0) {
+                // a POST body was not read, so the connection cannot carry on
+                tooManyRequests(key, wait, keepAlive && !post && !patch);
+                next = post || patch ? CLOSED : end;
+            } else if (h2Settings != null) {
+                next = upgrade(key, conn, req, h2Settings);
+            } else if (post) {
+                next = req.path().equals(SESSIONS_PATH) ? createSession(key, req, keepAlive, end)
+                        : beginPost(key, client, conn, keepAlive);
+            } else if (patch) {
+                next = beginPatch(key, client, conn, keepAlive);
+            } else if ((req.methodIs(HttpRequestParser.HEAD) || req.methodIs(HttpRequestParser.DELETE))
+                    && req.path().startsWith(SESSIONS_PATH + "/")) {
+                handleSession(key, req, keepAlive);
+                next = end;
+            } else if (!req.methodIs(HttpRequestParser.GET)) {
+                sendResponse(key, METHOD_NOT_ALLOWED, keepAlive);
+                next = end;
+            } else {
+                next = handleGet(key, req, keepAlive, end);
+            }
+            // answered right here; uploads and offloaded requests are recorded when they finish,
+            // an upgraded one as an HTTP/2 stream
+            if (!conn.offloaded && next != UPLOADING && next != NEED_BODY && next != UPGRADED) {
+                long nanos = System.nanoTime() - conn.requestStarted;
+                metrics.record(conn.requestRoute, nanos);
+                accessLog.record(conn.requestMethod, conn.requestRoute, conn.responseStatus, conn.responseBytes, nanos);
+            }
+            if (next == CLOSED) return;
+            if (next == UPGRADED) {
+                // what followed the request is the client's preface and first frames
+                in.limit(in.position()).position(end);
+                in.compact();
+                req.reset(0);
+                readHttp2(key, conn);
+                return;
+            }
+            if (next == NEED_BODY) break;
+            if (next == UPLOADING) {
+                req.reset(0);
+                releaseReadBuffer(conn);
+                updateInterest(key);
+                return;
+            }
+            if (!keepAlive) {
+                // nothing after a Connection: close request gets an answer
+                conn.lastRequest = true;
+                req.reset(in.position());
+                break;
+            }
+            req.reset(next);
+        }
 
-            if (method.equals("POST")) {
-                int alreadyBuffered = data.length - end;
+        // move the unconsumed tail (a partial request) to the front of the buffer,
+        // or hand the buffer back to the pool if nothing is left
+        int consumed = req.start();
+        if (consumed == in.position()) {
+            req.reset(0);
+            releaseReadBuffer(conn);
+        } else if (consumed > 0) {
+            // requests were answered, so the header deadline starts over for the one behind them
+            in.limit(in.position()).position(consumed);
+            in.compact();
+            req.shift(consumed);
+            conn.headStarted = now;
+        }
+        updateInterest(key);
+    }
 
-                int result = beginPost(key, client, data, headers,
-                        end, alreadyBuffered, keepAlive);
-                if (result == -1) return;
-                processed = result;
-                if (key.attachment() instanceof UploadState) break;
-                continue;
+    /**
+     * Timing wheel task: closes the connection if a deadline passed, otherwise
+     * re-arms itself for the nearest one. Activity only stamps lastActivity,
+     * so a busy connection costs nothing until its check comes round.
+     */
+    private void checkTimeouts(SelectionKey key) {
+        Connection conn = conn(key);
+        if (conn == null || !key.isValid()) return;
+        long now = ServerNIO.now();
+        long wait;
+        if (conn.upload != null) {
+            wait = remaining(conn.lastActivity, UPLOAD_STALL_MILLIS, now);
+            if (wait <= 0) {
+                UploadState upload = conn.upload;
+                conn.upload = null;
+                upload.abort();
+                logger.info("Upload stalled for " + UPLOAD_STALL_MILLIS + " ms, " + upload.abortNote());
+                timeOut(key, conn);
+                wait = checkInterval();
             }
-
-            if (!method.equals("GET")) {
-                sendResponse(client, key, send405().getBytes(), keepAlive);
-                processed = end;
-                continue;
+        } else if (conn.h2 != null) {
+            // streams still being answered are not idleness, and a partial frame is not a request head
+            wait = conn.h2.active() > 0 ? Long.MAX_VALUE : remaining(conn.lastActivity, IDLE_TIMEOUT_MILLIS, now);
+            if (wait <= 0) {
+                if (conn.out.isClosing()) { // our GOAWAY was never read
+                    cancelAndClose(key, (SocketChannel) key.channel());
+                    return;
+                }
+                conn.h2.shutdown();
+                flush(key);
+                wait = checkInterval();
+            }
+        } else {
+            // a request running on ioPool is not idleness
+            wait = conn.inFlight.get() > 0 ? Long.MAX_VALUE : remaining(conn.lastActivity, IDLE_TIMEOUT_MILLIS, now);
+            if (wait <= 0) {
+                cancelAndClose(key, (SocketChannel) key.channel());
+                return;
+            }
+            if (conn.in != null) {
+                long head = remaining(conn.headStarted, HEADER_TIMEOUT_MILLIS, now);
+                if (head <= 0) {
+                    logger.info("Request head incomplete after " + HEADER_TIMEOUT_MILLIS + " ms");
+                    timeOut(key, conn);
+                    head = checkInterval();
+                }
+                wait = Math.min(wait, head);
             }
-
-            processed = handleGet(client, key, path, headers, keepAlive, end);
-            if (processed == -1) return;
         }
+        if (!key.isValid()) return;
+        conn.timeout = ServerNIO.timers().schedule(wait == Long.MAX_VALUE ? checkInterval() : wait,
+                () -> checkTimeouts(key));
+    }
 
-        if (!(key.attachment() instanceof UploadState)) {
-            ReadAcc newAcc = new ReadAcc();
-            if (processed < data.length)
-                newAcc.buf.write(data, processed, data.length - processed);
-            key.attach(newAcc);
-            if (key.isValid()) key.interestOps(SelectionKey.OP_READ);
+    /** Drops whatever of the request was read and answers 408; the connection closes once it is sent */
+    private void timeOut(SelectionKey key, Connection conn) {
+        releaseReadBuffer(conn);
+        conn.parser.reset(0);
+        conn.lastRequest = true;
+        sendResponse(key, REQUEST_TIMEOUT, false);
+    }
+
+    // milliseconds left until since + timeout, Long.MAX_VALUE if the timeout is off
+    private static long remaining(long since, long timeout, long now) {
+        return timeout > 0 ? since + timeout - now : Long.MAX_VALUE;
+    }
+
+    // how often a connection with no running deadline is looked at again
+    private static long checkInterval() {
+        long min = Long.MAX_VALUE;
+        for (long t : new long[]{IDLE_TIMEOUT_MILLIS, HEADER_TIMEOUT_MILLIS, UPLOAD_STALL_MILLIS})
+            if (t > 0) min = Math.min(min, t);
+        return min;
+    }
+
+    /** Returns the connection's read buffer to the pool; loop thread only */
+    private static void releaseReadBuffer(Connection conn) {
+        if (conn.in != null) {
+            BUFFERS.release(conn.in);
+            conn.in = null;
         }
     }
 
     /**
      * Called once when the request headers are fully received.
      * For multipart uploads we immediately switch to streaming mode.
-     * Returns -1 if connection was closed, otherwise the new processed offset.
+     * Returns CLOSED if the connection was closed, UPLOADING once streaming,
+     * NEED_BODY if a small body is not fully buffered yet, otherwise the
+     * offset just past this request.
      */
     private int beginPost(SelectionKey key, SocketChannel client,
-                          byte[] data, String headers, int headerEnd,
-                          int alreadyBuffered, boolean keepAlive) throws IOException {
+                          Connection conn, boolean keepAlive) throws IOException {
+        HttpRequestParser req = conn.parser;
+        ByteBuffer in = conn.in;
+        int headerEnd = req.headEnd();
+        int alreadyBuffered = in.position() - headerEnd;
 
-        String contentType   = extractHeader(headers, "Content-Type");
-        String contentLength = extractHeader(headers, "Content-Length");
+        long bodyLength = req.headerLong(HttpRequestParser.CONTENT_LENGTH);
 
-        if (contentLength == null) {
-            sendResponse(client, key,
-                    sendError(411, "Length Required", "Content-Length missing").getBytes(), keepAlive);
+        if (bodyLength == -1) {
+            sendResponse(key, LENGTH_REQUIRED, keepAlive);
             return headerEnd;
         }
+        if (bodyLength < 0) {
+            sendResponse(key, BAD_CONTENT_LENGTH, false);
+            return CLOSED;
+        }
 
-        long bodyLength = Long.parseLong(contentLength.trim());
-
-        if (bodyLength > MAX_UPLOAD_SIZE) {
-            sendResponse(client, key,
-                    sendError(413, "Payload Too Large",
-                            "Max " + (MAX_UPLOAD_SIZE / 1024 / 1024) + " MB").getBytes(), keepAlive);
+        if (bodyLength > maxUpload) {
+            sendResponse(key, uploadTooLarge, keepAlive);
             return headerEnd;
         }
 
-        if (contentType != null && contentType.toLowerCase().contains("multipart/form-data")) {
-            String boundary = extractBoundary(contentType);
+        if (req.headerContainsIgnoreCase(HttpRequestParser.CONTENT_TYPE, "multipart/form-data")) {
+            String boundary = extractBoundary(req.header(HttpRequestParser.CONTENT_TYPE));
             if (boundary == null) {
-                sendResponse(client, key,
-                        sendError(400, "Bad Request", "Missing boundary").getBytes(), keepAlive);
+                sendResponse(key, MISSING_BOUNDARY, keepAlive);
                 return headerEnd;
             }
+            UploadAdmission.Permit permit = admit(key, bodyLength);
+            if (permit == null) return CLOSED;
 
-            // Open a temp file to stream into
-            Path tempFile = Paths.get(UPLOADS, "upload_" + System.currentTimeMillis() + ".tmp");
-            FileChannel outChannel = FileChannel.open(tempFile,
-                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            UploadState state = new UploadState(
+                    new MultipartStreamParser(boundary, Paths.get(UPLOADS)), null, null, bodyLength, keepAlive,
+                    conn.requestStarted, permit);
+            return startUpload(key, client, conn, state);
+        }
 
-            UploadState state = new UploadState(tempFile, outChannel,
-                    bodyLength, boundary, keepAlive);
+        if (req.headerContainsIgnoreCase(HttpRequestParser.CONTENT_TYPE, "application/octet-stream")) {
+            UploadAdmission.Permit permit = admit(key, bodyLength);
+            if (permit == null) return CLOSED;
+            RawBodyWriter raw;
+            try {
+                raw = new RawBodyWriter(Paths.get(UPLOADS), req.header(HttpRequestParser.UPLOAD_NAME));
+            } catch (IOException e) {
+                permit.release();
+                logger.info("Upload write failed: " + e.getMessage());
+                sendResponse(key, UPLOAD_FAILED, false);
+                return CLOSED;
+            }
+            UploadState state = new UploadState(null, null, raw, bodyLength, keepAlive, conn.requestStarted, permit);
+            return startUpload(key, client, conn, state);
+        }
 
-            if (alreadyBuffered > 0) {
-                ByteBuffer bodyChunk = ByteBuffer.wrap(data, headerEnd, alreadyBuffered);
-                while (bodyChunk.hasRemaining()) outChannel.write(bodyChunk);
-                state.written += alreadyBuffered;
-                logger.info("Upload started: " + bodyLength + " bytes total, "
-                        + alreadyBuffered + " already buffered");
+        if (alreadyBuffered < bodyLength) {
+            if (headerEnd + bodyLength > in.capacity()) {
+                sendResponse(key, BODY_TOO_LARGE, false);
+                return CLOSED;
             }
+            return NEED_BODY;
+        }
 
-            key.attach(state);
+        byte[] bodyBytes = new byte[(int) bodyLength];
+        in.get(headerEnd, bodyBytes);
+        String body = new String(bodyBytes, StandardCharsets.UTF_8);
+        logger.info("POST Body: " + body);
 
-            if (state.written >= state.totalBodyBytes) {
+        ByteBuffer head = ResponseHeaders.status(ResponseHeaders.OK)
+                .header(ResponseHeaders.CONTENT_TYPE, "text/html")
+                .header(ResponseHeaders.CONTENT_LENGTH, POST_RECEIVED.length)
+                .connection(keepAlive)
+                .end();
+        send(key, keepAlive, head, ByteBuffer.wrap(POST_RECEIVED));
+        if (!keepAlive) return CLOSED;
+        return (int)(headerEnd + bodyLength);
+    }
+
+    /**
+     * An admission permit for an upload of {@code bodyLength}, or null after
+     * answering 503. The body is not read on a refusal, so the connection closes.
+     */
+    private UploadAdmission.Permit admit(SelectionKey key, long bodyLength) {
+        if (!admission.diskHasRoomFor(bodyLength)) {
+            logger.info("Upload of " + bodyLength + " bytes refused, uploads disk is nearly full");
+            sendResponse(key, DISK_FULL, false);
+            return null;
+        }
+        UploadAdmission.Permit permit = admission.tryAdmit(bodyLength);
+        if (permit == null) {
+            logger.info("Upload of " + bodyLength + " bytes refused, " + admission.active() + " uploads running");
+            sendResponse(key, UPLOADS_BUSY, false);
+        }
+        return permit;
+    }
+
+    /**
+     * Read handler while a raw body streams in TRANSFER mode: the socket's
+     * bytes go to the file with transferFrom, never into a read buffer. Reads
+     * exactly the rest of the body, so a pipelined request stays in the socket.
+     */
+    private void transferUpload(SelectionKey key, SocketChannel client, Connection conn, UploadState state) {
+        long n;
+        try {
+            n = state.raw.transferFrom(client, state.totalBodyBytes - state.written);
+            if (n == 0) {
+                // transferFrom cannot tell "nothing yet" from end of stream; a read can
+                ByteBuffer probe = ByteBuffer.allocate(1);
+                int r = client.read(probe);
+                if (r < 0) {
+                    cancelAndClose(key, client);
+                    return;
+                }
+                if (r == 0) return;
+                probe.flip();
+                state.raw.write(probe);
+                n = 1;
+            }
+        } catch (IOException e) {
+            logger.info("Upload transfer failed: " + e.getMessage());
+            cancelAndClose(key, client);
+            return;
+        }
+        conn.lastActivity = ServerNIO.now();
+        metrics.bytesReceived.add(n);
+        state.written += n;
+        state.permit.wrote(n);
+        if (state.written >= state.totalBodyBytes) {
+            try {
                 finishUpload(key, client, state);
+            } catch (IOException e) {
+                cancelAndClose(key, client);
             }
+        }
+    }
 
-            return -2;
+    /**
+     * Feeds the part of the body that arrived with the head, then either
+     * finishes the upload or switches the connection to streaming mode.
+     * Returns like beginPost.
+     */
+    private int startUpload(SelectionKey key, SocketChannel client,
+                            Connection conn, UploadState state) throws IOException {
+        ByteBuffer in = conn.in;
+        int headerEnd = conn.parser.headEnd();
+        int bodyInBuffer = (int) Math.min(in.position() - headerEnd, state.totalBodyBytes);
+        if (bodyInBuffer > 0) {
+            ByteBuffer bodyChunk = in.duplicate();
+            bodyChunk.limit(headerEnd + bodyInBuffer).position(headerEnd);
+            if (!feedUpload(key, client, state, bodyChunk)) return CLOSED;
+            logger.info("Upload started: " + state.totalBodyBytes + " bytes total, "
+                    + bodyInBuffer + " already buffered");
         }
 
-        if (data.length < headerEnd + bodyLength) return 0;
+        if (state.written >= state.totalBodyBytes) {
+            finishUpload(key, client, state);
+            return (int) (headerEnd + state.totalBodyBytes);
+        }
+        conn.upload = state;
+        return UPLOADING;
+    }
 
-        String body = new String(data, headerEnd, (int) bodyLength, StandardCharsets.UTF_8);
-        logger.info("POST Body: " + body);
+    /** POST /uploads/sessions with Upload-Length (and optionally Upload-Name): 201 with the session's Location */
+    private int createSession(SelectionKey key, HttpRequestParser req, boolean keepAlive, int end) {
+        if (req.headerLong(HttpRequestParser.CONTENT_LENGTH) > 0) {
+            sendResponse(key, UNEXPECTED_BODY, false);
+            return CLOSED;
+        }
+        long length = req.headerLong(HttpRequestParser.UPLOAD_LENGTH);
+        if (length < 0) {
+            sendResponse(key, BAD_UPLOAD_LENGTH, keepAlive);
+            return end;
+        }
+        if (length > maxUpload) {
+            sendResponse(key, uploadTooLarge, keepAlive);
+            return end;
+        }
+        if (!admission.diskHasRoomFor(length)) {
+            sendResponse(key, DISK_FULL, keepAlive);
+            return end;
+        }
+        UploadSessions.Session s = sessions.create(req.header(HttpRequestParser.UPLOAD_NAME), length);
+        logger.info("Upload session " + s.id + " created for " + s.name + " (" + length + " bytes)");
+        ByteBuffer head = ResponseHeaders.status(ResponseHeaders.CREATED)
+                .header(ResponseHeaders.LOCATION, SESSIONS_PATH + "/" + s.id)
+                .header(ResponseHeaders.UPLOAD_OFFSET, 0)
+                .header(ResponseHeaders.CONTENT_LENGTH, 0)
+                .connection(keepAlive)
+                .end();
+        send(key, keepAlive, head);
+        return end;
+    }
 
-        String rb = "<h1>POST Received</h1>";
-        String response = "HTTP/1.1 200 OK\r\n" +
-                "Date: " + HTTP_DATE.format(ZonedDateTime.now()) + "\r\n" +
-                "Content-Type: text/html\r\n" +
-                "Content-Length: " + rb.length() + "\r\n" +
-                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n" + rb;
-        client.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)));
-        if (!keepAlive) { cancelAndClose(key, client); return -1; }
-        return (int)(headerEnd + bodyLength);
+    /** HEAD reports a session's offset, DELETE drops it with what it received */
+    private void handleSession(SelectionKey key, HttpRequestParser req, boolean keepAlive) {
+        UploadSessions.Session s = session(req.path());
+        boolean head = req.methodIs(HttpRequestParser.HEAD);
+        if (s == null) {
+            if (head) send(key, keepAlive, ResponseHeaders.status(ResponseHeaders.NOT_FOUND)
+                    .header(ResponseHeaders.CONTENT_LENGTH, 0).connection(keepAlive).end());
+            else sendResponse(key, SESSION_NOT_FOUND, keepAlive);
+            return;
+        }
+        if (head) {
+            send(key, keepAlive, ResponseHeaders.status(ResponseHeaders.OK)
+                    .header(ResponseHeaders.UPLOAD_OFFSET, s.offset())
+                    .header(ResponseHeaders.UPLOAD_LENGTH, s.length)
+                    .put(ResponseHeaders.NO_STORE)
+                    .header(ResponseHeaders.CONTENT_LENGTH, 0)
+                    .connection(keepAlive)
+                    .end());
+        } else if (s.isBusy()) {
+            sendResponse(key, SESSION_BUSY, keepAlive);
+        } else {
+            sessions.delete(s);
+            logger.info("Upload session " + s.id + " deleted");
+            send(key, keepAlive, ResponseHeaders.status(ResponseHeaders.NO_CONTENT).connection(keepAlive).end());
+        }
+    }
+
+    /**
+     * PATCH /uploads/sessions/<id> with Upload-Offset equal to the session's
+     * offset: streams the body into the part file like a multipart upload.
+     * The body is unread on every refusal, so a refusal closes the connection.
+     * Returns like beginPost.
+     */
+    private int beginPatch(SelectionKey key, SocketChannel client,
+                           Connection conn, boolean keepAlive) throws IOException {
+        HttpRequestParser req = conn.parser;
+        UploadSessions.Session s = session(req.path());
+        if (s == null) {
+            sendResponse(key, SESSION_NOT_FOUND, false);
+            return CLOSED;
+        }
+        long bodyLength = req.headerLong(HttpRequestParser.CONTENT_LENGTH);
+        long offset = req.headerLong(HttpRequestParser.UPLOAD_OFFSET);
+        byte[] refusal = bodyLength == -1 ? LENGTH_REQUIRED
+                : bodyLength < 0 ? BAD_CONTENT_LENGTH
+                : offset < 0 ? BAD_UPLOAD_OFFSET
+                : null;
+        if (refusal == null && !s.claim()) refusal = SESSION_BUSY;
+        if (refusal != null) {
+            sendResponse(key, refusal, false);
+            return CLOSED;
+        }
+        // the session is ours until the chunk ends
+        if (offset != s.offset()) {
+            s.release();
+            send(key, false, ResponseHeaders.status(ResponseHeaders.CONFLICT)
+                    .header(ResponseHeaders.UPLOAD_OFFSET, s.offset())
+                    .header(ResponseHeaders.CONTENT_LENGTH, 0)
+                    .connection(false)
+                    .end());
+            return CLOSED;
+        }
+        UploadAdmission.Permit permit = null;
+        if (offset + bodyLength > s.length) refusal = CHUNK_TOO_LARGE;
+        else if (!admission.diskHasRoomFor(bodyLength)) refusal = DISK_FULL;
+        else if ((permit = admission.tryAdmit(bodyLength)) == null) refusal = UPLOADS_BUSY;
+        if (refusal != null) {
+            s.release();
+            sendResponse(key, refusal, false);
+            return CLOSED;
+        }
+        UploadState state = new UploadState(null, s, null, bodyLength, keepAlive, conn.requestStarted, permit);
+        return startUpload(key, client, conn, state);
+    }
+
+    private UploadSessions.Session session(String path) {
+        return path.startsWith(SESSIONS_PATH + "/") ? sessions.get(path.substring(SESSIONS_PATH.length() + 1)) : null;
     }
 
     /**
      * Called on every subsequent read event while an upload is in progress.
-     * Writes the chunk straight to the temp file ? no buffering in memory.
+     * The chunk is handed to the multipart parser, which writes file parts
+     * straight to their destination, or written to the session's part file,
+     * so nothing is buffered in memory.
      */
     private void continueUpload(SelectionKey key, SocketChannel client,
                                 UploadState state, ByteBuffer chunk) throws IOException {
         long remaining = state.totalBodyBytes - state.written;
         if (chunk.limit() > remaining) chunk.limit((int) remaining);
 
-        int writtenNow = chunk.remaining();
-        while (chunk.hasRemaining()) {
-            state.out.write(chunk);
-        }
-        state.written += writtenNow;
-
-        logger.info("Upload progress: " + state.written + " / " + state.totalBodyBytes + " bytes");
+        if (!feedUpload(key, client, state, chunk)) return;
 
         if (state.written >= state.totalBodyBytes) {
             finishUpload(key, client, state);
         }
     }
 
-    //Parse temp file and respond
+    /** Feeds one body chunk to the parser; on a disk error drops the upload and the connection */
+    private boolean feedUpload(SelectionKey key, SocketChannel client,
+                               UploadState state, ByteBuffer chunk) {
+        int n = chunk.remaining();
+        try {
+            state.feed(chunk);
+            state.written += n;
+            state.permit.wrote(n);
+            return true;
+        } catch (IOException e) {
+            logger.info("Upload write failed: " + e.getMessage());
+            state.abort();
+            conn(key).upload = null;
+            sendResponse(key, UPLOAD_FAILED, false);
+            return false;
+        }
+    }
+
+    //Close the saved parts and respond
 
     private void finishUpload(SelectionKey key, SocketChannel client,
                               UploadState state) throws IOException {
-        try {
-            state.out.close();
-        } catch (IOException ignored) {}
+        Connection conn = conn(key);
+        conn.upload = null;
 
-        logger.info("Upload complete, parsing multipart...");
+        logger.info("Upload complete, closing parts...");
 
-        key.interestOps(0);
-        ioPool.submit(() -> {
+        long seq = beginOffload(key);
+        ioPool.execute(() -> {
             try {
-                byte[] body = Files.readAllBytes(state.tempFile);
-                Files.delete(state.tempFile);
-
-                List<String> saved  = new ArrayList<>();
-                List<String> errors = new ArrayList<>();
-                parseMultipart(body, state.boundary, saved, errors);
-                sendUploadResponse(client, key, saved, errors, state.keepAlive);
+                if (state.session != null) {
+                    finishChunk(key, seq, state);
+                    return;
+                }
+                if (state.raw != null) {
+                    state.raw.finish();
+                    logger.info("Saved: " + Paths.get(UPLOADS, state.raw.name()) + " (" + state.raw.written() + " bytes)");
+                    uploaded(state.raw.name());
+                    sendUploadResponse(key, seq, List.of(state.raw.name()), List.of(), state.keepAlive);
+                    return;
+                }
+                MultipartStreamParser parser = state.parser;
+                parser.finish();
+                for (int i = 0; i < parser.saved().size(); i++) {
+                    logger.info("Saved: " + Paths.get(UPLOADS, parser.saved().get(i))
+                            + " (" + parser.savedSizes().get(i) + " bytes)");
+                    uploaded(parser.saved().get(i));
+                }
+                sendUploadResponse(key, seq, parser.saved(), parser.errors(), state.keepAlive);
             } catch (Exception e) {
                 logger.info("finishUpload error: " + e.getMessage());
-                try { client.close(); } catch (IOException ignored) {}
+                state.abort();
+                cancelAndClose(key, client);
             } finally {
-                key.attach(new ReadAcc());
-                if (key.isValid()) {
-                    key.interestOps(SelectionKey.OP_READ);
-                    key.selector().wakeup();
-                }
+                state.permit.release();
+                endOffload(key, state.session != null ? AccessLog.Method.PATCH : AccessLog.Method.POST,
+                        Metrics.Route.UPLOAD, state.started);
             }
         });
     }
 
-    private void parseMultipart(byte[] body, String boundary,
-                                List<String> saved, List<String> errors) {
-
-        byte[] delimiter     = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
-        byte[] firstBoundary = ("--"     + boundary).getBytes(StandardCharsets.US_ASCII);
-
-        int pos = indexOf(body, firstBoundary, 0);
-        if (pos == -1) { errors.add("Malformed multipart body"); return; }
-        pos += firstBoundary.length;
-
-        while (pos < body.length) {
-            // "--" means final boundary
-            if (pos + 1 < body.length && body[pos] == '-' && body[pos+1] == '-') break;
-
-            // skip \r\n after boundary
-            if (pos + 1 < body.length && body[pos] == '\r' && body[pos+1] == '\n') pos += 2;
-            else break;
-
-            // find end of part headers
-            int partHeaderEnd = indexOf(body, new byte[]{'\r','\n','\r','\n'}, pos);
-            if (partHeaderEnd == -1) break;
-
-            String partHeaders = new String(body, pos, partHeaderEnd - pos, StandardCharsets.US_ASCII);
-            int dataStart = partHeaderEnd + 4;
-
-            int dataEnd = indexOf(body, delimiter, dataStart);
-            if (dataEnd == -1) dataEnd = body.length;
-
-            String disposition = extractPartHeader(partHeaders, "Content-Disposition");
-            String filename    = extractFilename(disposition);
-
-            if (filename == null || filename.isEmpty()) {
-                pos = dataEnd + delimiter.length;
-                continue; // plain text field, skip
-            }
-
-            filename = Paths.get(filename).getFileName().toString()
-                    .replaceAll("[^a-zA-Z0-9._\\-]", "_");
-
-            Path savePath = Paths.get(UPLOADS, filename);
-            if (Files.exists(savePath)) {
-                String ts  = String.valueOf(System.currentTimeMillis());
-                String ext = filename.contains(".")
-                        ? filename.substring(filename.lastIndexOf('.')) : "";
-                String base = filename.contains(".")
-                        ? filename.substring(0, filename.lastIndexOf('.')) : filename;
-                filename = base + "_" + ts + ext;
-                savePath = Paths.get(UPLOADS, filename);
-            }
-
-            try {
-                Files.write(savePath,
-                        Arrays.copyOfRange(body, dataStart, dataEnd),
-                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
-                saved.add(filename);
-                logger.info("Saved: " + savePath + " (" + (dataEnd - dataStart) + " bytes)");
-            } catch (IOException e) {
-                errors.add(filename + " (" + e.getMessage() + ")");
-                logger.info("Save failed: " + e.getMessage());
-            }
-
-            pos = dataEnd + delimiter.length;
+    /**
+     * Ends a PATCH on ioPool: the chunk is checkpointed, and a session that
+     * has all its bytes is moved into the uploads folder and answered like a
+     * multipart upload; otherwise 204 with the new offset.
+     */
+    private void finishChunk(SelectionKey key, long seq, UploadState state) throws IOException {
+        UploadSessions.Session s = state.session;
+        s.release();
+        if (!s.isComplete()) {
+            send(key, seq, state.keepAlive, ResponseHeaders.status(ResponseHeaders.NO_CONTENT)
+                    .header(ResponseHeaders.UPLOAD_OFFSET, s.offset())
+                    .connection(state.keepAlive)
+                    .end());
+            return;
         }
+        String name = sessions.complete(s, Paths.get(UPLOADS));
+        logger.info("Saved: " + Paths.get(UPLOADS, name) + " (" + s.length + " bytes, session " + s.id + ")");
+        uploaded(name);
+        sendUploadResponse(key, seq, List.of(name), List.of(), state.keepAlive);
+    }
+
+    /** A file landed in the uploads folder: list it and queue its thumbnail */
+    private void uploaded(String name) {
+        // don't wait for the watcher, the client may ask for the playlist right away
+        playlist.added(name);
+        thumbnails.submit(Paths.get(UPLOADS, name));
     }
 
     // Upload response
-    private void sendUploadResponse(SocketChannel client, SelectionKey key,
+    private void sendUploadResponse(SelectionKey key, long seq,
                                     List<String> saved, List<String> errors,
                                     boolean keepAlive) {
         StringBuilder body = new StringBuilder();
@@ -353,196 +941,667 @@ public class SimpleHttpServer {
         }
         body.append("]\n}");
 
-        String bodyStr    = body.toString();
-        int    status     = errors.isEmpty() ? 200 : saved.isEmpty() ? 400 : 207;
-        String statusText = status == 200 ? "OK" : status == 207 ? "Multi-Status" : "Bad Request";
+        byte[] bodyBytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] status = errors.isEmpty() ? ResponseHeaders.OK
+                : saved.isEmpty() ? ResponseHeaders.BAD_REQUEST : ResponseHeaders.MULTI_STATUS;
+        ByteBuffer head = ResponseHeaders.status(status)
+                .header(ResponseHeaders.CONTENT_TYPE, "application/json")
+                .header(ResponseHeaders.CONTENT_LENGTH, bodyBytes.length)
+                .connection(keepAlive)
+                .end();
+        send(key, seq, keepAlive, head, ByteBuffer.wrap(bodyBytes));
+    }
 
-        String response = "HTTP/1.1 " + status + " " + statusText + "\r\n" +
-                "Date: " + HTTP_DATE.format(ZonedDateTime.now()) + "\r\n" +
-                "Content-Type: application/json\r\n" +
-                "Content-Length: " + bodyStr.length() + "\r\n" +
-                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n" +
-                bodyStr;
+    /**
+     * Serves the cached playlist: the whole list as a JSON array, or a page
+     * of it for {@code ?limit=N&cursor=<name>}. Both carry the index version
+     * as ETag, so an unchanged playlist costs a 304.
+     */
+    private void handlePlaylist(SelectionKey key, String query, String inm,
+                                Compression.Encoding enc, boolean keepAlive) {
+        PlaylistIndex.Snapshot snap = playlist.snapshot();
+        if (inm != null && ETagIndex.noneMatchHits(inm, snap.etag)) {
+            send(key, keepAlive, playlistHead(ResponseHeaders.NOT_MODIFIED, snap, keepAlive).end());
+            return;
+        }
+
+        PlaylistBody body = playlistBody(snap, query, enc);
+        if (body == null) {
+            sendResponse(key, INVALID_LIMIT, keepAlive);
+            return;
+        }
+        ResponseHeaders head = playlistHead(ResponseHeaders.OK, snap, keepAlive)
+                .header(ResponseHeaders.CONTENT_TYPE, "application/json");
+        if (body.enc != null) head.header(ResponseHeaders.CONTENT_ENCODING, body.enc.token);
+        head.header(ResponseHeaders.CONTENT_LENGTH, body.bytes.length);
+        send(key, keepAlive, head.end(), ByteBuffer.wrap(body.bytes));
+    }
+
+    /** A playlist body and its content coding, null for identity */
+    private static final class PlaylistBody {
+        final byte[] bytes;
+        final Compression.Encoding enc;
+
+        PlaylistBody(byte[] bytes, Compression.Encoding enc) {
+            this.bytes = bytes;
+            this.enc = enc;
+        }
+    }
+
+    /** The whole playlist, or the page {@code ?limit=N&cursor=<name>} asks for; null if the limit is invalid */
+    private PlaylistBody playlistBody(PlaylistIndex.Snapshot snap, String query, Compression.Encoding enc) {
+        String limit = queryParam(query, "limit");
+        String cursor = queryParam(query, "cursor");
+        if (limit != null || cursor != null) {
+            int n;
+            try { n = limit == null ? PlaylistIndex.MAX_LIMIT : Integer.parseInt(limit); }
+            catch (NumberFormatException e) { n = 0; }
+            if (n <= 0) return null;
+            byte[] page = playlist.page(cursor, n);
+            if (enc != null && page.length >= Compression.MIN_SIZE) return new PlaylistBody(Compression.compress(page, enc), enc);
+            return new PlaylistBody(page, null);
+        }
+        if (enc != null && snap.json.length >= Compression.MIN_SIZE) return new PlaylistBody(snap.encoded(enc), enc);
+        return new PlaylistBody(snap.json, null);
+    }
+
+    private static ResponseHeaders playlistHead(byte[] status, PlaylistIndex.Snapshot snap, boolean keepAlive) {
+        return ResponseHeaders.status(status)
+                .etag(snap.etag)
+                .put(ResponseHeaders.NO_CACHE)
+                .put(ResponseHeaders.VARY_ACCEPT_ENCODING)
+                .connection(keepAlive);
+    }
+
+    /** Prometheus scrape; rendered on the loop thread, it only reads counters */
+    private void handleMetrics(SelectionKey key, boolean keepAlive) {
+        byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer head = ResponseHeaders.status(ResponseHeaders.OK)
+                .header(ResponseHeaders.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8")
+                .put(ResponseHeaders.NO_STORE)
+                .header(ResponseHeaders.CONTENT_LENGTH, body.length)
+                .connection(keepAlive)
+                .end();
+        send(key, keepAlive, head, ByteBuffer.wrap(body));
+    }
+
+    // HTTP/2
+
+    /** Switches a connection to HTTP/2; its streams are answered by handleStream */
+    private Http2Connection startHttp2(SelectionKey key) {
+        Connection conn = conn(key);
+        metrics.http2Connections.increment();
+        return new Http2Connection((close, parts) -> conn.out.complete(conn.out.reserve(), close, parts),
+                stream -> handleStream(key, stream), HTTP2_MAX_STREAMS);
+    }
+
+    /** Feeds what was read to the connection's HTTP/2 framing; a partial frame stays buffered */
+    private void readHttp2(SelectionKey key, Connection conn) {
+        ByteBuffer in = conn.in;
+        in.flip();
+        conn.h2.onRead(in);
+        if (in.hasRemaining()) in.compact();
+        else releaseReadBuffer(conn);
+        flush(key);
+    }
+
+    /**
+     * The decoded HTTP2-Settings of a GET or HEAD asking for "Upgrade: h2c", or
+     * null if the connection stays on HTTP/1.1: the request has a body, a
+     * response is still being produced, or the settings are not valid base64url.
+     */
+    private static byte[] http2Settings(Connection conn, HttpRequestParser req) {
+        if (!HTTP2_ENABLED || conn.out.unfinished() > 0 || conn.inFlight.get() > 0) return null;
+        if (!req.methodIs(HttpRequestParser.GET) && !req.methodIs(HttpRequestParser.HEAD)) return null;
+        if (!req.headerContainsIgnoreCase(HttpRequestParser.UPGRADE, "h2c")
+                || !req.headerContainsIgnoreCase(HttpRequestParser.CONNECTION, "upgrade")
+                || req.headerLong(HttpRequestParser.CONTENT_LENGTH) > 0) return null;
+        String settings = req.header(HttpRequestParser.HTTP2_SETTINGS);
+        if (settings == null) return null;
         try {
-            client.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)));
-            if (!keepAlive) cancelAndClose(key, client);
-        } catch (IOException e) {
-            logger.info("Response write error: " + e.getMessage());
+            byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null;
         }
     }
 
-    private void handlePlaylist(SocketChannel client, SelectionKey key, boolean keepAlive) {
+    /**
+     * Answers 101 and continues in HTTP/2 (RFC 7540 section 3.2): the request
+     * that asked for the upgrade is answered as stream 1. Returns UPGRADED.
+     */
+    private int upgrade(SelectionKey key, Connection conn, HttpRequestParser req, byte[] settings) {
+        send(key, true, ByteBuffer.wrap(SWITCHING_PROTOCOLS));
+        conn.h2 = startHttp2(key);
+        Http2Connection.Stream s = conn.h2.upgrade(settings,
+                req.methodIs(HttpRequestParser.HEAD) ? "HEAD" : "GET", req.path(), req.query());
+        s.authority = req.header(HttpRequestParser.HOST);
+        for (HttpRequestParser.Header h : UPGRADE_HEADERS) {
+            String v = req.header(h);
+            if (v != null) s.headers.put(new String(h.lower, StandardCharsets.US_ASCII), v);
+        }
+        handleStream(key, s);
+        return UPGRADED;
+    }
+
+    /** Answers one HTTP/2 request and records it like an HTTP/1.1 one */
+    private void handleStream(SelectionKey key, Http2Connection.Stream s) {
+        Connection conn = conn(key);
+        metrics.http2Streams.increment();
+        conn.requestStarted = System.nanoTime();
+        conn.requestRoute = Metrics.Route.of(s.path);
+        conn.requestMethod = AccessLog.Method.of(s.method);
+        conn.responseStatus = 0;
+        conn.responseBytes = 0;
         try {
-            List<String> entries = new ArrayList<>();
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(UPLOADS))) {
-                for (Path p : stream) {
-                    if (Files.isDirectory(p)) continue;
-                    String name = p.getFileName().toString();
-                    // skip temp files still being written
-                    if (name.endsWith(".tmp")) continue;
-
-                    String lower = name.toLowerCase(Locale.ROOT);
-                    String type;
-                    if (lower.endsWith(".mp4") || lower.endsWith(".webm") || lower.endsWith(".ogg")
-                            || lower.endsWith(".mov") || lower.endsWith(".avi")) {
-                        type = "video";
-                    } else {
-                        type = "image";
-                    }
-                    // build JSON object per file
-                    entries.add("{\"name\":\"" + name.replace("\"", "\\\"")
-                            + "\",\"type\":\"" + type + "\"}");
-                }
-            }
-            String body = "[" + String.join(",", entries) + "]";
-            String response = "HTTP/1.1 200 OK\r\n" +
-                    "Date: " + HTTP_DATE.format(ZonedDateTime.now()) + "\r\n" +
-                    "Content-Type: application/json\r\n" +
-                    "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
-                    "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n" +
-                    body;
-            sendResponse(client, key,
-                    response.getBytes(StandardCharsets.UTF_8), keepAlive);
+            serveStream(conn, s);
         } catch (IOException e) {
-            logger.info("Playlist error: " + e.getMessage());
-            sendResponse(client, key, send404().getBytes(), keepAlive);
+            logger.info("HTTP/2 stream: " + e.getMessage());
+            respond(conn, s, 500, null);
         }
+        long nanos = System.nanoTime() - conn.requestStarted;
+        metrics.record(conn.requestRoute, nanos);
+        accessLog.record(conn.requestMethod, conn.requestRoute, conn.responseStatus, conn.responseBytes, nanos);
     }
 
-    private int handleGet(SocketChannel client, SelectionKey key, String path,
-                          String headers, boolean keepAlive, int end) throws IOException {
+    /**
+     * Routes an HTTP/2 request. It is served right on the loop thread, as a
+     * static file only costs a stat here: the body is a slice of the hot-file
+     * cache or a region of a shared channel, never read into memory. Uploads
+     * and upload sessions stay on HTTP/1.1.
+     */
+    private void serveStream(Connection conn, Http2Connection.Stream s) throws IOException {
+        long wait = quotas == null || conn.remote == null ? 0 : quotas.tryAcquire(conn.remote, ServerNIO.now());
+        if (wait > 0) {
+            s.header("retry-after", (wait + 999) / 1000).header("content-type", "text/html")
+                    .header("content-length", TOO_MANY_REQUESTS.length);
+            respond(conn, s, 429, ByteBuffer.wrap(TOO_MANY_REQUESTS));
+            return;
+        }
+        boolean head = s.method.equals("HEAD");
+        if (!head && !s.method.equals("GET")) {
+            respondError(conn, s, METHOD_NOT_ALLOWED, false);
+            return;
+        }
+        String path = s.path.equals("/") ? "/index.html" : s.path;
+        if (path.equals("/playlist")) {
+            streamPlaylist(conn, s, head);
+            return;
+        }
+        if (path.equals("/metrics")) {
+            byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+            s.header("content-type", "text/plain; version=0.0.4; charset=utf-8").header("cache-control", "no-store")
+                    .header("content-length", body.length);
+            respond(conn, s, 200, head ? null : ByteBuffer.wrap(body));
+            return;
+        }
+        if (!RouteTable.isSafe(path)) {
+            respondError(conn, s, FORBIDDEN, head);
+            return;
+        }
+        Path filePath = path.startsWith(THUMBNAILS) ? thumbnail(path) : routes.resolve(path);
+        if (filePath == NOT_READY) {
+            s.header("retry-after", THUMBNAIL_RETRY_AFTER);
+            respondError(conn, s, THUMBNAIL_PENDING, head);
+            return;
+        }
+        StaticFileCache.Entry cached = filePath == null ? null : fileCache.get(filePath);
+        long size, lastModified;
+        if (cached != null) {
+            size = cached.size;
+            lastModified = cached.lastModified;
+        } else {
+            BasicFileAttributes attrs = null;
+            if (filePath != null) {
+                try { attrs = Files.readAttributes(filePath, BasicFileAttributes.class); }
+                catch (IOException ignored) {}
+            }
+            if (attrs == null || attrs.isDirectory()) {
+                respondError(conn, s, NOT_FOUND, head);
+                return;
+            }
+            size = attrs.size();
+            lastModified = attrs.lastModifiedTime().toMillis();
+        }
+
+        String etag = etags.get(filePath, size, lastModified);
+        s.header("last-modified", ResponseHeaders.httpDate(lastModified));
+        if (etag != null) s.header("etag", etag);
+        if (notModified(s.header("if-modified-since"), s.header("if-none-match"), etag, lastModified)) {
+            respond(conn, s, 304, null);
+            return;
+        }
+        String contentType = getContentType(path);
+        s.header("accept-ranges", "bytes");
+
+        String rangeHeader = s.header("range");
+        List<ByteRanges.Range> ranges = rangeHeader == null || !ifRangeMatches(s.header("if-range"), etag, lastModified)
+                ? null : ByteRanges.parse(rangeHeader, size);
+        if (ranges != null && ranges.isEmpty()) {
+            s.header("content-range", "bytes */" + size).header("content-length", 0);
+            respond(conn, s, 416, null);
+            return;
+        }
+        if (ranges != null && ranges.size() == 1) {
+            ByteRanges.Range r = ranges.get(0);
+            s.header("content-type", contentType).header("content-length", r.length())
+                    .header("content-range", "bytes " + r.first + "-" + r.last + "/" + size);
+            respond(conn, s, 206, head ? null : mediaChannels.acquire(filePath, size, lastModified).region(r.first, r.length()));
+            return;
+        }
+        // several ranges get the whole file: on one multiplexed connection separate requests cost little
+        s.header("content-type", contentType);
+        if (Compression.compressible(contentType)) s.header("vary", "accept-encoding");
+        s.header("content-length", size);
+        Object body;
+        if (head) {
+            body = null;
+        } else if (cached != null) {
+            ByteBuffer b = cached.response(); // the HTTP/1.1 header lines, then the file
+            body = b.position(b.limit() - (int) size);
+        } else {
+            body = mediaChannels.acquire(filePath, size, lastModified).region(0, size);
+        }
+        respond(conn, s, 200, body);
+    }
+
+    /** The playlist over HTTP/2, with the same ETag, paging and compression as handlePlaylist */
+    private void streamPlaylist(Connection conn, Http2Connection.Stream s, boolean head) {
+        PlaylistIndex.Snapshot snap = playlist.snapshot();
+        s.header("etag", snap.etag).header("cache-control", "no-cache").header("vary", "accept-encoding");
+        String inm = s.header("if-none-match");
+        if (inm != null && ETagIndex.noneMatchHits(inm, snap.etag)) {
+            respond(conn, s, 304, null);
+            return;
+        }
+        PlaylistBody body = playlistBody(snap, s.query, Compression.negotiate(s.header("accept-encoding")));
+        if (body == null) {
+            respondError(conn, s, INVALID_LIMIT, head);
+            return;
+        }
+        s.header("content-type", "application/json");
+        if (body.enc != null) s.header("content-encoding", body.enc.token);
+        s.header("content-length", body.bytes.length);
+        respond(conn, s, 200, head ? null : ByteBuffer.wrap(body.bytes));
+    }
+
+    /** An error page shared with HTTP/1.1: the status and body of its pre-encoded response */
+    private void respondError(Connection conn, Http2Connection.Stream s, byte[] response, boolean head) {
+        int bodyStart = 0;
+        for (int i = 3; i < response.length && bodyStart == 0; i++)
+            if (response[i] == '\n' && response[i - 2] == '\n') bodyStart = i + 1;
+        s.header("content-type", "text/html").header("content-length", response.length - bodyStart);
+        int status = status(new Object[]{ByteBuffer.wrap(response)});
+        respond(conn, s, status, head ? null : ByteBuffer.wrap(response, bodyStart, response.length - bodyStart));
+    }
+
+    /** Sends a stream's response with the current Date, noting it for the access log */
+    private static void respond(Connection conn, Http2Connection.Stream s, int status, Object body) {
+        conn.responseStatus = status;
+        conn.responseBytes = body instanceof ByteBuffer ? ((ByteBuffer) body).remaining()
+                : body != null ? ((OutboundQueue.FileRegion) body).remaining : 0;
+        s.header("date", ResponseHeaders.currentDate()).respond(status, body);
+    }
+
+    /** Gauges and counters owned by other components, read on each scrape */
+    private void registerMetrics() {
+        metrics.gauge("io_pool_active", "Requests running on the request executor", ioPool::active);
+        metrics.gauge("io_pool_queued", "Requests waiting for a request executor permit", ioPool::queued);
+        metrics.counter("file_cache_hits_total", "Static file cache hits", fileCache::hits);
+        metrics.counter("file_cache_misses_total", "Static file cache misses", fileCache::misses);
+        metrics.counter("file_cache_evictions_total", "Static file cache evictions", fileCache::evictions);
+        metrics.gauge("file_cache_entries", "Files held by the static file cache", fileCache::size);
+        metrics.gauge("file_cache_bytes", "Bytes held by the static file cache", fileCache::bytes);
+        metrics.gauge("buffer_pool_outstanding", "Pooled buffers currently leased",
+                () -> BUFFERS.stats().outstanding);
+        metrics.gauge("buffer_pool_hit_ratio", "Share of buffer leases served from the pool",
+                () -> BUFFERS.stats().hitRate());
+        metrics.gauge("buffer_pool_reserved_bytes", "Direct memory reserved by the buffer pool",
+                () -> BUFFERS.stats().bytesReserved);
+        metrics.counter("buffer_pool_leaks_total", "Buffers collected without being released",
+                () -> BUFFERS.stats().leaks);
+        metrics.gauge("media_open_files", "File channels held open for streaming", mediaChannels::openFiles);
+        metrics.gauge("etag_index_entries", "Files with a known content hash", etags::size);
+        metrics.gauge("playlist_entries", "Files listed by /playlist", playlist::size);
+        metrics.gauge("uploads_active", "Uploads being received", admission::active);
+        metrics.counter("access_log_dropped_total", "Access log records lost to a full ring", accessLog::dropped);
+        metrics.counter("thumbnails_generated_total", "Thumbnails made for uploaded images", thumbnails::generated);
+        metrics.counter("thumbnails_failed_total", "Images no thumbnail could be made for", thumbnails::failures);
+        metrics.counter("thumbnails_dropped_total", "Thumbnails not queued because the queue was full",
+                thumbnails::dropped);
+        metrics.gauge("thumbnails_queued", "Thumbnails waiting for a thread", thumbnails::queued);
+        metrics.gauge("upload_sessions", "Resumable upload sessions not yet complete", sessions::size);
+        metrics.gauge("uploads_reserved_bytes", "Declared body bytes of the uploads being received",
+                admission::reserved);
+        metrics.counter("uploads_rejected_busy_total", "Uploads refused by the concurrency or byte limit",
+                admission::rejectedBusy);
+        metrics.counter("uploads_rejected_disk_total", "Uploads refused for lack of disk space",
+                admission::rejectedDiskFull);
+        if (quotas != null) {
+            metrics.counter("quota_rejected_total", "Requests refused by a client's rate limit", quotas::rejected);
+            metrics.gauge("quota_clients", "Clients with a rate limit bucket", quotas::clients);
+        }
+    }
+
+    /** The decoded value of a query parameter, or null */
+    private static String queryParam(String query, String name) {
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String k = eq < 0 ? pair : pair.substring(0, eq);
+            if (k.equals(name))
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    private int handleGet(SelectionKey key, HttpRequestParser req,
+                          boolean keepAlive, int end) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        String path = req.path();
 
         if (path.equals("/")) path = "/index.html";
-        // At the top of handleGet, before resolvePath:
+        // At the top of handleGet, before the route table:
         if (path.equals("/playlist")) {
-            handlePlaylist(client, key, keepAlive);
+            handlePlaylist(key, req.query(), req.header(HttpRequestParser.IF_NONE_MATCH),
+                    Compression.negotiate(req.header(HttpRequestParser.ACCEPT_ENCODING)), keepAlive);
+            return end;
+        }
+        if (path.equals("/metrics")) {
+            handleMetrics(key, keepAlive);
             return end;
         }
 
-        Path filePath = resolvePath(path);
+        if (!RouteTable.isSafe(path)) {
+            sendResponse(key, FORBIDDEN, false); return CLOSED;
+        }
+        Path filePath = path.startsWith(THUMBNAILS) ? thumbnail(path) : routes.resolve(path);
         if (filePath == null) {
-            sendResponse(client, key, send404().getBytes(), keepAlive); return end;
+            sendResponse(key, NOT_FOUND, keepAlive); return end;
         }
-        if (!isSafePath(filePath)) {
-            sendBytes(client, send403().getBytes()); cancelAndClose(key, client); return -1;
+        if (filePath == NOT_READY) {
+            sendResponse(key, THUMBNAIL_PENDING, keepAlive); return end;
         }
-        if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
-            sendResponse(client, key, send404().getBytes(), keepAlive); return end;
+
+        // the request buffer is reused once we return, so copy what the pool thread needs
+        String rangeHeader = req.header(HttpRequestParser.RANGE);
+        String ims = req.header(HttpRequestParser.IF_MODIFIED_SINCE);
+        String ifRange = req.header(HttpRequestParser.IF_RANGE);
+        String inm = req.header(HttpRequestParser.IF_NONE_MATCH);
+        // text assets go out compressed when the client accepts it; ranges always refer to identity bytes
+        Compression.Encoding enc = rangeHeader == null && Compression.compressible(getContentType(path))
+                ? Compression.negotiate(req.header(HttpRequestParser.ACCEPT_ENCODING)) : null;
+
+        // hot small files, and their compressed variants, are answered right here without a single syscall
+        StaticFileCache.Entry cached = null;
+        if (rangeHeader == null) {
+            if (enc != null) cached = fileCache.get(filePath, enc);
+            if (cached == null) {
+                cached = fileCache.get(filePath);
+                // a file too small to be worth compressing goes out as identity either way
+                if (cached != null && enc != null) {
+                    if (cached.size < Compression.MIN_SIZE) enc = null;
+                    else cached = null;
+                }
+            }
+        }
+        if (cached != null) {
+            String etag = etags.get(filePath, cached.size, cached.lastModified);
+            if (enc != null) etag = Compression.variantTag(etag, enc);
+            if (!handleCaching(key, ims, inm, etag, cached.lastModified, keepAlive))
+                sendCached(key, NEXT, cached, etag, keepAlive);
+            return end;
         }
-        if (handleCaching(client, key, headers, filePath, keepAlive)) return end;
 
-        String rangeHeader = extractHeader(headers, "Range");
+        // one stat answers exists, isDirectory, size and mtime
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            attrs = null;
+        }
+        if (attrs == null || attrs.isDirectory()) {
+            sendResponse(key, NOT_FOUND, keepAlive); return end;
+        }
+        if (attrs.size() < Compression.MIN_SIZE) enc = null;
+
+        // validators come from the stat and the tag index; a 304 never opens the file
+        String etag = etags.get(filePath, attrs.size(), attrs.lastModifiedTime().toMillis());
+        if (enc != null) etag = Compression.variantTag(etag, enc);
+        if (handleCaching(key, ims, inm, etag, attrs.lastModifiedTime().toMillis(), keepAlive))
+            return end;
+
+        final Path file = filePath;
+        final Compression.Encoding encoding = enc;
+        final BasicFileAttributes fileAttrs = attrs;
         final String fp = path;
-        key.interestOps(0);
-        if (rangeHeader != null && rangeHeader.trim().toLowerCase().startsWith("bytes=")) {
-            ioPool.submit(() -> {
-                try { handleRange(client, key, headers, filePath, keepAlive, fp); }
-                catch (IOException e) { logger.info("Range: " + e.getMessage()); try { client.close(); } catch (IOException ignored) {} }
-                finally { if (key.isValid()) { key.interestOps(SelectionKey.OP_READ); key.selector().wakeup(); } }
+        // the pool thread only stats the file and queues the response;
+        // the bytes are sent by the selector loop as the socket drains
+        long seq = beginOffload(key);
+        Metrics.Route route = conn(key).requestRoute;
+        AccessLog.Method method = conn(key).requestMethod;
+        long started = conn(key).requestStarted;
+        if (rangeHeader != null) {
+            ioPool.execute(() -> {
+                try { handleRange(key, seq, rangeHeader, ifRange, file, fileAttrs, keepAlive, fp); }
+                catch (IOException e) { logger.info("Range: " + e.getMessage()); cancelAndClose(key, client); }
+                finally { endOffload(key, method, route, started); }
             });
         } else {
-            ioPool.submit(() -> {
-                try { serveFullFile(client, filePath, keepAlive, fp); }
-                catch (IOException e) { logger.info("Serve: " + e.getMessage()); try { client.close(); } catch (IOException ignored) {} }
-                finally { if (key.isValid()) { key.interestOps(SelectionKey.OP_READ); key.selector().wakeup(); } }
+            ioPool.execute(() -> {
+                try { serveFullFile(key, seq, file, fileAttrs, encoding, keepAlive, fp); }
+                catch (IOException e) { logger.info("Serve: " + e.getMessage()); cancelAndClose(key, client); }
+                finally { endOffload(key, method, route, started); }
             });
         }
         return end;
     }
 
-    private void handleRange(SocketChannel client, SelectionKey key, String headers,
-                             Path filePath, boolean keepAlive, String path) throws IOException {
-        String rangeHeader = extractHeader(headers, "Range");
-        long fileSize = Files.size(filePath);
-        long start = 0, endByte = fileSize - 1;
+    /**
+     * The thumbnail {@code /thumbs/<name>} asks for, served like any image file
+     * (its suffix, and so its content type, is the upload's). An image no
+     * thumbnail can be made of is served itself.
+     * @return null if there is no such upload image, {@link #NOT_READY} while
+     *         the thumbnail is being made
+     */
+    private Path thumbnail(String path) {
+        String name = path.substring(THUMBNAILS.length());
+        if (name.isEmpty() || name.indexOf('/') >= 0 || !Thumbnails.supported(name)) return null;
+        Path src = Paths.get(UPLOADS, name);
+        BasicFileAttributes attrs;
         try {
-            String[] parts = rangeHeader.substring(6).trim().split("-", 2);
-            if (!parts[0].isEmpty()) start   = Long.parseLong(parts[0].trim());
-            if (parts.length > 1 && !parts[1].isEmpty()) endByte = Long.parseLong(parts[1].trim());
-        } catch (Exception ignored) {}
-        if (start > endByte || start >= fileSize) {
-            sendResponse(client, key,
-                    ("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + fileSize + "\r\nContent-Length: 0\r\n\r\n").getBytes(), keepAlive);
+            attrs = Files.readAttributes(src, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!attrs.isRegularFile()) return null;
+        Path thumb = thumbnails.get(src, attrs.size(), attrs.lastModifiedTime().toMillis());
+        return thumb != null ? thumb : NOT_READY;
+    }
+
+    /**
+     * Answers a Range request with 206 for one range, 206 multipart/byteranges
+     * for several, 416 if none overlaps the file, or the full file when the
+     * header is unusable or If-Range no longer matches.
+     */
+    private void handleRange(SelectionKey key, long seq, String rangeHeader, String ifRange, Path filePath,
+                             BasicFileAttributes attrs, boolean keepAlive, String path) throws IOException {
+        long fileSize = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String etag = etags.get(filePath, fileSize, lastModified);
+        List<ByteRanges.Range> ranges = ByteRanges.parse(rangeHeader, fileSize);
+        if (ranges == null || !ifRangeMatches(ifRange, etag, lastModified)) {
+            serveFullFile(key, seq, filePath, attrs, null, keepAlive, path);
             return;
         }
-        endByte = Math.min(endByte, fileSize - 1);
-        long contentLength = endByte - start + 1;
-        String header = "HTTP/1.1 206 Partial Content\r\n" +
-                "Date: " + HTTP_DATE.format(ZonedDateTime.now()) + "\r\n" +
-                "Last-Modified: " + HTTP_DATE.format(Files.getLastModifiedTime(filePath).toInstant()) + "\r\n" +
-                "Content-Type: " + getContentType(path) + "\r\n" +
-                "Content-Length: " + contentLength + "\r\n" +
-                "Content-Range: bytes " + start + "-" + endByte + "/" + fileSize + "\r\n" +
-                "Accept-Ranges: bytes\r\n" +
-                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+        if (ranges.isEmpty()) {
+            send(key, seq, keepAlive, ResponseHeaders.status(ResponseHeaders.RANGE_NOT_SATISFIABLE)
+                    .unsatisfiedRange(fileSize)
+                    .header(ResponseHeaders.CONTENT_LENGTH, 0)
+                    .connection(keepAlive)
+                    .end());
+            return;
+        }
+        String contentType = getContentType(path);
+        ResponseHeaders head = ResponseHeaders.status(ResponseHeaders.PARTIAL_CONTENT)
+                .dateHeader(ResponseHeaders.LAST_MODIFIED, lastModified)
+                .etag(etag)
+                .put(ResponseHeaders.ACCEPT_RANGES)
+                .connection(keepAlive);
+
+        if (ranges.size() == 1) {
+            ByteRanges.Range r = ranges.get(0);
+            head.header(ResponseHeaders.CONTENT_TYPE, contentType)
+                    .header(ResponseHeaders.CONTENT_LENGTH, r.length())
+                    .contentRange(r.first, r.last, fileSize);
+            MediaChannelCache.Handle media = mediaChannels.acquire(filePath, fileSize, lastModified);
+            send(key, seq, keepAlive, head.end(), media.region(r.first, r.length()));
+            return;
+        }
+
+        // multipart/byteranges: small part headers between file regions, each sent zero-copy
+        String boundary = "range_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        Object[] parts = new Object[ranges.size() * 2 + 2];
+        long contentLength = 0;
+        int n = 1;
         try {
-            client.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
-            try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
-                long pos = start, rem = contentLength;
-                while (rem > 0) { long s = fc.transferTo(pos, rem, client); if (s <= 0) break; pos += s; rem -= s; }
+            for (ByteRanges.Range r : ranges) {
+                byte[] partHead = ("\r\n--" + boundary + "\r\n" +
+                        "Content-Type: " + contentType + "\r\n" +
+                        "Content-Range: bytes " + r.first + "-" + r.last + "/" + fileSize + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                parts[n++] = ByteBuffer.wrap(partHead);
+                parts[n++] = mediaChannels.acquire(filePath, fileSize, lastModified).region(r.first, r.length());
+                contentLength += partHead.length + r.length();
             }
-        } catch (IOException e) { logger.info("Range disconnect: " + e.getMessage()); client.close(); return; }
-        logger.info("206: " + path + " " + start + "-" + endByte);
-        if (!keepAlive) client.close();
-    }
-
-    private void serveFullFile(SocketChannel client, Path filePath,
-                               boolean keepAlive, String path) throws IOException {
-        long fileSize = Files.size(filePath);
-        String header = "HTTP/1.1 200 OK\r\n" +
-                "Date: " + HTTP_DATE.format(ZonedDateTime.now()) + "\r\n" +
-                "Last-Modified: " + HTTP_DATE.format(Files.getLastModifiedTime(filePath).toInstant()) + "\r\n" +
-                "Content-Type: " + getContentType(path) + "\r\n" +
-                "Content-Length: " + fileSize + "\r\n" +
-                "Accept-Ranges: bytes\r\n" +
-                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+        } catch (IOException e) {
+            for (Object part : parts)
+                if (part instanceof OutboundQueue.FileRegion) ((OutboundQueue.FileRegion) part).release.run();
+            throw e;
+        }
+        byte[] close = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        parts[n] = ByteBuffer.wrap(close);
+        contentLength += close.length;
+        parts[0] = head.header(ResponseHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary)
+                .header(ResponseHeaders.CONTENT_LENGTH, contentLength)
+                .end();
+        send(key, seq, keepAlive, parts);
+    }
+
+    /**
+     * If-Range: the ranges apply only if the validator still matches the file.
+     * Entity tags are compared strongly, so a weak tag never matches.
+     */
+    private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) return true;
+        String v = ifRange.trim();
+        if (v.startsWith("W/")) return false;
+        if (v.startsWith("\"")) return v.equals(etag);
         try {
-            client.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
-            try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
-                long pos = 0, rem = fileSize;
-                while (rem > 0) { long s = fc.transferTo(pos, rem, client); if (s <= 0) break; pos += s; rem -= s; }
+            long since = ZonedDateTime.parse(v, HTTP_DATE).toInstant().toEpochMilli();
+            return since / 1000 == lastModified / 1000;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends the whole file, or its precompressed variant when {@code enc} is set.
+     * Small bodies go through the hot-file cache, large ones out of shared channels.
+     */
+    private void serveFullFile(SelectionKey key, long seq, Path filePath, BasicFileAttributes attrs,
+                               Compression.Encoding enc, boolean keepAlive, String path) throws IOException {
+        long fileSize = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String etag = etags.get(filePath, fileSize, lastModified);
+        String contentType = getContentType(path);
+
+        Path variant = enc != null ? variants.get(filePath, fileSize, lastModified, enc) : null;
+        if (variant != null) {
+            String variantTag = Compression.variantTag(etag, enc);
+            long variantSize = Files.size(variant);
+            if (fileCache.cacheable(variantSize)) {
+                // cached against the source and encoding, so the loop thread answers the next one itself
+                StaticFileCache.Entry entry = fileCache.get(filePath, enc);
+                if (entry == null || entry.lastModified != lastModified || entry.size != fileSize) {
+                    byte[] fileHeaders = fileHeaders(ResponseHeaders.lines(), contentType, enc, variantSize, lastModified)
+                            .toByteArray();
+                    entry = fileCache.load(filePath, enc, variant, variantSize, fileHeaders, lastModified, fileSize);
+                }
+                sendCached(key, seq, entry, variantTag, keepAlive);
+                return;
             }
-        } catch (IOException e) { logger.info("Serve disconnect: " + e.getMessage()); client.close(); return; }
-        logger.info("200: " + path);
-        if (!keepAlive) client.close();
+            sendFile(key, seq, variant, contentType, enc, variantSize, lastModified, variantTag, keepAlive);
+            return;
+        }
+        sendFile(key, seq, filePath, contentType, null, fileSize, lastModified, etag, keepAlive);
     }
 
-    private Path resolvePath(String path) {
-        String folder = "Public", prefix = "";
-        if (path.startsWith("/images/")) { folder = "images"; prefix = "/images"; }
-        else if (path.startsWith("/files/")) { folder = "documents"; prefix = "/files"; }
-        else if (path.startsWith("/video/")) { folder = "video"; prefix = "/video"; }
-        else if (path.startsWith("/uploads/")) { folder = "uploads"; prefix = "/uploads"; }
-        String rel = prefix.isEmpty() ? path : path.substring(prefix.length());
-        if (rel.isEmpty() || rel.equals("/")) return null;
-        String fileRel = rel.startsWith("/") ? rel.substring(1) : rel;
-        if (fileRel.isEmpty()) return null;
-        return Paths.get(BASE, folder, fileRel);
+    /** Queues a 200 for a file: from the hot-file cache if small, else as a region of a shared channel */
+    private void sendFile(SelectionKey key, long seq, Path file, String contentType, Compression.Encoding enc,
+                          long size, long lastModified, String etag, boolean keepAlive) throws IOException {
+        if (fileCache.cacheable(size)) {
+            StaticFileCache.Entry entry = fileCache.get(file);
+            if (entry == null || entry.lastModified != lastModified || entry.size != size) {
+                byte[] fileHeaders = fileHeaders(ResponseHeaders.lines(), contentType, enc, size, lastModified)
+                        .toByteArray();
+                entry = fileCache.load(file, fileHeaders, lastModified, size);
+            }
+            sendCached(key, seq, entry, etag, keepAlive);
+            return;
+        }
+        ResponseHeaders head = ResponseHeaders.status(ResponseHeaders.OK).etag(etag).connection(keepAlive);
+        fileHeaders(head, contentType, enc, size, lastModified);
+        MediaChannelCache.Handle media = mediaChannels.acquire(file, size, lastModified);
+        send(key, seq, keepAlive, head.end(), media.region(0, size));
     }
 
-    private boolean isSafePath(Path filePath) {
-        return filePath.normalize().toAbsolutePath()
-                .startsWith(Paths.get(BASE).toAbsolutePath().normalize());
+    // the headers that only change when the file does; cached together with small files
+    private static ResponseHeaders fileHeaders(ResponseHeaders h, String contentType, Compression.Encoding enc,
+                                               long size, long lastModified) {
+        h.dateHeader(ResponseHeaders.LAST_MODIFIED, lastModified)
+                .header(ResponseHeaders.CONTENT_TYPE, contentType);
+        if (enc != null) h.header(ResponseHeaders.CONTENT_ENCODING, enc.token);
+        if (Compression.compressible(contentType)) h.put(ResponseHeaders.VARY_ACCEPT_ENCODING);
+        h.header(ResponseHeaders.CONTENT_LENGTH, size);
+        if (enc == null) h.put(ResponseHeaders.ACCEPT_RANGES); // ranges are served from identity bytes only
+        return h;
+    }
+
+    /** Sends a cached file: status, Date, ETag and Connection, then the pre-rendered headers and body */
+    private void sendCached(SelectionKey key, long seq, StaticFileCache.Entry entry, String etag, boolean keepAlive) {
+        ByteBuffer head = ResponseHeaders.status(ResponseHeaders.OK).etag(etag).connection(keepAlive).toBuffer();
+        send(key, seq, keepAlive, head, entry.response());
+    }
+
+    /**
+     * Answers 304 if the client's copy is current. If-None-Match takes
+     * precedence over If-Modified-Since, which is only used without it.
+     * @param etag the file's tag, or null if it has not been hashed yet
+     */
+    private boolean handleCaching(SelectionKey key, String ims, String inm,
+                                  String etag, long lastModified, boolean keepAlive) {
+        if (!notModified(ims, inm, etag, lastModified)) return false;
+        send(key, keepAlive, ResponseHeaders.status(ResponseHeaders.NOT_MODIFIED)
+                .dateHeader(ResponseHeaders.LAST_MODIFIED, lastModified)
+                .etag(etag)
+                .connection(keepAlive)
+                .end());
+        return true;
     }
 
-    private boolean handleCaching(SocketChannel client, SelectionKey key,
-                                  String headers, Path filePath, boolean keepAlive) {
-        String ims = extractHeader(headers, "If-Modified-Since");
+    /** Whether the client's copy is current, If-None-Match taking precedence over If-Modified-Since */
+    private static boolean notModified(String ims, String inm, String etag, long lastModified) {
+        if (inm != null) return ETagIndex.noneMatchHits(inm, etag);
         if (ims == null) return false;
         try {
             ZonedDateTime ct = ZonedDateTime.parse(ims.trim(), HTTP_DATE);
-            long lm = Files.getLastModifiedTime(filePath).toMillis() / 1000 * 1000;
+            long lm = lastModified / 1000 * 1000;
             long cm = ct.toInstant().toEpochMilli() / 1000 * 1000;
-            if (lm <= cm) {
-                String r = "HTTP/1.1 304 Not Modified\r\n" +
-                        "Date: " + HTTP_DATE.format(ZonedDateTime.now()) + "\r\n" +
-                        "Last-Modified: " + HTTP_DATE.format(Files.getLastModifiedTime(filePath).toInstant()) + "\r\n" +
-                        "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
-                sendResponse(client, key, r.getBytes(StandardCharsets.US_ASCII), keepAlive);
-                return true;
-            }
-        } catch (Exception ignored) {}
-        return false;
+            return lm <= cm;
+        } catch (Exception e) {
+            return false;
+        }
     }
 
     //Multipart helpers
@@ -556,78 +1615,213 @@ public class SimpleHttpServer {
         return null;
     }
 
-    private static String extractFilename(String disposition) {
-        if (disposition == null) return null;
-        for (String p : disposition.split(";")) {
-            p = p.trim();
-            if (p.toLowerCase().startsWith("filename=")) {
-                String v = p.substring("filename=".length()).trim();
-                if (v.startsWith("\"") && v.endsWith("\"")) v = v.substring(1, v.length()-1);
-                return v;
-            }
+    private void sendResponse(SelectionKey key, byte[] data, boolean keepAlive) {
+        send(key, NEXT, keepAlive, ByteBuffer.wrap(data));
+    }
+
+    private void sendResponse(SelectionKey key, long seq, byte[] data, boolean keepAlive) {
+        send(key, seq, keepAlive, ByteBuffer.wrap(data));
+    }
+
+    /** Answers the request being handled on the loop thread */
+    private void send(SelectionKey key, boolean keepAlive, Object... parts) {
+        send(key, NEXT, keepAlive, parts);
+    }
+
+    /**
+     * Queues one complete response on the connection and writes as much of it
+     * as the socket takes without blocking; the rest goes out on OP_WRITE.
+     * Pipelined responses go out in request order whatever order they finish in.
+     * @param seq the slot reserved by beginOffload, required on ioPool threads;
+     *            NEXT on the loop thread answers the request being handled
+     */
+    private void send(SelectionKey key, long seq, boolean keepAlive, Object... parts) {
+        Connection conn = conn(key);
+        if (conn == null) return;
+        // noted before the queue owns the buffers and starts draining them
+        int status = status(parts);
+        long bytes = 0;
+        for (Object part : parts)
+            bytes += part instanceof ByteBuffer ? ((ByteBuffer) part).remaining() : ((OutboundQueue.FileRegion) part).remaining;
+        if (seq == NEXT) {
+            conn.responseStatus = status;
+            conn.responseBytes = bytes;
+        } else {
+            long[] response = OFFLOADED_RESPONSE.get();
+            response[0] = status;
+            response[1] = bytes;
         }
-        return null;
+        conn.out.complete(seq == NEXT ? conn.out.reserve() : seq, !keepAlive, parts);
+        flush(key);
     }
 
-    private static int indexOf(byte[] data, byte[] pattern, int from) {
-        outer:
-        for (int i = from; i <= data.length - pattern.length; i++) {
-            for (int j = 0; j < pattern.length; j++)
-                if (data[i+j] != pattern[j]) continue outer;
-            return i;
+    /** The status code of a response whose first part starts with its status line, 0 if it does not */
+    private static int status(Object[] parts) {
+        if (parts.length == 0 || !(parts[0] instanceof ByteBuffer)) return 0;
+        ByteBuffer head = (ByteBuffer) parts[0];
+        int p = head.position() + 9; // "HTTP/1.1 "
+        if (head.limit() < p + 3) return 0;
+        int code = 0;
+        for (int i = p; i < p + 3; i++) {
+            byte b = head.get(i);
+            if (b < '0' || b > '9') return 0;
+            code = code * 10 + (b - '0');
         }
-        return -1;
+        return code;
     }
 
-    private static String extractPartHeader(String partHeaders, String name) {
-        for (String line : partHeaders.split("\r\n"))
-            if (line.toLowerCase().startsWith(name.toLowerCase() + ":"))
-                return line.substring(line.indexOf(':')+1).trim();
-        return null;
+    /** OP_WRITE handler: drain the connection's outbound queue */
+    private void handleWritable(SelectionKey key) {
+        flush(key);
     }
 
-    private void sendResponse(SocketChannel client, SelectionKey key, byte[] data, boolean keepAlive) {
+    /**
+     * A handler threw something it does not handle itself, e.g. a bug; the
+     * connection is closed like any other so its upload permit, media
+     * channels and read buffer are given back.
+     */
+    private void handleError(SelectionKey key, Exception e) {
+        logger.info("Closing connection after handler error: " + e);
+        cancelAndClose(key, (SocketChannel) key.channel());
+    }
+
+    private void flush(SelectionKey key) {
+        Connection conn = conn(key);
+        if (conn == null) return;
+        SocketChannel client = (SocketChannel) key.channel();
         try {
-            client.write(ByteBuffer.wrap(data));
-            if (!keepAlive) cancelAndClose(key, client);
+            if (conn.h2 != null) {
+                // HTTP/2 DATA frames are cut only as the queue empties, so a window update
+                // or a new stream is not stuck behind megabytes of one response
+                long pending = conn.out.pendingBytes();
+                conn.h2.pump(pending < LOW_WATER ? HIGH_WATER - pending : 0);
+            }
+            long before = conn.out.pendingBytes();
+            boolean drained = conn.out.drain(client);
+            long sent = before - conn.out.pendingBytes();
+            if (sent > 0) {
+                conn.lastActivity = ServerNIO.now();
+                metrics.bytesSent.add(sent);
+            }
+            if (drained && conn.out.isClosing()) {
+                cancelAndClose(key, client);
+                return;
+            }
         } catch (IOException e) {
             logger.info("Send error: " + e.getMessage());
-            try { cancelAndClose(key, client); } catch (Exception ignored) {}
+            cancelAndClose(key, client);
+            return;
         }
+        updateInterest(key);
     }
 
-    private void sendBytes(SocketChannel client, byte[] data) {
-        try { client.write(ByteBuffer.wrap(data)); }
-        catch (IOException e) { logger.info("Send error: " + e.getMessage()); }
+    /**
+     * Recomputes the interest set: read unless MAX_PIPELINED responses are
+     * still outstanding, the connection is closing, or outbound data is above
+     * the high-water mark; write while anything is queued.
+     */
+    private void updateInterest(SelectionKey key) {
+        Connection conn = conn(key);
+        if (conn == null || !key.isValid()) return;
+        long pending = conn.out.pendingBytes();
+        if (pending > HIGH_WATER) conn.readPaused = true;
+        else if (pending <= LOW_WATER) conn.readPaused = false;
+
+        boolean read = !conn.readPaused && !conn.lastRequest && !conn.out.isClosing()
+                && conn.out.unfinished() < MAX_PIPELINED;
+        boolean write = !conn.out.isEmpty() || (conn.h2 != null && conn.h2.hasPending());
+        int ops = (read ? SelectionKey.OP_READ : 0)
+                | (write ? SelectionKey.OP_WRITE : 0);
+        try {
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+                if (Thread.currentThread() != conn.loopThread) key.selector().wakeup();
+            }
+        } catch (CancelledKeyException ignored) {}
     }
 
-    private void cancelAndClose(SelectionKey key, SocketChannel client) {
-        try { key.cancel(); } catch (Exception ignored) {}
-        try { client.close(); } catch (Exception ignored) {}
+    /**
+     * Marks a request as handed to ioPool and reserves its response slot;
+     * called on the loop thread while the request is being handled.
+     * @return the slot the pool thread must pass to send
+     */
+    private long beginOffload(SelectionKey key) {
+        Connection conn = conn(key);
+        conn.offloaded = true;
+        conn.inFlight.incrementAndGet();
+        long seq = conn.out.reserve();
+        updateInterest(key);
+        return seq;
     }
 
-    private static String sendError(int code, String status, String msg) {
-        String body = "<h1>" + code + " " + status + "</h1><p>" + msg + "</p>";
-        return "HTTP/1.1 " + code + " " + status + "\r\n" +
-                "Content-Type: text/html\r\n" +
-                "Content-Length: " + body.length() + "\r\n\r\n" + body;
+    /** Called by the pool thread once the response is queued; records the request's latency and access log line */
+    private void endOffload(SelectionKey key, AccessLog.Method method, Metrics.Route route, long started) {
+        long nanos = System.nanoTime() - started;
+        metrics.record(route, nanos);
+        long[] response = OFFLOADED_RESPONSE.get();
+        accessLog.record(method, route, (int) response[0], response[1], nanos);
+        response[0] = response[1] = 0;
+        Connection conn = conn(key);
+        if (conn == null) return;
+        conn.inFlight.decrementAndGet();
+        updateInterest(key);
     }
 
-    private static String send404() { return sendError(404, "Not Found","Resource not found"); }
-    private static String send405() { return sendError(405, "Method Not Allowed","Method not allowed"); }
-    private static String send403() { return sendError(403, "Forbidden","Access denied");      }
+    /** 429 telling the client when its next token is due */
+    private void tooManyRequests(SelectionKey key, long waitMillis, boolean keepAlive) {
+        ByteBuffer head = ResponseHeaders.status(ResponseHeaders.TOO_MANY_REQUESTS)
+                .header(ResponseHeaders.RETRY_AFTER, (waitMillis + 999) / 1000)
+                .header(ResponseHeaders.CONTENT_TYPE, "text/html")
+                .header(ResponseHeaders.CONTENT_LENGTH, TOO_MANY_REQUESTS.length)
+                .connection(keepAlive)
+                .end();
+        send(key, keepAlive, head, ByteBuffer.wrap(TOO_MANY_REQUESTS));
+    }
 
-    private static int findHeaderEnd(byte[] data, int start) {
-        for (int i = start; i <= data.length - 4; i++)
-            if (data[i]=='\r' && data[i+1]=='\n' && data[i+2]=='\r' && data[i+3]=='\n') return i;
-        return -1;
+    private static InetAddress remoteAddress(SelectionKey key) {
+        try {
+            return ((InetSocketAddress) ((SocketChannel) key.channel()).getRemoteAddress()).getAddress();
+        } catch (IOException | ClassCastException e) {
+            return null;
+        }
     }
 
-    private static String extractHeader(String headers, String name) {
-        for (String line : headers.split("\r\n"))
-            if (line.toLowerCase(Locale.ROOT).startsWith(name.toLowerCase(Locale.ROOT) + ":"))
-                return line.substring(line.indexOf(':')+1).trim();
-        return null;
+    private static Connection conn(SelectionKey key) {
+        Object a = key.attachment();
+        return (a instanceof Connection) ? (Connection) a : null;
+    }
+
+    private void cancelAndClose(SelectionKey key, SocketChannel client) {
+        Connection conn = conn(key);
+        if (conn != null) {
+            conn.out.release();
+            UploadState upload = conn.upload;
+            if (upload != null) {
+                conn.upload = null;
+                upload.abort();
+                logger.info("Upload aborted, " + upload.abortNote());
+            }
+            // a pool thread must not touch the buffer or the wheel; the GC reclaims
+            // the buffer then, and the pending check finds the key cancelled
+            if (Thread.currentThread() == conn.loopThread) {
+                if (conn.h2 != null) conn.h2.release();
+                releaseReadBuffer(conn);
+                if (conn.timeout != null) conn.timeout.cancel();
+            }
+        }
+        try { key.cancel(); } catch (Exception ignored) {}
+        try { client.close(); } catch (Exception ignored) {}
+    }
+
+    private static byte[] sendError(int code, String status, String msg) {
+        return sendError(code, status, msg, "");
+    }
+
+    private static byte[] sendError(int code, String status, String msg, String headers) {
+        String body = "<h1>" + code + " " + status + "</h1><p>" + msg + "</p>";
+        return ("HTTP/1.1 " + code + " " + status + "\r\n" + headers +
+                "Content-Type: text/html\r\n" +
+                "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII);
     }
 
     private static String getContentType(String path) {
@@ -648,7 +1842,11 @@ public class SimpleHttpServer {
 
     public static void main(String[] args) {
         SimpleHttpServer server = new SimpleHttpServer();
-        server.logger.info("Starting server on port " + PORT);
-        new ServerNIO(PORT, server::handleClient).start();
+        server.logger.info("Starting server on port " + PORT + " with " + SELECTOR_LOOPS + " selector loops, "
+                + "request executor " + server.ioPool + ", media mode " + server.mediaChannels.mode());
+        ServerNIO nio = new ServerNIO(PORT, server::handleClient, server::handleWritable, server::handleConnect,
+                server::handleError, SELECTOR_LOOPS, ServerNIO.Balancer.LEAST_LOADED);
+        server.metrics.gauge("http_connections_open", "Connections held by the selector loops", nio::connections);
+        nio.start();
     }
 }
\ No newline at end of file
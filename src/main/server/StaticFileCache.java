@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Size-bounded LRU cache of small static files, each held as a direct buffer
+ * with its static response headers already rendered in front of the body.
+ * A file's precompressed variants are cached next to it, keyed by the source
+ * file and the encoding.
+ * A hit is served without touching the file system; entries are dropped when
+ * a WatchService reports a change in one of the watched folders.
+ */
+class StaticFileCache {
+
+    /**
+     * A cached file: static header lines, blank line and body in one buffer.
+     * {@code lastModified} and {@code size} are the source file's, also for a
+     * compressed variant, whose body is shorter.
+     */
+    static final class Entry {
+        final long lastModified;
+        final long size;
+        private final ByteBuffer response;
+
+        Entry(long lastModified, long size, ByteBuffer response) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.response = response;
+        }
+
+        /** A fresh view of the headers and body, ready to be written */
+        ByteBuffer response() {
+            return response.duplicate();
+        }
+    }
+
+    private final long maxFileSize;
+    private final long maxTotalBytes;
+    // a Path for a file as it is, a Variant for one of its compressed copies
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes = 0;
+
+    // bumped on every invalidation so a load racing a change is not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxFileSize largest file that is cached
+     * @param maxTotalBytes upper bound on the bytes held by all entries
+     */
+    StaticFileCache(long maxFileSize, long maxTotalBytes) {
+        this.maxFileSize = maxFileSize;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    boolean cacheable(long size) {
+        return size <= maxFileSize;
+    }
+
+    // cache key of a compressed variant
+    private static final class Variant {
+        final Path source;
+        final Compression.Encoding enc;
+
+        Variant(Path source, Compression.Encoding enc) {
+            this.source = source;
+            this.enc = enc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Variant && ((Variant) o).source.equals(source) && ((Variant) o).enc == enc;
+        }
+
+        @Override
+        public int hashCode() {
+            return source.hashCode() * 31 + enc.hashCode();
+        }
+    }
+
+    Entry get(Path path) {
+        return lookup(path);
+    }
+
+    /** The cached variant of {@code source} compressed with {@code enc} */
+    Entry get(Path source, Compression.Encoding enc) {
+        return lookup(new Variant(source, enc));
+    }
+
+    private Entry lookup(Object key) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+        }
+        if (e != null) hits.increment();
+        else misses.increment();
+        return e;
+    }
+
+    /**
+     * Reads a small file, prepends its pre-rendered headers and caches the result.
+     * @param staticHeaders header lines ending in CRLF, without the blank line
+     * @return the entry, also when it could not be kept because the file changed meanwhile
+     */
+    Entry load(Path path, byte[] staticHeaders, long lastModified, long size) throws IOException {
+        return load(path, path, size, staticHeaders, lastModified, size);
+    }
+
+    /**
+     * Caches a compressed variant of {@code source} read from {@code variant}.
+     * @param lastModified the source's modification time
+     * @param size the source's size
+     */
+    Entry load(Path source, Compression.Encoding enc, Path variant, long variantSize,
+               byte[] staticHeaders, long lastModified, long size) throws IOException {
+        return load(new Variant(source, enc), variant, variantSize, staticHeaders, lastModified, size);
+    }
+
+    private Entry load(Object key, Path file, long bodySize, byte[] staticHeaders,
+                       long lastModified, long size) throws IOException {
+        long gen = generation.get();
+        ByteBuffer buf = ByteBuffer.allocateDirect(staticHeaders.length + 2 + (int) bodySize);
+        buf.put(staticHeaders).put((byte) '\r').put((byte) '\n');
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (fc.read(buf) < 0) throw new IOException("File shrank while caching: " + file);
+            }
+        }
+        buf.flip();
+        Entry e = new Entry(lastModified, size, buf.asReadOnlyBuffer());
+
+        synchronized (this) {
+            if (generation.get() != gen) return e;
+            Entry old = entries.put(key, e);
+            if (old != null) totalBytes -= old.response.capacity();
+            totalBytes += buf.capacity();
+            Iterator<Map.Entry<Object, Entry>> it = entries.entrySet().iterator();
+            while (totalBytes > maxTotalBytes && it.hasNext()) {
+                totalBytes -= it.next().getValue().response.capacity();
+                it.remove();
+                evictions.increment();
+            }
+        }
+        return e;
+    }
+
+    /** Drops a file and its compressed variants */
+    synchronized void invalidate(Path path) {
+        generation.incrementAndGet();
+        remove(path);
+        for (Compression.Encoding enc : Compression.Encoding.values()) remove(new Variant(path, enc));
+    }
+
+    private void remove(Object key) {
+        Entry old = entries.remove(key);
+        if (old != null) totalBytes -= old.response.capacity();
+    }
+
+    synchronized void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    long hits()      { return hits.sum(); }
+    long misses()    { return misses.sum(); }
+    long evictions() { return evictions.sum(); }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long bytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Starts a daemon thread that watches the given folders (and their
+     * sub-folders) and invalidates entries for files that change.
+     */
+    void watch(List<Path> roots) throws IOException {
+        WatchService ws = FileSystems.getDefault().newWatchService();
+        for (Path root : roots) {
+            if (!Files.isDirectory(root)) continue;
+            try (Stream<Path> dirs = Files.walk(root)) {
+                for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator)
+                    dir.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            }
+        }
+        Thread t = new Thread(() -> watchLoop(ws), "file-cache-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void watchLoop(WatchService ws) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = ws.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) { clear(); continue; }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(changed);
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try { changed.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE); }
+                    catch (IOException ignored) {}
+                }
+            }
+            key.reset();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Side directory of downscaled copies of uploaded images, so a gallery
+ * fetches a few kilobytes per picture instead of the original.
+ * Thumbnails are made on a small pool of their own behind a bounded queue:
+ * an upload only queues the work, and when the queue is full the job is
+ * dropped and made later, the first time the thumbnail is asked for.
+ * Like {@link CompressedVariants}, a thumbnail's name carries the source's
+ * size and modification time, so a replaced image misses and gets a fresh
+ * thumbnail, and older ones of the same file are deleted. The name prefix
+ * and the current thumbnail are remembered per source, so a hit costs two
+ * map lookups and no hashing or file system call.
+ * Sources are decoded subsampled, at no more than twice the thumbnail size,
+ * which keeps decode time and memory small for large photos.
+ */
+final class Thumbnails {
+
+    private final Path dir;
+    private final int maxEdge;
+    private final ThreadPoolExecutor pool;
+    private final Map<Path, String> prefixes = new ConcurrentHashMap<>();
+    // source to its newest thumbnail known to be on disk
+    private final Map<Path, Path> ready = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    // versions that could not be decoded; not retried until the file changes
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param maxEdge the longest side of a thumbnail in pixels; smaller images keep their size
+     * @param queueCapacity thumbnails waiting for a thread before new ones are dropped
+     */
+    Thumbnails(Path dir, int maxEdge, int threads, int queueCapacity) throws IOException {
+        if (maxEdge < 1) throw new IllegalArgumentException("maxEdge must be positive");
+        this.dir = Files.createDirectories(dir);
+        this.maxEdge = maxEdge;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "thumbnail-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /** Reads -Dthumbnail.maxEdge, -Dthumbnail.threads (default: one per core) and -Dthumbnail.queue */
+    static Thumbnails fromSystemProperties(Path dir) throws IOException {
+        return new Thumbnails(dir,
+                Integer.getInteger("thumbnail.maxEdge", 320),
+                Integer.getInteger("thumbnail.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("thumbnail.queue", 256));
+    }
+
+    /** Whether a file name has an image suffix thumbnails are made for */
+    static boolean supported(String name) {
+        return format(name) != null;
+    }
+
+    /**
+     * Queues the thumbnail of a file that just arrived, e.g. a finished upload.
+     * Names without an image suffix are ignored.
+     */
+    void submit(Path src) {
+        if (format(src.getFileName().toString()) == null) return;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+            if (attrs.isRegularFile()) get(src, attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (IOException ignored) {
+            // gone already
+        }
+    }
+
+    /**
+     * The up-to-date thumbnail of {@code src}, an image with a {@linkplain #supported supported} name.
+     * @return the thumbnail, {@code src} itself if the image cannot be decoded,
+     *         or null while it is being made, now queued if it was not already
+     */
+    Path get(Path src, long size, long lastModified) {
+        String name = prefix(src) + size + "-" + lastModified + suffix(src.getFileName().toString());
+        Path known = ready.get(src);
+        if (known != null && known.getFileName().toString().equals(name)) return known;
+        if (failed.contains(name)) return src;
+        Path thumb = dir.resolve(name);
+        if (Files.exists(thumb)) { // made by an earlier run
+            ready.put(src, thumb);
+            return thumb;
+        }
+        if (!pending.add(name)) return null;
+        try {
+            pool.execute(() -> build(src, name, thumb));
+        } catch (RejectedExecutionException e) {
+            pending.remove(name);
+            dropped.increment();
+        }
+        return null;
+    }
+
+    private void build(Path src, String name, Path thumb) {
+        try {
+            Path tmp = dir.resolve(name + ".tmp");
+            try {
+                write(src, tmp, format(name), maxEdge);
+                Files.move(tmp, thumb, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            ready.put(src, thumb);
+            deleteOlder(prefix(src), thumb);
+            generated.increment();
+        } catch (IOException | RuntimeException e) {
+            // ImageIO reports some corrupt images with unchecked exceptions
+            failed.add(name);
+            failures.increment();
+        } finally {
+            pending.remove(name);
+        }
+    }
+
+    /** Decodes {@code src} and writes it scaled to fit {@code maxEdge} in the given ImageIO format */
+    static void write(Path src, Path out, String format, int maxEdge) throws IOException {
+        BufferedImage image;
+        int width, height;
+        try (ImageInputStream in = ImageIO.createImageInputStream(src.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) throw new IOException("Not a readable image: " + src);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.max(width, height) / (2 * maxEdge));
+                param.setSourceSubsampling(step, step, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        double scale = Math.min(1.0, (double) maxEdge / Math.max(width, height));
+        int w = Math.max(1, (int) Math.round(width * scale));
+        int h = Math.max(1, (int) Math.round(height * scale));
+        // JPEG and BMP writers take no alpha channel
+        boolean alpha = format.equals("png") || format.equals("gif");
+        BufferedImage thumb = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumb.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        if (!ImageIO.write(thumb, format, out.toFile())) throw new IOException("No " + format + " writer");
+    }
+
+    long generated() {
+        return generated.sum();
+    }
+
+    long failures() {
+        return failures.sum();
+    }
+
+    /** Thumbnails not made because the queue was full */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    int queued() {
+        return pool.getQueue().size();
+    }
+
+    private void deleteOlder(String prefix, Path keep) throws IOException {
+        try (DirectoryStream<Path> s = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path p : s) {
+                if (p.equals(keep) || p.getFileName().toString().endsWith(".tmp")) continue;
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    // the ImageIO writer for a name's suffix; thumbnails keep the source's format, and so its content type
+    private static String format(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "jpeg";
+        if (lower.endsWith(".png")) return "png";
+        if (lower.endsWith(".gif")) return "gif";
+        if (lower.endsWith(".bmp")) return "bmp";
+        return null;
+    }
+
+    private static String suffix(String name) {
+        return name.substring(name.lastIndexOf('.')).toLowerCase(Locale.ROOT);
+    }
+
+    // stable, file-name safe key for a source path
+    private String prefix(Path src) {
+        return prefixes.computeIfAbsent(src, Thumbnails::hash);
+    }
+
+    private static String hash(Path src) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256")
+                    .digest(src.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(d, 0, 12) + '-';
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
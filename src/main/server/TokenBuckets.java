@@ -0,0 +1,102 @@
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-client request quotas: one token bucket per remote address, refilled
+ * at {@code perSecond} tokens a second up to {@code burst}. Buckets refill
+ * lazily when they are asked for a token, so an idle client costs nothing
+ * and there is no refill thread. Once more than {@code maxClients} buckets
+ * exist, buckets that have refilled completely are dropped; they would
+ * behave exactly like a new one.
+ * Called from the selector loops, so nothing here blocks or does I/O.
+ */
+final class TokenBuckets {
+
+    private static final class Bucket {
+        double tokens;
+        long updated; // millis of the last refill
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.updated = now;
+        }
+    }
+
+    private final double perSecond;
+    private final double burst;
+    private final int maxClients;
+    private final Map<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    TokenBuckets(double perSecond, int burst, int maxClients) {
+        if (perSecond <= 0 || burst < 1) throw new IllegalArgumentException("rate and burst must be positive");
+        this.perSecond = perSecond;
+        this.burst = burst;
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * Reads -Dquota.perSecond, -Dquota.burst and -Dquota.maxClients;
+     * null when no rate is set, which turns quotas off.
+     */
+    static TokenBuckets fromSystemProperties() {
+        String rate = System.getProperty("quota.perSecond");
+        if (rate == null || Double.parseDouble(rate) <= 0) return null;
+        double perSecond = Double.parseDouble(rate);
+        return new TokenBuckets(perSecond,
+                Integer.getInteger("quota.burst", (int) Math.max(1, Math.ceil(perSecond))),
+                Integer.getInteger("quota.maxClients", 65536));
+    }
+
+    /**
+     * Takes one token from the client's bucket.
+     * @return 0 if the request may go ahead, otherwise the milliseconds until a token is available
+     */
+    long tryAcquire(InetAddress client, long nowMillis) {
+        Bucket b = buckets.get(client);
+        if (b == null) {
+            if (buckets.size() >= maxClients) sweep(nowMillis);
+            b = buckets.computeIfAbsent(client, c -> new Bucket(burst, nowMillis));
+        }
+        synchronized (b) {
+            refill(b, nowMillis);
+            if (b.tokens >= 1) {
+                b.tokens -= 1;
+                return 0;
+            }
+            rejected.increment();
+            return Math.max(1, (long) Math.ceil((1 - b.tokens) * 1000 / perSecond));
+        }
+    }
+
+    private void refill(Bucket b, long now) {
+        if (now > b.updated) {
+            b.tokens = Math.min(burst, b.tokens + (now - b.updated) * perSecond / 1000);
+            b.updated = now;
+        }
+    }
+
+    // full buckets carry no state worth keeping
+    private void sweep(long now) {
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            Bucket b = it.next();
+            synchronized (b) {
+                refill(b, now);
+                if (b.tokens >= burst) it.remove();
+            }
+        }
+    }
+
+    /** Clients with a bucket */
+    int clients() {
+        return buckets.size();
+    }
+
+    /** Requests refused for an empty bucket */
+    long rejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides whether an upload may start before anything is written for it.
+ * An upload is admitted while fewer than {@code maxConcurrent} are running,
+ * the declared bodies of all running uploads plus this one stay within
+ * {@code maxInFlightBytes}, and the uploads file store keeps at least
+ * {@code minFreeBytes} usable once every running upload has landed.
+ * Bytes are reserved by Content-Length when the upload is admitted and
+ * returned when its {@link Permit} is released, so a burst of uploads cannot
+ * promise away more disk than there is. The disk check only counts what the
+ * running uploads have still to write, since what they wrote is already
+ * gone from the usable space.
+ */
+final class UploadAdmission {
+
+    /** An admitted upload; release it once, when the upload ends either way */
+    final class Permit {
+        private final long bytes;
+        private final AtomicLong left; // not yet written
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+            this.left = new AtomicLong(bytes);
+        }
+
+        /** Notes {@code n} more bytes written to disk, which no longer need reserving */
+        void wrote(long n) {
+            long l;
+            do {
+                l = left.get();
+                if (l == 0) return;
+            } while (!left.compareAndSet(l, Math.max(0, l - n)));
+            unwritten.addAndGet(-Math.min(n, l));
+        }
+
+        void release() {
+            if (!released.compareAndSet(false, true)) return;
+            unwritten.addAndGet(-left.getAndSet(0));
+            synchronized (UploadAdmission.this) {
+                active--;
+                reserved -= bytes;
+            }
+        }
+    }
+
+    private final int maxConcurrent;
+    private final long maxInFlightBytes;
+    private final long minFreeBytes;
+    private final LongSupplier usableSpace;
+
+    private int active;
+    private long reserved;
+    private final AtomicLong unwritten = new AtomicLong();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder diskFull = new LongAdder();
+
+    /**
+     * @param usableSpace bytes the uploads file store can still take, e.g. {@link FileStore#getUsableSpace}
+     */
+    UploadAdmission(int maxConcurrent, long maxInFlightBytes, long minFreeBytes, LongSupplier usableSpace) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be positive");
+        this.maxConcurrent = maxConcurrent;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.minFreeBytes = minFreeBytes;
+        this.usableSpace = usableSpace;
+    }
+
+    /** Reads -Dupload.maxConcurrent, -Dupload.maxInFlightBytes and -Dupload.minFreeBytes */
+    static UploadAdmission fromSystemProperties(Path uploads) throws IOException {
+        FileStore store = Files.getFileStore(uploads);
+        return new UploadAdmission(
+                Integer.getInteger("upload.maxConcurrent", 4),
+                Long.getLong("upload.maxInFlightBytes", 1024L * 1024 * 1024),
+                Long.getLong("upload.minFreeBytes", 256L * 1024 * 1024),
+                () -> {
+                    try { return store.getUsableSpace(); }
+                    catch (IOException e) { return 0; }
+                });
+    }
+
+    /** The largest upload that can ever be admitted */
+    long maxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    /**
+     * True if the file store can take {@code bytes} more on top of what the
+     * running uploads have still to write. One statfs call; checked before {@link #tryAdmit}.
+     */
+    boolean diskHasRoomFor(long bytes) {
+        // read first: a write landing in between is then counted twice, never missed
+        long pending = unwritten.get();
+        if (usableSpace.getAsLong() - pending - bytes >= minFreeBytes) return true;
+        diskFull.increment();
+        return false;
+    }
+
+    /** A permit for an upload of {@code bytes}, or null while the limits are reached */
+    Permit tryAdmit(long bytes) {
+        synchronized (this) {
+            if (active < maxConcurrent && reserved + bytes <= maxInFlightBytes) {
+                active++;
+                reserved += bytes;
+                unwritten.addAndGet(bytes);
+                return new Permit(bytes);
+            }
+        }
+        busy.increment();
+        return null;
+    }
+
+    synchronized int active() {
+        return active;
+    }
+
+    synchronized long reserved() {
+        return reserved;
+    }
+
+    /** Reserved bytes the running uploads have not written yet */
+    long unwritten() {
+        return unwritten.get();
+    }
+
+    /** Uploads turned away by the concurrency or in-flight byte limit */
+    long rejectedBusy() {
+        return busy.sum();
+    }
+
+    /** Uploads turned away for lack of disk space */
+    long rejectedDiskFull() {
+        return diskFull.sum();
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resumable uploads. A session is created with the final size and name,
+ * its bytes arrive in any number of PATCH requests, each continuing at the
+ * session's current offset, and the finished file is moved into the uploads
+ * folder. A dropped connection keeps everything received so far.
+ * <p>
+ * Chunks are written with positional FileChannel writes to
+ * {@code <dir>/<id>.part}. Progress goes to an append-only journal in the
+ * same folder, one entry per line, later lines win:
+ * {@code C TAB id TAB length TAB createdMillis TAB name},
+ * {@code O TAB id TAB offset} and {@code D TAB id}.
+ * An offset is journaled only after the part file was forced up to it, so
+ * after a crash the journal never claims bytes the disk does not have.
+ * Journal writes, forces and closes run on one background thread, so the
+ * selector loops that write chunks never wait for the disk to sync.
+ */
+class UploadSessions {
+
+    /** Journaled at least this often while a chunk streams in */
+    static final long CHECKPOINT_BYTES = 8L * 1024 * 1024;
+
+    /** One resumable upload */
+    final class Session {
+        final String id;
+        final String name;
+        final long length;
+        final long created;
+        private volatile long offset;
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private FileChannel channel;  // open while a chunk streams in
+        private long checkpointed;    // offset of the last journaled checkpoint
+
+        private Session(String id, String name, long length, long created, long offset) {
+            this.id = id;
+            this.name = name;
+            this.length = length;
+            this.created = created;
+            this.offset = offset;
+            this.checkpointed = offset;
+        }
+
+        /** Bytes received so far; the next chunk must start here */
+        long offset() {
+            return offset;
+        }
+
+        boolean isComplete() {
+            return offset == length;
+        }
+
+        /** True while a chunk is streaming in */
+        boolean isBusy() {
+            return busy.get();
+        }
+
+        /** Reserves the session for one chunk; false while another chunk is streaming */
+        boolean claim() throws IOException {
+            if (!busy.compareAndSet(false, true)) return false;
+            try {
+                channel = FileChannel.open(part(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                busy.set(false);
+                throw e;
+            }
+            return true;
+        }
+
+        /** Writes the chunk at the current offset; the caller keeps it within {@link #length} */
+        void write(ByteBuffer chunk) throws IOException {
+            long at = offset;
+            while (chunk.hasRemaining()) at += channel.write(chunk, at);
+            offset = at;
+            if (at - checkpointed >= CHECKPOINT_BYTES) checkpoint(false);
+        }
+
+        /**
+         * Ends the chunk, complete or not: the file is forced, the offset
+         * journaled and the channel closed in the background. Idempotent.
+         */
+        void release() {
+            if (channel == null) return;
+            checkpoint(true);
+            busy.set(false);
+        }
+
+        private void checkpoint(boolean close) {
+            FileChannel ch = channel;
+            long at = offset;
+            boolean moved = at != checkpointed;
+            checkpointed = at;
+            if (close) channel = null;
+            journal(() -> {
+                try {
+                    if (moved) {
+                        ch.force(false);
+                        append("O\t" + id + "\t" + at);
+                    }
+                } finally {
+                    if (close) ch.close();
+                }
+            });
+        }
+    }
+
+    private interface JournalTask {
+        void run() throws IOException;
+    }
+
+    private final Path dir;
+    private final Path journalFile;
+    private final long ttlMillis;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "upload-journal");
+        t.setDaemon(true);
+        return t;
+    });
+    private final BufferedWriter journal;
+
+    /**
+     * Replays the journal, cuts every part file back to its journaled offset,
+     * drops sessions older than {@code ttlMillis} and part files no session
+     * owns, then rewrites the journal compacted and keeps it open for appending.
+     */
+    UploadSessions(Path dir, long ttlMillis) throws IOException {
+        this.dir = dir;
+        this.journalFile = dir.resolve("journal");
+        this.ttlMillis = ttlMillis;
+        Files.createDirectories(dir);
+
+        Map<String, Session> replayed = new LinkedHashMap<>();
+        if (Files.exists(journalFile)) {
+            for (String line : Files.readAllLines(journalFile, StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t", 5);
+                try {
+                    if (f[0].equals("C") && f.length == 5) {
+                        replayed.put(f[1], new Session(f[1], f[4], Long.parseLong(f[2]), Long.parseLong(f[3]), 0));
+                    } else if (f[0].equals("O") && f.length == 3 && replayed.containsKey(f[1])) {
+                        Session s = replayed.get(f[1]);
+                        s.offset = s.checkpointed = Math.min(s.length, Long.parseLong(f[2]));
+                    } else if (f[0].equals("D") && f.length == 2) {
+                        replayed.remove(f[1]);
+                    }
+                } catch (RuntimeException ignored) {} // torn last line after a crash
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Session s : replayed.values()) {
+            if (now - s.created > ttlMillis) continue;
+            Path p = part(s.id);
+            long onDisk = Files.exists(p) ? Files.size(p) : 0;
+            if (onDisk < s.offset) s.offset = s.checkpointed = onDisk;
+            if (onDisk > s.offset) {
+                try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                    ch.truncate(s.offset);
+                }
+            }
+            sessions.put(s.id, s);
+        }
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(dir, "*.part")) {
+            for (Path p : parts) {
+                String id = p.getFileName().toString();
+                if (!sessions.containsKey(id.substring(0, id.length() - ".part".length()))) Files.deleteIfExists(p);
+            }
+        }
+
+        Path tmp = dir.resolve("journal.tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Session s : sessions.values()) {
+                w.write(created(s));
+                w.write("O\t" + s.id + "\t" + s.offset + "\n");
+            }
+        }
+        Files.move(tmp, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /** Starts a session for a file of {@code length} bytes; the name is made safe here */
+    Session create(String name, long length) {
+        byte[] b = new byte[16];
+        random.nextBytes(b);
+        StringBuilder id = new StringBuilder(32);
+        for (byte x : b) id.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
+        Session s = new Session(id.toString(),
+                MultipartStreamParser.safeFileName(name == null || name.isEmpty() ? "upload" : name),
+                length, System.currentTimeMillis(), 0);
+        sessions.put(s.id, s);
+        journal(() -> append(created(s)));
+        return s;
+    }
+
+    /** The live session with this id, or null if it never existed, finished or expired */
+    Session get(String id) {
+        Session s = sessions.get(id);
+        if (s != null && System.currentTimeMillis() - s.created > ttlMillis) {
+            if (s.busy.get()) return s; // expires after its chunk ends
+            delete(s);
+            return null;
+        }
+        return s;
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Moves a complete session's file into {@code uploads} under its name,
+     * or a free variant of it, and ends the session. Blocks until the file
+     * is in place, so call it off the selector loops.
+     * @return the name the file was saved under
+     */
+    String complete(Session s, Path uploads) throws IOException {
+        if (!s.isComplete()) throw new IllegalStateException("Session " + s.id + " is at " + s.offset);
+        sessions.remove(s.id);
+        try {
+            return moveInto(s, uploads);
+        } catch (IOException e) {
+            sessions.put(s.id, s); // still resumable, or at least deletable
+            throw e;
+        }
+    }
+
+    private String moveInto(Session s, Path uploads) throws IOException {
+        return await(() -> {
+            for (int attempt = 0; ; attempt++) {
+                String name = MultipartStreamParser.candidateName(s.name, attempt);
+                try {
+                    Files.move(part(s.id), uploads.resolve(name));
+                    append("D\t" + s.id);
+                    return name;
+                } catch (FileAlreadyExistsException e) {
+                    if (attempt > 10) throw e;
+                }
+            }
+        });
+    }
+
+    /** Ends a session that is not streaming a chunk and deletes what it received */
+    void delete(Session s) {
+        if (sessions.remove(s.id) == null) return;
+        journal(() -> {
+            Files.deleteIfExists(part(s.id));
+            append("D\t" + s.id);
+        });
+    }
+
+    /** Waits until every journal write queued so far is done */
+    void sync() throws IOException {
+        await(() -> null);
+    }
+
+    private Path part(String id) {
+        return dir.resolve(id + ".part");
+    }
+
+    private static String created(Session s) {
+        return "C\t" + s.id + "\t" + s.length + "\t" + s.created + "\t" + s.name + "\n";
+    }
+
+    // journal thread only
+    private void append(String entry) throws IOException {
+        journal.write(entry.endsWith("\n") ? entry : entry + "\n");
+        journal.flush();
+    }
+
+    private void journal(JournalTask task) {
+        writer.execute(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                System.err.println("Upload journal: " + e.getMessage());
+            }
+        });
+    }
+
+    private <T> T await(Callable<T> task) throws IOException {
+        try {
+            return writer.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the upload journal", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testLeaseRoundsUpToSizeClass() {
+        BufferPool pool = new BufferPool(1024 * 1024, false);
+        ByteBuffer small = pool.lease(100);
+        ByteBuffer mid = pool.lease(5000);
+        assertTrue(small.isDirect());
+        assertEquals(512, small.capacity());
+        assertEquals(8192, mid.capacity());
+        assertEquals(0, small.position());
+        assertEquals(small.capacity(), small.limit());
+        pool.release(small);
+        pool.release(mid);
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        BufferPool pool = new BufferPool(1024 * 1024, false);
+        ByteBuffer first = pool.lease(65536);
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.lease(65536);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+
+        BufferPool.Stats stats = pool.stats();
+        assertEquals(1, stats.outstanding);
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(0.5, stats.hitRate(), 1e-9);
+        assertEquals(65536, stats.bytesReserved);
+    }
+
+    @Test
+    public void testOversizedBuffersAreNotPooled() {
+        BufferPool pool = new BufferPool(1024 * 1024, false);
+        ByteBuffer big = pool.lease(3 * 1024 * 1024);
+        assertEquals(3 * 1024 * 1024, big.capacity());
+        pool.release(big);
+        assertEquals(0, pool.stats().bytesReserved);
+        assertEquals(0, pool.stats().outstanding);
+    }
+
+    @Test
+    public void testDebugModeDetectsDoubleReleaseAndLeaks() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024, true);
+        ByteBuffer buf = pool.lease(1024);
+        pool.release(buf);
+        pool.release(buf); // reported and ignored
+        assertNotSame(pool.lease(1024), pool.lease(1024));
+
+        leakOne(pool);
+        for (int i = 0; i < 50 && pool.stats().leaks == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue(pool.stats().leaks > 0, "leaked buffer was not reported");
+    }
+
+    private static void leakOne(BufferPool pool) {
+        pool.lease(2048).put((byte) 7);
+    }
+}
@@ -0,0 +1,142 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerNIOLoadTest {
+
+    private static final int CLIENTS = 32;
+    private static final long RUN_MILLIS = 2000;
+
+    /**
+     * Every byte received counts as one request: the handler burns a little
+     * CPU (a few SHA-256 rounds) and answers with one byte.
+     */
+    private static void cpuBoundHandler(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        ByteBuffer in = ByteBuffer.allocate(64);
+        int n = client.read(in);
+        if (n == -1) { key.cancel(); client.close(); return; }
+        in.flip();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] work = new byte[256];
+            for (int r = 0; r < n; r++) {
+                for (int i = 0; i < 20; i++) work = md.digest(work);
+            }
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        ByteBuffer out = ByteBuffer.allocate(n);
+        while (in.hasRemaining()) out.put(in.get());
+        out.flip();
+        while (out.hasRemaining()) client.write(out);
+    }
+
+    private double measure(int loops) throws Exception {
+        ServerNIO server = new ServerNIO(0, ServerNIOLoadTest::cpuBoundHandler,
+                loops, ServerNIO.Balancer.ROUND_ROBIN);
+        Thread serverThread = new Thread(server::start);
+        serverThread.start();
+        int port = server.getPort();
+
+        LongAdder requests = new LongAdder();
+        LongAdder errors = new LongAdder();
+        long deadline = System.currentTimeMillis() + RUN_MILLIS;
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            Thread t = new Thread(() -> {
+                try (SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+                    ByteBuffer req = ByteBuffer.allocate(1);
+                    ByteBuffer resp = ByteBuffer.allocate(1);
+                    while (System.currentTimeMillis() < deadline) {
+                        req.clear(); req.put((byte) 'x').flip();
+                        ch.write(req);
+                        resp.clear();
+                        if (ch.read(resp) != 1 || resp.get(0) != 'x') { errors.increment(); return; }
+                        requests.increment();
+                    }
+                } catch (IOException e) {
+                    errors.increment();
+                }
+            });
+            clients.add(t);
+            t.start();
+        }
+        for (Thread t : clients) t.join();
+        server.stop();
+        serverThread.join(5000);
+
+        assertEquals(0, errors.sum(), "client errors with " + loops + " loops");
+        double rps = requests.sum() * 1000.0 / RUN_MILLIS;
+        System.err.printf("loops=%-3d requests/sec=%.0f%n", loops, rps);
+        return rps;
+    }
+
+    @Test
+    public void testThroughputGrowsWithLoops() throws Exception {
+        int cores = ServerNIO.defaultLoops();
+        double single = measure(1);
+        double best = single;
+        for (int loops = 2; loops <= cores; loops *= 2) {
+            best = Math.max(best, measure(loops));
+        }
+        assertTrue(single > 0);
+        // only meaningful when there are spare cores to scale onto
+        if (cores >= 4) assertTrue(best > single * 1.5,
+                "expected scaling, 1 loop=" + single + " best=" + best);
+    }
+
+    @Test
+    public void testLeastLoadedBalancerServesAllClients() throws Exception {
+        ServerNIO server = new ServerNIO(0, ServerNIOLoadTest::cpuBoundHandler,
+                2, ServerNIO.Balancer.LEAST_LOADED);
+        Thread serverThread = new Thread(server::start);
+        serverThread.start();
+        int port = server.getPort();
+        for (int i = 0; i < 8; i++) {
+            try (SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+                ch.write(ByteBuffer.wrap(new byte[]{'y'}));
+                ByteBuffer resp = ByteBuffer.allocate(1);
+                assertEquals(1, ch.read(resp));
+                assertEquals('y', resp.get(0));
+            }
+        }
+        server.stop();
+        serverThread.join(5000);
+        assertFalse(serverThread.isAlive());
+    }
+
+    @Test
+    public void testHandlerErrorGoesToTheErrorHandler() throws Exception {
+        List<Exception> errors = new ArrayList<>();
+        ServerNIO server = new ServerNIO(0, key -> { throw new IllegalStateException("boom"); }, null, null,
+                (key, e) -> {
+                    synchronized (errors) { errors.add(e); }
+                    key.cancel();
+                    try { key.channel().close(); } catch (IOException ignored) {}
+                }, 1, ServerNIO.Balancer.ROUND_ROBIN);
+        Thread serverThread = new Thread(server::start);
+        serverThread.start();
+        int port = server.getPort();
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            ch.write(ByteBuffer.wrap(new byte[]{'z'}));
+            assertEquals(-1, ch.read(ByteBuffer.allocate(1))); // closed by the error handler
+        }
+        server.stop();
+        serverThread.join(5000);
+        synchronized (errors) {
+            assertEquals(1, errors.size());
+            assertEquals("boom", errors.get(0).getMessage());
+        }
+    }
+}
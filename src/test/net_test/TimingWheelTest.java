@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testFiresOnceDeadlinePassed() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(25, () -> fired.add("a"));
+        wheel.schedule(10, () -> fired.add("b"));
+        assertEquals(2, wheel.size());
+
+        assertEquals(0, wheel.advance(9));
+        assertEquals(1, wheel.advance(10));
+        assertEquals(List.of("b"), fired);
+        assertEquals(0, wheel.advance(29));
+        assertEquals(1, wheel.advance(30));
+        assertEquals(List.of("b", "a"), fired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testDeadlinesBeyondOneRevolutionWait() {
+        TimingWheel wheel = new TimingWheel(10, 4, 0); // one revolution is 40 ms
+        List<Long> fired = new ArrayList<>();
+        TimingWheel.Timeout t = wheel.schedule(100, () -> fired.add(100L));
+        for (long now = 0; now < 100; now += 10) wheel.advance(now);
+        assertTrue(fired.isEmpty());
+        assertTrue(t.isPending());
+        wheel.advance(100);
+        assertEquals(List.of(100L), fired);
+        assertFalse(t.isPending());
+    }
+
+    @Test
+    public void testLongPauseFiresEverythingDue() {
+        TimingWheel wheel = new TimingWheel(10, 4, 0);
+        List<Integer> fired = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            int n = i;
+            wheel.schedule(i * 10, () -> fired.add(n));
+        }
+        wheel.schedule(500, () -> fired.add(500));
+        assertEquals(10, wheel.advance(250));
+        assertEquals(10, fired.size());
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testCancelRemovesTimeout() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimingWheel.Timeout a = wheel.schedule(20, () -> fired.add("a"));
+        wheel.schedule(20, () -> fired.add("b"));
+        a.cancel();
+        a.cancel();
+        assertFalse(a.isPending());
+        assertEquals(1, wheel.size());
+        wheel.advance(20);
+        assertEquals(List.of("b"), fired);
+    }
+
+    @Test
+    public void testTaskMayCancelAndRescheduleInSameSlot() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimingWheel.Timeout[] other = new TimingWheel.Timeout[1];
+        wheel.schedule(10, () -> {
+            fired.add("first");
+            other[0].cancel();
+            wheel.schedule(80, () -> fired.add("again")); // lands in the same slot
+        });
+        other[0] = wheel.schedule(10, () -> fired.add("second"));
+
+        assertEquals(1, wheel.advance(10));
+        assertEquals(List.of("first"), fired);
+        assertEquals(1, wheel.size());
+        wheel.advance(80);
+        assertEquals(List.of("first"), fired);
+        wheel.advance(90);
+        assertEquals(List.of("first", "again"), fired);
+    }
+
+    @Test
+    public void testDelayRoundsUpToTick() {
+        TimingWheel wheel = new TimingWheel(100, 8, 1_000);
+        boolean[] fired = new boolean[1];
+        wheel.schedule(1, () -> fired[0] = true);
+        wheel.advance(1_050);
+        assertFalse(fired[0]);
+        wheel.advance(1_100);
+        assertTrue(fired[0]);
+    }
+}
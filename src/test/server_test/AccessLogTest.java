@@ -0,0 +1,63 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessLogTest {
+
+    @Test
+    public void testRecordsAreFormattedInOrder() throws IOException {
+        Path file = Files.createTempFile("access", ".log");
+        AccessLog log = new AccessLog(file, 1024, 0);
+        log.record(AccessLog.Method.GET, Metrics.Route.VIDEO, 206, 1_048_576, 3_412_345);
+        log.record(AccessLog.Method.PATCH, Metrics.Route.UPLOAD, 204, 80, 45_000);
+        log.drain();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).matches("\\d{4}-\\d{2}-\\d{2}T\\S+Z GET /video 206 1048576 3\\.412ms"), lines.get(0));
+        assertTrue(lines.get(1).endsWith(" PATCH upload 204 80 0.045ms"), lines.get(1));
+        Files.delete(file);
+    }
+
+    @Test
+    public void testConcurrentRecordsAreWrittenOrCountedAsDropped() throws Exception {
+        Path file = Files.createTempFile("access", ".log");
+        AccessLog log = new AccessLog(file, 64, 0);
+        int threads = 4, perThread = 20_000;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            producers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++)
+                    log.record(AccessLog.Method.GET, Metrics.Route.INDEX, 200, i, i);
+            });
+            producers[t].start();
+        }
+        for (Thread p : producers) p.join();
+        log.drain();
+
+        long written = Files.readAllLines(file).stream().filter(l -> l.contains(" GET / 200 ")).count();
+        assertEquals((long) threads * perThread, written + log.dropped());
+        assertTrue(written > 0);
+        Files.delete(file);
+    }
+
+    @Test
+    public void testRotatesPastMaxBytes() throws IOException {
+        Path file = Files.createTempFile("access", ".log");
+        Path rotated = file.resolveSibling(file.getFileName() + ".1");
+        AccessLog log = new AccessLog(file, 16, 100);
+        for (int i = 0; i < 4; i++) {
+            log.record(AccessLog.Method.GET, Metrics.Route.INDEX, 200, 0, 0);
+            log.drain();
+        }
+        assertTrue(Files.exists(rotated));
+        assertTrue(Files.size(file) < 100);
+        Files.delete(file);
+        Files.delete(rotated);
+    }
+}
@@ -0,0 +1,62 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares the old SimpleHttpServer.indexOf with BytePattern when looking
+ * for a multipart delimiter at the end of bodies of increasing size, on heap
+ * arrays and on the direct buffers the server now reads into.
+ *
+ * Run with: java -Xmx2g BytePatternBenchmark [sizeMB...]   (default 1 16 128;
+ * pass 500 for the full upload limit)
+ */
+public class BytePatternBenchmark {
+
+    private static final byte[] DELIMITER =
+            "\r\n------WebKitFormBoundary7MA4YWxkTrZu0gW".getBytes(StandardCharsets.US_ASCII);
+
+    /** The search the server used before BytePattern */
+    private static int legacyIndexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++)
+                if (data[i+j] != pattern[j]) continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    private static double time(Runnable op, int reps) {
+        op.run();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < reps; i++) op.run();
+        return (System.nanoTime() - t0) / 1e6 / reps;
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = args.length == 0 ? new int[]{1, 16, 128} : new int[args.length];
+        for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+
+        BytePattern pattern = new BytePattern(DELIMITER);
+        Random rnd = new Random(1);
+        for (int mb : sizes) {
+            byte[] body = new byte[mb * 1024 * 1024];
+            rnd.nextBytes(body);
+            // sprinkle CR/LF so the scan sees realistic near misses
+            for (int i = 0; i < body.length; i += 997) body[i] = '\r';
+            System.arraycopy(DELIMITER, 0, body, body.length - DELIMITER.length, DELIMITER.length);
+            ByteBuffer direct = ByteBuffer.allocateDirect(body.length);
+            direct.put(body);
+
+            int reps = Math.max(1, 256 / mb);
+            int[] found = new int[3];
+            double legacy = time(() -> found[0] = legacyIndexOf(body, DELIMITER, 0), reps);
+            double heap = time(() -> found[1] = pattern.indexOf(body, 0, body.length), reps);
+            double dir = time(() -> found[2] = pattern.indexOf(direct, 0, body.length), reps);
+            if (found[0] != found[1] || found[1] != found[2]) throw new AssertionError("results differ");
+
+            System.out.printf("%4d MB  legacy %9.2f ms (%6.0f MB/s)  horspool-heap %8.2f ms (%6.0f MB/s)  horspool-direct %8.2f ms (%6.0f MB/s)%n",
+                    mb, legacy, mb / legacy * 1000, heap, mb / heap * 1000, dir, mb / dir * 1000);
+        }
+    }
+}
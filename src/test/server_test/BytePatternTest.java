@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BytePatternTest {
+
+    private static int naiveIndexOf(byte[] data, byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++)
+                if (data[i + j] != pattern[j]) continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testMatchesNaiveSearchOnRandomData() {
+        Random rnd = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            byte[] data = new byte[rnd.nextInt(2000) + 1];
+            for (int i = 0; i < data.length; i++) data[i] = (byte) ('a' + rnd.nextInt(3));
+            byte[] pattern = new byte[rnd.nextInt(6) + 1];
+            for (int i = 0; i < pattern.length; i++) pattern[i] = (byte) ('a' + rnd.nextInt(3));
+            int from = rnd.nextInt(data.length);
+
+            BytePattern bp = new BytePattern(pattern);
+            int expected = naiveIndexOf(data, pattern, from, data.length);
+            assertEquals(expected, bp.indexOf(data, from, data.length));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            assertEquals(expected, bp.indexOf(direct, from, data.length));
+
+            ByteBuffer slice = ByteBuffer.wrap(new byte[data.length + 5], 5, data.length).slice();
+            slice.put(data);
+            assertEquals(expected, bp.indexOf(slice, from, data.length));
+        }
+    }
+
+    @Test
+    public void testPrefixAtEnd() {
+        BytePattern bp = new BytePattern("\r\n--xyz".getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer buf = ByteBuffer.wrap("abc\r\n-".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(3, bp.prefixAtEnd(buf, 0, buf.limit()));
+        assertEquals(0, bp.prefixAtEnd(ByteBuffer.wrap("abc".getBytes()), 0, 3));
+        assertTrue(bp.isPrefix("\r\n-".getBytes(), 3));
+        assertFalse(bp.isPrefix("\n".getBytes(), 1));
+    }
+}
@@ -0,0 +1,65 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ByteRangesTest {
+
+    private static void assertRange(ByteRanges.Range r, long first, long last) {
+        assertEquals(first, r.first);
+        assertEquals(last, r.last);
+    }
+
+    @Test
+    public void testSingleAndOpenEndedRanges() {
+        assertRange(ByteRanges.parse("bytes=0-99", 1000).get(0), 0, 99);
+        assertRange(ByteRanges.parse("bytes=900-", 1000).get(0), 900, 999);
+        assertRange(ByteRanges.parse("bytes=900-5000", 1000).get(0), 900, 999);
+        assertRange(ByteRanges.parse("BYTES=5-5", 1000).get(0), 5, 5);
+    }
+
+    @Test
+    public void testSuffixRanges() {
+        assertRange(ByteRanges.parse("bytes=-500", 1000).get(0), 500, 999);
+        assertRange(ByteRanges.parse("bytes=-5000", 1000).get(0), 0, 999);
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=-0", 1000));
+    }
+
+    @Test
+    public void testMultipleRangesAreSortedAndMerged() {
+        List<ByteRanges.Range> r = ByteRanges.parse("bytes=500-599, 0-99, 50-149, 150-199", 1000);
+        assertEquals(2, r.size());
+        assertRange(r.get(0), 0, 199);
+        assertRange(r.get(1), 500, 599);
+
+        r = ByteRanges.parse("bytes=0-0,-1", 1000);
+        assertEquals(2, r.size());
+        assertRange(r.get(1), 999, 999);
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=1000-", 1000));
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=2000-3000,1000-1001", 1000));
+        // one satisfiable range is enough
+        assertEquals(1, ByteRanges.parse("bytes=2000-3000,10-20", 1000).size());
+    }
+
+    @Test
+    public void testMalformedHeadersAreIgnored() {
+        assertNull(ByteRanges.parse(null, 1000));
+        assertNull(ByteRanges.parse("items=0-10", 1000));
+        assertNull(ByteRanges.parse("bytes=10-5", 1000));
+        assertNull(ByteRanges.parse("bytes=abc", 1000));
+        assertNull(ByteRanges.parse("bytes=-", 1000));
+        assertNull(ByteRanges.parse("bytes=", 1000));
+    }
+
+    @Test
+    public void testTooManyRangesFallBackToFullFile() {
+        StringBuilder sb = new StringBuilder("bytes=");
+        for (int i = 0; i < ByteRanges.MAX_RANGES + 1; i++) sb.append(i * 10).append('-').append(i * 10 + 1).append(',');
+        assertNull(ByteRanges.parse(sb.toString(), 1000));
+    }
+}
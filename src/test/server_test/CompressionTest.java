@@ -0,0 +1,110 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressionTest {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] text(int size) {
+        Random rnd = new Random(3);
+        String[] words = {"video", "image", "upload", "server", "buffer", "range", "\n"};
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) sb.append(words[rnd.nextInt(words.length)]).append(' ');
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] decode(byte[] data, Compression.Encoding enc) throws IOException {
+        try (InputStream in = enc == Compression.Encoding.GZIP
+                ? new GZIPInputStream(new ByteArrayInputStream(data))
+                : new InflaterInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void testNegotiation() {
+        assertNull(Compression.negotiate(null));
+        assertNull(Compression.negotiate("identity"));
+        assertEquals(Compression.Encoding.GZIP, Compression.negotiate("gzip, deflate, br"));
+        assertEquals(Compression.Encoding.DEFLATE, Compression.negotiate("deflate"));
+        assertEquals(Compression.Encoding.DEFLATE, Compression.negotiate("gzip;q=0.5, deflate;q=0.8"));
+        assertNull(Compression.negotiate("gzip;q=0"));
+        assertEquals(Compression.Encoding.GZIP, Compression.negotiate("*"));
+        assertEquals(Compression.Encoding.DEFLATE, Compression.negotiate("gzip;q=0, *"));
+    }
+
+    @Test
+    public void testMediaIsNotCompressible() {
+        assertTrue(Compression.compressible("text/html; charset=utf-8"));
+        assertTrue(Compression.compressible("application/json"));
+        assertFalse(Compression.compressible("video/mp4"));
+        assertFalse(Compression.compressible("image/jpeg"));
+    }
+
+    @Test
+    public void testInMemoryRoundTrip() throws IOException {
+        byte[] data = text(50_000);
+        for (Compression.Encoding enc : Compression.Encoding.values()) {
+            // twice, so the second run uses a pooled, reset Deflater
+            for (int i = 0; i < 2; i++) {
+                byte[] packed = Compression.compress(data, enc);
+                assertTrue(packed.length < data.length / 2);
+                assertArrayEquals(data, decode(packed, enc));
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingRoundTrip() throws IOException {
+        byte[] data = text(300_000);
+        Path src = dir.resolve("big.txt");
+        Files.write(src, data);
+        for (Compression.Encoding enc : Compression.Encoding.values()) {
+            Path dst = dir.resolve("big" + enc.suffix);
+            long size = Compression.compress(src, dst, enc);
+            assertEquals(Files.size(dst), size);
+            assertArrayEquals(data, decode(Files.readAllBytes(dst), enc));
+        }
+    }
+
+    @Test
+    public void testVariantIsReusedAndRebuiltWhenSourceChanges() throws IOException {
+        Path src = dir.resolve("app.js");
+        Files.write(src, text(10_000));
+        CompressedVariants variants = new CompressedVariants(dir.resolve("variants"));
+        long mtime = Files.getLastModifiedTime(src).toMillis();
+
+        Path v1 = variants.get(src, Files.size(src), mtime, Compression.Encoding.GZIP);
+        FileTime built = Files.getLastModifiedTime(v1);
+        assertEquals(v1, variants.get(src, Files.size(src), mtime, Compression.Encoding.GZIP));
+        assertEquals(built, Files.getLastModifiedTime(v1));
+
+        byte[] changed = text(12_000);
+        Files.write(src, changed);
+        Files.setLastModifiedTime(src, FileTime.fromMillis(mtime + 5000));
+        Path v2 = variants.get(src, Files.size(src), mtime + 5000, Compression.Encoding.GZIP);
+        assertNotEquals(v1, v2);
+        assertFalse(Files.exists(v1));
+        assertArrayEquals(changed, decode(Files.readAllBytes(v2), Compression.Encoding.GZIP));
+    }
+
+    @Test
+    public void testVariantTag() {
+        assertEquals("\"abc-gzip\"", Compression.variantTag("\"abc\"", Compression.Encoding.GZIP));
+        assertNull(Compression.variantTag(null, Compression.Encoding.GZIP));
+    }
+}
@@ -0,0 +1,96 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ETagIndexTest {
+
+    @TempDir
+    Path dir;
+    private Path file;
+    private Path indexFile;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = dir.resolve("a.txt");
+        indexFile = dir.resolve("etag.index");
+        Files.write(file, "hello".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static long size(Path p) throws IOException {
+        return Files.size(p);
+    }
+
+    private static long mtime(Path p) throws IOException {
+        return Files.getLastModifiedTime(p).toMillis();
+    }
+
+    /** Asks until the background hasher has produced the tag */
+    private static String awaitTag(ETagIndex index, Path p) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            String tag = index.get(p, size(p), mtime(p));
+            if (tag != null) return tag;
+            Thread.sleep(10);
+        }
+        fail("tag was never computed");
+        return null;
+    }
+
+    @Test
+    public void testTagIsComputedInBackgroundAndStable() throws Exception {
+        ETagIndex index = new ETagIndex(indexFile);
+        String tag = awaitTag(index, file);
+        assertTrue(tag.startsWith("\"") && tag.endsWith("\""));
+        assertEquals(34, tag.length());
+        assertEquals(tag, index.get(file, size(file), mtime(file)));
+
+        // same content elsewhere, same tag
+        Path copy = dir.resolve("b.txt");
+        Files.copy(file, copy);
+        assertEquals(tag, awaitTag(index, copy));
+    }
+
+    @Test
+    public void testChangedFileGetsNewTag() throws Exception {
+        ETagIndex index = new ETagIndex(indexFile);
+        String before = awaitTag(index, file);
+        Files.write(file, "world".getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(mtime(file) + 5000));
+        assertNull(index.get(file, size(file), mtime(file)));
+        String after = awaitTag(index, file);
+        assertNotEquals(before, after);
+    }
+
+    @Test
+    public void testTagsSurviveRestartAndStaleEntriesAreDropped() throws Exception {
+        Path gone = dir.resolve("gone.txt");
+        Files.write(gone, "bye".getBytes(StandardCharsets.US_ASCII));
+        ETagIndex first = new ETagIndex(indexFile);
+        String tag = awaitTag(first, file);
+        awaitTag(first, gone);
+        Files.delete(gone);
+
+        ETagIndex second = new ETagIndex(indexFile);
+        assertEquals(1, second.size());
+        // known immediately, without waiting for a rehash
+        assertEquals(tag, second.get(file, size(file), mtime(file)));
+    }
+
+    @Test
+    public void testIfNoneMatchComparison() {
+        String tag = "\"abc\"";
+        assertTrue(ETagIndex.noneMatchHits("\"abc\"", tag));
+        assertTrue(ETagIndex.noneMatchHits("\"x\", W/\"abc\"", tag));
+        assertTrue(ETagIndex.noneMatchHits("*", tag));
+        assertTrue(ETagIndex.noneMatchHits("*", null));
+        assertFalse(ETagIndex.noneMatchHits("\"abd\"", tag));
+        assertFalse(ETagIndex.noneMatchHits("\"abc\"", null));
+    }
+}
@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HpackTest {
+
+    private static ByteBuffer hex(String s) {
+        return ByteBuffer.wrap(HexFormat.of().parseHex(s.replace(" ", "")));
+    }
+
+    private static String text(List<Hpack.Field> fields) {
+        StringBuilder sb = new StringBuilder();
+        for (Hpack.Field f : fields) sb.append(f).append('\n');
+        return sb.toString();
+    }
+
+    @Test
+    public void testLiteralWithIndexing() throws IOException {
+        // RFC 7541 C.2.1
+        Hpack.Decoder d = new Hpack.Decoder(4096);
+        List<Hpack.Field> f = d.decode(hex("400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"), 1 << 16);
+        assertEquals("custom-key: custom-header\n", text(f));
+        // now in the dynamic table, right after the 61 static entries
+        assertEquals("custom-key: custom-header\n", text(d.decode(hex("be"), 1 << 16)));
+    }
+
+    @Test
+    public void testRequestsWithoutHuffman() throws IOException {
+        // RFC 7541 C.3
+        Hpack.Decoder d = new Hpack.Decoder(4096);
+        assertEquals(":method: GET\n:scheme: http\n:path: /\n:authority: www.example.com\n",
+                text(d.decode(hex("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"), 1 << 16)));
+        assertEquals(":method: GET\n:scheme: http\n:path: /\n:authority: www.example.com\ncache-control: no-cache\n",
+                text(d.decode(hex("8286 84be 5808 6e6f 2d63 6163 6865"), 1 << 16)));
+    }
+
+    @Test
+    public void testRequestsWithHuffman() throws IOException {
+        // RFC 7541 C.4
+        Hpack.Decoder d = new Hpack.Decoder(4096);
+        assertEquals(":method: GET\n:scheme: http\n:path: /\n:authority: www.example.com\n",
+                text(d.decode(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"), 1 << 16)));
+        assertEquals(":method: GET\n:scheme: http\n:path: /\n:authority: www.example.com\ncache-control: no-cache\n",
+                text(d.decode(hex("8286 84be 5886 a8eb 1064 9cbf"), 1 << 16)));
+        assertEquals(":method: GET\n:scheme: https\n:path: /index.html\n:authority: www.example.com\ncustom-key: custom-value\n",
+                text(d.decode(hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"), 1 << 16)));
+    }
+
+    @Test
+    public void testResponsesEvictFromASmallTable() throws IOException {
+        // RFC 7541 C.6, with the table limited to 256 bytes
+        Hpack.Decoder d = new Hpack.Decoder(256);
+        assertEquals(":status: 302\ncache-control: private\ndate: Mon, 21 Oct 2013 20:13:21 GMT\nlocation: https://www.example.com\n",
+                text(d.decode(hex("4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6"
+                        + "2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"), 1 << 16)));
+        // ":status: 307" evicts ":status: 302", the other three are referenced by index
+        assertEquals(":status: 307\ncache-control: private\ndate: Mon, 21 Oct 2013 20:13:21 GMT\nlocation: https://www.example.com\n",
+                text(d.decode(hex("4883 640e ffc1 c0bf"), 1 << 16)));
+    }
+
+    @Test
+    public void testMalformedBlocksAreRejected() {
+        Hpack.Decoder d = new Hpack.Decoder(4096);
+        assertThrows(IOException.class, () -> d.decode(hex("be"), 1 << 16));           // empty dynamic table
+        assertThrows(IOException.class, () -> d.decode(hex("80"), 1 << 16));           // index 0
+        assertThrows(IOException.class, () -> d.decode(hex("3fe21f"), 1 << 16));       // table size over the limit
+        assertThrows(IOException.class, () -> d.decode(hex("82 20"), 1 << 16));        // size update after a field
+        assertThrows(IOException.class, () -> d.decode(hex("0001 61 05 61"), 1 << 16)); // value runs past the end
+        assertThrows(IOException.class, () -> d.decode(hex("ffffffffff0f"), 1 << 16)); // integer overflow
+        assertThrows(IOException.class, () -> d.decode(hex("0001 61 81 00"), 1 << 16)); // padding that is not ones
+        assertThrows(IOException.class, () -> d.decode(hex("0001 61 82 ffff"), 1 << 16)); // padding longer than 7 bits
+        assertThrows(IOException.class, () -> d.decode(hex("4001 61 01 62 4001 63 01 64"), 40)); // list too large
+    }
+
+    @Test
+    public void testHuffmanRoundTrip() throws IOException {
+        String s = "/video/test.mp4?t=1&x=ÿ\u0000~";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.huffmanEncode(out, s);
+        assertEquals(s, Hpack.huffmanDecode(ByteBuffer.wrap(out.toByteArray())));
+        out.reset();
+        Hpack.huffmanEncode(out, "www.example.com");
+        assertEquals("f1e3c2e5f23a6ba0ab90f4ff", HexFormat.of().formatHex(out.toByteArray()));
+    }
+
+    @Test
+    public void testEncoderReusesTheTable() throws IOException {
+        Hpack.Encoder e = new Hpack.Encoder();
+        Hpack.Decoder d = new Hpack.Decoder(4096);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        e.begin(out);
+        e.encode(out, ":status", "200", true);
+        e.encode(out, "content-type", "video/mp4", true);
+        e.encode(out, "etag", "\"abc\"", false);
+        assertEquals(":status: 200\ncontent-type: video/mp4\netag: \"abc\"\n",
+                text(d.decode(ByteBuffer.wrap(out.toByteArray()), 1 << 16)));
+
+        out.reset();
+        e.begin(out);
+        e.encode(out, "content-type", "video/mp4", true);
+        assertEquals(1, out.size()); // indexed from the dynamic table
+        assertEquals("content-type: video/mp4\n", text(d.decode(ByteBuffer.wrap(out.toByteArray()), 1 << 16)));
+
+        // a smaller peer table is announced at the start of the next block and empties ours
+        e.setMaxTableSize(0);
+        e.setMaxTableSize(100);
+        out.reset();
+        e.begin(out);
+        e.encode(out, "content-type", "video/mp4", true);
+        assertEquals("content-type: video/mp4\n", text(d.decode(ByteBuffer.wrap(out.toByteArray()), 1 << 16)));
+    }
+}
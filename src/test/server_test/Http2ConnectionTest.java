@@ -0,0 +1,329 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Http2ConnectionTest {
+
+    private static final int DATA = 0, HEADERS = 1, RST_STREAM = 3, SETTINGS = 4, PING = 6, GOAWAY = 7,
+            WINDOW_UPDATE = 8;
+
+    /** A frame the server wrote */
+    private static final class Frame {
+        final int type, flags, stream;
+        final byte[] payload;
+
+        Frame(int type, int flags, int stream, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.stream = stream;
+            this.payload = payload;
+        }
+    }
+
+    /** Collects what the connection queues, reading file regions the way the queue would send them */
+    private static final class Capture implements Http2Connection.Output {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int fileRegions;
+        boolean close;
+
+        @Override
+        public void queue(boolean close, Object... parts) {
+            this.close |= close;
+            for (Object part : parts) {
+                if (part instanceof ByteBuffer) {
+                    ByteBuffer b = (ByteBuffer) part;
+                    while (b.hasRemaining()) bytes.write(b.get());
+                    continue;
+                }
+                OutboundQueue.FileRegion r = (OutboundQueue.FileRegion) part;
+                if (r.remaining > 0) fileRegions++;
+                try {
+                    ByteBuffer b = ByteBuffer.allocate((int) r.remaining);
+                    r.channel.read(b, r.position);
+                    bytes.write(b.array(), 0, b.position());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                r.release.run();
+            }
+        }
+
+        List<Frame> frames() {
+            ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray());
+            bytes.reset();
+            List<Frame> frames = new ArrayList<>();
+            while (b.hasRemaining()) {
+                int length = (b.get() & 0xff) << 16 | (b.get() & 0xff) << 8 | (b.get() & 0xff);
+                int type = b.get(), flags = b.get(), stream = b.getInt();
+                byte[] payload = new byte[length];
+                b.get(payload);
+                frames.add(new Frame(type, flags, stream, payload));
+            }
+            return frames;
+        }
+    }
+
+    private static byte[] frame(int type, int flags, int stream, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(9 + payload.length);
+        b.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length)
+                .put((byte) type).put((byte) flags).putInt(stream).put(payload);
+        return b.array();
+    }
+
+    private static byte[] request(Hpack.Encoder encoder, int stream, String path) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.begin(block);
+        encoder.encode(block, ":method", "GET", true);
+        encoder.encode(block, ":scheme", "http", true);
+        encoder.encode(block, ":path", path, true);
+        encoder.encode(block, ":authority", "localhost", true);
+        return frame(HEADERS, 0x5, stream, block.toByteArray()); // END_STREAM | END_HEADERS
+    }
+
+    private static byte[] windowUpdate(int stream, int increment) {
+        return frame(WINDOW_UPDATE, 0, stream, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static ByteBuffer concat(byte[]... chunks) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for (byte[] c : chunks) b.writeBytes(c);
+        return ByteBuffer.wrap(b.toByteArray());
+    }
+
+    private static ByteBuffer open(byte[]... frames) {
+        byte[][] all = new byte[frames.length + 2][];
+        all[0] = Http2Connection.PREFACE;
+        all[1] = frame(SETTINGS, 0, 0, new byte[0]);
+        System.arraycopy(frames, 0, all, 2, frames.length);
+        return concat(all);
+    }
+
+    private static int dataBytes(List<Frame> frames, int stream) {
+        int n = 0;
+        for (Frame f : frames) if (f.type == DATA && f.stream == stream) n += f.payload.length;
+        return n;
+    }
+
+    private static Frame last(List<Frame> frames, int type) {
+        Frame found = null;
+        for (Frame f : frames) if (f.type == type) found = f;
+        return found;
+    }
+
+    @Test
+    public void testSettingsExchange() {
+        Capture out = new Capture();
+        Http2Connection h2 = new Http2Connection(out, s -> fail("no request sent"), 100);
+        ByteBuffer in = open();
+        ByteBuffer partial = in.slice(0, 10);
+        h2.onRead(partial); // part of the preface waits for the rest
+        assertEquals(0, partial.position());
+        h2.onRead(in);
+        assertFalse(in.hasRemaining());
+        h2.pump(Long.MAX_VALUE);
+        List<Frame> frames = out.frames();
+        assertEquals(SETTINGS, frames.get(0).type);
+        assertEquals(0, frames.get(0).flags);
+        assertEquals(SETTINGS, frames.get(1).type);
+        assertEquals(1, frames.get(1).flags); // our ACK of the client's settings
+        assertFalse(out.close);
+    }
+
+    @Test
+    public void testBadPrefaceEndsTheConnection() {
+        Capture out = new Capture();
+        Http2Connection h2 = new Http2Connection(out, s -> fail("no request sent"), 100);
+        h2.onRead(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes()));
+        assertTrue(out.close);
+        assertEquals(GOAWAY, last(out.frames(), GOAWAY).type);
+    }
+
+    @Test
+    public void testUpgradedRequestIsStreamOne() throws IOException {
+        Capture out = new Capture();
+        Http2Connection h2 = new Http2Connection(out, s -> fail("stream 1 comes from the upgrade"), 100);
+        // HTTP2-Settings: a 1000 byte initial window
+        Http2Connection.Stream s = h2.upgrade(ByteBuffer.allocate(6).putShort((short) 4).putInt(1000).array(),
+                "GET", "/a", null);
+        assertEquals(1, s.id);
+        s.respond(200, ByteBuffer.allocate(5000));
+        h2.pump(Long.MAX_VALUE);
+        assertEquals(0, out.bytes.size()); // nothing before the client's preface
+        assertFalse(h2.hasPending());
+
+        h2.onRead(open());
+        h2.pump(Long.MAX_VALUE);
+        List<Frame> frames = out.frames();
+        assertEquals(SETTINGS, frames.get(0).type);
+        assertEquals(1, last(frames, HEADERS).stream);
+        assertEquals(1000, dataBytes(frames, 1));
+        // the request came as HTTP/1.1, so a client stream 1 would be a second one
+        h2.onRead(ByteBuffer.wrap(request(new Hpack.Encoder(), 1, "/b")));
+        assertTrue(out.close);
+    }
+
+    @Test
+    public void testBodyWaitsForTheFlowControlWindow() throws IOException {
+        Capture out = new Capture();
+        byte[] body = new byte[100_000];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+        Http2Connection h2 = new Http2Connection(out, s -> {
+            assertEquals("/a.bin", s.path);
+            assertEquals("x=1", s.query);
+            assertEquals("localhost", s.authority);
+            s.header("content-type", "application/octet-stream").header("content-length", body.length)
+                    .respond(200, ByteBuffer.wrap(body));
+        }, 100);
+        Hpack.Encoder client = new Hpack.Encoder();
+        h2.onRead(open(request(client, 1, "/a.bin?x=1")));
+        h2.pump(Long.MAX_VALUE);
+        List<Frame> frames = out.frames();
+        Frame headers = last(frames, HEADERS);
+        assertEquals(1, headers.stream);
+        assertEquals(":status: 200", new Hpack.Decoder(4096).decode(ByteBuffer.wrap(headers.payload), 1 << 16).get(0).toString());
+        assertEquals(65535, dataBytes(frames, 1)); // the default window
+        assertEquals(1, h2.active());
+
+        h2.onRead(concat(windowUpdate(0, 100_000), windowUpdate(1, 100_000)));
+        h2.pump(Long.MAX_VALUE);
+        frames = out.frames();
+        assertEquals(100_000 - 65535, dataBytes(frames, 1));
+        assertEquals(1, last(frames, DATA).flags); // END_STREAM on the last frame
+        for (Frame f : frames) assertTrue(f.type != DATA || f.payload.length <= 16384);
+        assertEquals(0, h2.active());
+    }
+
+    @Test
+    public void testWindowLoweredBelowZeroBySettings() throws IOException {
+        Capture out = new Capture();
+        Http2Connection h2 = new Http2Connection(out, s -> s.respond(200, ByteBuffer.allocate(300_000)), 100);
+        byte[] bigWindow = ByteBuffer.allocate(6).putShort((short) 4).putInt(1_000_000).array();
+        h2.onRead(open(frame(SETTINGS, 0, 0, bigWindow), request(new Hpack.Encoder(), 1, "/a")));
+        h2.pump(Long.MAX_VALUE);
+        assertEquals(65535, dataBytes(out.frames(), 1)); // the connection window ran out, the stream's did not
+
+        // INITIAL_WINDOW_SIZE 0 takes the stream's window from 1000000 - 65535 to -65535
+        byte[] noWindow = ByteBuffer.allocate(6).putShort((short) 4).putInt(0).array();
+        h2.onRead(concat(frame(SETTINGS, 0, 0, noWindow), windowUpdate(0, 100_000)));
+        h2.pump(Long.MAX_VALUE);
+        assertEquals(0, dataBytes(out.frames(), 1));
+        assertFalse(h2.hasPending());
+        assertFalse(out.close);
+
+        h2.onRead(ByteBuffer.wrap(windowUpdate(1, 65535 + 10)));
+        h2.pump(Long.MAX_VALUE);
+        assertEquals(10, dataBytes(out.frames(), 1));
+    }
+
+    @Test
+    public void testFileBodyGoesOutAsRegionsOfTheChannel() throws IOException {
+        Path file = Files.createTempFile("h2", ".bin");
+        Files.write(file, new byte[40_000]);
+        AtomicInteger released = new AtomicInteger();
+        Capture out = new Capture();
+        try (FileChannel ch = FileChannel.open(file)) {
+            Http2Connection h2 = new Http2Connection(out, s -> s.respond(200,
+                    new OutboundQueue.FileRegion(ch, null, 0, 40_000, released::incrementAndGet)), 100);
+            h2.onRead(open(request(new Hpack.Encoder(), 1, "/f")));
+            h2.pump(Long.MAX_VALUE);
+            List<Frame> frames = out.frames();
+            assertEquals(40_000, dataBytes(frames, 1));
+            assertEquals(3, out.fileRegions); // 16384 + 16384 + 7232, none copied
+            assertEquals(1, released.get());
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void testStreamsShareTheConnection() {
+        Capture out = new Capture();
+        Http2Connection h2 = new Http2Connection(out, s -> s.respond(200, ByteBuffer.allocate(40_000)), 100);
+        Hpack.Encoder client = new Hpack.Encoder();
+        h2.onRead(open(windowUpdate(0, 100_000), request(client, 1, "/a"), request(client, 3, "/b")));
+        h2.pump(Long.MAX_VALUE);
+        List<Integer> order = new ArrayList<>();
+        for (Frame f : out.frames()) if (f.type == DATA) order.add(f.stream);
+        assertEquals(List.of(1, 3, 1, 3, 1, 3), order); // one frame each in turn
+    }
+
+    @Test
+    public void testResetStreamReleasesItsFile() throws IOException {
+        Path file = Files.createTempFile("h2", ".bin");
+        Files.write(file, new byte[200_000]);
+        AtomicInteger released = new AtomicInteger();
+        Capture out = new Capture();
+        try (FileChannel ch = FileChannel.open(file)) {
+            Http2Connection h2 = new Http2Connection(out, s -> s.respond(200,
+                    new OutboundQueue.FileRegion(ch, null, 0, 200_000, released::incrementAndGet)), 100);
+            h2.onRead(open(request(new Hpack.Encoder(), 1, "/f")));
+            h2.pump(Long.MAX_VALUE);
+            assertEquals(65535, dataBytes(out.frames(), 1));
+            assertEquals(0, released.get());
+            h2.onRead(ByteBuffer.wrap(frame(RST_STREAM, 0, 1, ByteBuffer.allocate(4).putInt(8).array())));
+            assertEquals(1, released.get());
+            assertEquals(0, h2.active());
+            h2.onRead(ByteBuffer.wrap(windowUpdate(1, 100_000))); // late, for a stream that is gone
+            h2.pump(Long.MAX_VALUE);
+            assertEquals(0, dataBytes(out.frames(), 1));
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void testConcurrentStreamLimit() {
+        Capture out = new Capture();
+        List<Http2Connection.Stream> held = new ArrayList<>();
+        Http2Connection h2 = new Http2Connection(out, held::add, 1);
+        Hpack.Encoder client = new Hpack.Encoder();
+        h2.onRead(open(request(client, 1, "/a"), request(client, 3, "/b")));
+        h2.pump(Long.MAX_VALUE);
+        assertEquals(1, held.size());
+        Frame rst = last(out.frames(), RST_STREAM);
+        assertEquals(3, rst.stream);
+        assertEquals(Http2Connection.REFUSED_STREAM, ByteBuffer.wrap(rst.payload).getInt());
+        held.get(0).respond(204, null);
+        assertEquals(0, h2.active());
+    }
+
+    @Test
+    public void testPingIsAnswered() {
+        Capture out = new Capture();
+        Http2Connection h2 = new Http2Connection(out, s -> {}, 100);
+        byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+        h2.onRead(open(frame(PING, 0, 0, data)));
+        h2.pump(Long.MAX_VALUE);
+        Frame ack = last(out.frames(), PING);
+        assertEquals(1, ack.flags);
+        assertArrayEquals(data, ack.payload);
+    }
+
+    @Test
+    public void testProtocolErrorsSendGoAway() {
+        Capture out = new Capture();
+        Http2Connection h2 = new Http2Connection(out, s -> {}, 100);
+        h2.onRead(open(windowUpdate(0, 0)));
+        assertTrue(out.close);
+        Frame goAway = last(out.frames(), GOAWAY);
+        assertEquals(Http2Connection.PROTOCOL_ERROR, ByteBuffer.wrap(goAway.payload, 4, 4).getInt());
+
+        out = new Capture();
+        h2 = new Http2Connection(out, s -> {}, 100);
+        h2.onRead(ByteBuffer.wrap(concat(Http2Connection.PREFACE, frame(PING, 0, 0, new byte[8])).array()));
+        assertTrue(out.close); // SETTINGS must be the client's first frame
+
+        out = new Capture();
+        h2 = new Http2Connection(out, s -> {}, 100);
+        h2.onRead(open(frame(HEADERS, 0x5, 2, new byte[]{(byte) 0x82}))); // even stream ids are the server's
+        assertTrue(out.close);
+    }
+}
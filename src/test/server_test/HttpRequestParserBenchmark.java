@@ -0,0 +1,110 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Compares the old handleClient/extractHeader request path with
+ * HttpRequestParser, reporting time and bytes allocated per request
+ * (the same figure JMH prints as gc.alloc.rate.norm).
+ *
+ * Run with: java HttpRequestParserBenchmark [iterations]
+ */
+public class HttpRequestParserBenchmark {
+
+    private static final byte[] REQUEST = ("GET /video/clip.mp4?autoplay=1 HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/124.0\r\n" +
+            "Accept: video/webm,video/ogg,video/*;q=0.9,*/*;q=0.5\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate, br\r\n" +
+            "Range: bytes=1048576-\r\n" +
+            "Connection: keep-alive\r\n" +
+            "If-Modified-Since: Tue, 26 Mar 2026 10:00:00 GMT\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink;
+
+    /** What handleClient did per read event before the parser existed */
+    private static void legacy() {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        buffer.put(REQUEST).flip();
+        ByteArrayOutputStream acc = new ByteArrayOutputStream();
+        acc.write(buffer.array(), 0, buffer.limit());
+        byte[] data = acc.toByteArray();
+
+        int headerEnd = -1;
+        for (int i = 0; i <= data.length - 4; i++)
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') { headerEnd = i; break; }
+        String headers = new String(data, 0, headerEnd + 4, StandardCharsets.US_ASCII);
+        String requestLine = headers.lines().findFirst().orElse("");
+        String[] parts = requestLine.split(" ");
+        String path = parts[1];
+        int q = path.indexOf('?');
+        if (q != -1) path = path.substring(0, q);
+        boolean keepAlive = !"close".equalsIgnoreCase(legacyExtractHeader(headers, "Connection"));
+        String range = legacyExtractHeader(headers, "Range");
+        String ims = legacyExtractHeader(headers, "If-Modified-Since");
+        sink += path.length() + (keepAlive ? 1 : 0) + range.length() + ims.length() + parts[0].length();
+    }
+
+    private static String legacyExtractHeader(String headers, String name) {
+        for (String line : headers.split("\r\n"))
+            if (line.toLowerCase(Locale.ROOT).startsWith(name.toLowerCase(Locale.ROOT) + ":"))
+                return line.substring(line.indexOf(':') + 1).trim();
+        return null;
+    }
+
+    private static final ByteBuffer IN = ByteBuffer.allocate(65536);
+    private static final HttpRequestParser PARSER = new HttpRequestParser();
+
+    /**
+     * The new path, making the calls handleClient and handleGet make for this
+     * GET: the path is decoded twice (once for the metrics route, once to
+     * resolve the file), the h2c upgrade check runs, and the Range and
+     * conditional headers are decoded since the request is handed to ioPool.
+     */
+    private static void parser() {
+        IN.clear();
+        IN.put(REQUEST);
+        PARSER.reset(0);
+        PARSER.parse(IN);
+        boolean keepAlive = !PARSER.headerEqualsIgnoreCase(HttpRequestParser.CONNECTION, "close");
+        boolean get = PARSER.methodIs(HttpRequestParser.GET);
+        String route = PARSER.path();
+        boolean upgrade = PARSER.headerContainsIgnoreCase(HttpRequestParser.UPGRADE, "h2c");
+        String path = PARSER.path();
+        String range = PARSER.header(HttpRequestParser.RANGE);
+        String ims = PARSER.header(HttpRequestParser.IF_MODIFIED_SINCE);
+        String ifRange = PARSER.header(HttpRequestParser.IF_RANGE);
+        String inm = PARSER.header(HttpRequestParser.IF_NONE_MATCH);
+        sink += PARSER.headEnd() + (get ? 1 : 0) + (keepAlive ? 1 : 0) + (upgrade ? 1 : 0)
+                + route.length() + path.length() + range.length() + ims.length()
+                + (ifRange == null ? 0 : 1) + (inm == null ? 0 : 1);
+    }
+
+    private static void run(String name, Runnable op, int iterations) {
+        for (int i = 0; i < iterations; i++) op.run(); // warm up
+        long tid = Thread.currentThread().getId();
+        long bytes0 = THREADS.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) op.run();
+        long ns = System.nanoTime() - t0;
+        long bytes = THREADS.getThreadAllocatedBytes(tid) - bytes0;
+        System.out.printf("%-8s %8.1f ns/op %10.1f B/op (gc.alloc.rate.norm)%n",
+                name, (double) ns / iterations, (double) bytes / iterations);
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        for (int round = 0; round < 3; round++) {
+            run("legacy", HttpRequestParserBenchmark::legacy, iterations);
+            run("parser", HttpRequestParserBenchmark::parser, iterations);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,100 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpRequestParserTest {
+
+    private HttpRequestParser parser;
+    private ByteBuffer buf;
+
+    @BeforeEach
+    public void setUp() {
+        parser = new HttpRequestParser();
+        buf = ByteBuffer.allocate(4096);
+    }
+
+    private void feed(String s) {
+        buf.put(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testRequestLineAndHeaders() {
+        feed("GET /video/a.mp4?t=10 HTTP/1.1\r\nHost: x\r\nRANGE:  bytes=0-99 \r\n\r\n");
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(buf));
+        assertTrue(parser.methodIs(HttpRequestParser.GET));
+        assertFalse(parser.methodIs(HttpRequestParser.POST));
+        assertEquals("/video/a.mp4", parser.path());
+        assertEquals("t=10", parser.query());
+        assertEquals("GET /video/a.mp4?t=10 HTTP/1.1", parser.requestLine());
+        assertEquals("bytes=0-99", parser.header(HttpRequestParser.RANGE));
+        assertNull(parser.header(HttpRequestParser.CONNECTION));
+        assertEquals(buf.position(), parser.headEnd());
+    }
+
+    @Test
+    public void testIncrementalParsing() {
+        String req = "POST /upload HTTP/1.1\r\nContent-Length: 42\r\nConnection: Close\r\n\r\n";
+        for (int i = 0; i < req.length() - 1; i++) {
+            feed(req.substring(i, i + 1));
+            assertEquals(HttpRequestParser.Result.INCOMPLETE, parser.parse(buf));
+        }
+        feed("\n");
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(buf));
+        assertEquals(42, parser.headerLong(HttpRequestParser.CONTENT_LENGTH));
+        assertTrue(parser.headerEqualsIgnoreCase(HttpRequestParser.CONNECTION, "close"));
+        assertNull(parser.query());
+    }
+
+    @Test
+    public void testPipelinedRequestsAndShift() {
+        feed("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\nContent-Type: Multipart/Form-Data; boundary=x\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(buf));
+        assertEquals("/a", parser.path());
+        parser.reset(parser.headEnd());
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(buf));
+        assertEquals("/b", parser.path());
+        assertTrue(parser.headerContainsIgnoreCase(HttpRequestParser.CONTENT_TYPE, "multipart/form-data"));
+
+        // compact the first request away and make sure offsets still resolve
+        int consumed = parser.start();
+        buf.limit(buf.position()).position(consumed);
+        buf.compact();
+        parser.shift(consumed);
+        assertEquals("/b", parser.path());
+        assertEquals(0, parser.start());
+    }
+
+    @Test
+    public void testContentLengthValidation() {
+        feed("POST / HTTP/1.1\r\nContent-Length: 12ab\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(buf));
+        assertEquals(-2, parser.headerLong(HttpRequestParser.CONTENT_LENGTH));
+        assertFalse(parser.hasHeader(HttpRequestParser.RANGE));
+        assertEquals(-1, parser.headerLong(HttpRequestParser.RANGE));
+    }
+
+    @Test
+    public void testRepeatedContentLengthMustAgree() {
+        feed("POST / HTTP/1.1\r\nContent-Length: 5\r\ncontent-length: 5\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(buf));
+        assertEquals(5, parser.headerLong(HttpRequestParser.CONTENT_LENGTH));
+
+        setUp();
+        feed("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 50\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.MALFORMED, parser.parse(buf));
+    }
+
+    @Test
+    public void testMalformedRequests() {
+        feed("GET /a\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.MALFORMED, parser.parse(buf));
+
+        setUp();
+        feed("GET / HTTP/1.1\r\n folded: value\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.MALFORMED, parser.parse(buf));
+    }
+}
@@ -0,0 +1,81 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsAreContiguous() {
+        for (int i = 0; i < 900; i++) {
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.lowerBound(i)));
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.upperBound(i)));
+            assertEquals(LatencyHistogram.upperBound(i) + 1, LatencyHistogram.lowerBound(i + 1));
+        }
+    }
+
+    @Test
+    public void testPrecisionIsWithinSixPercent() {
+        for (long v = 1; v < 1L << 40; v = v * 3 + 7) {
+            int i = LatencyHistogram.index(v);
+            long lo = LatencyHistogram.lowerBound(i), hi = LatencyHistogram.upperBound(i);
+            assertTrue(lo <= v && v <= hi);
+            assertTrue(hi - lo <= Math.max(0, lo / 16), "bucket of " + v + " too wide");
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.valueAt(0.5));
+        for (int i = 1; i <= 1000; i++) h.record(i * 1_000L); // 1 us .. 1 ms
+        assertEquals(1000, h.count());
+        assertEquals(500_500_000L, h.sumNanos());
+        assertEquals(500_000, h.valueAt(0.5), 500_000 / 16.0);
+        assertEquals(990_000, h.valueAt(0.99), 990_000 / 16.0);
+        assertTrue(h.valueAt(1.0) >= 1_000_000);
+    }
+
+    @Test
+    public void testCoordinatedOmissionCorrection() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) h.record(1_000_000); // 1 ms each
+        h.record(100_000_000);                            // one 100 ms stall
+        assertEquals(1_000_000, h.valueAt(0.75), 1_000_000 / 16.0);
+
+        LatencyHistogram c = h.correctedFor(1_000_000);
+        // the stall hid about 95 requests, their latencies falling 1 ms at a time
+        assertTrue(c.count() > 190 && c.count() < 200, "count " + c.count());
+        assertTrue(c.valueAt(0.75) > 40_000_000 && c.valueAt(0.75) < 60_000_000, "p75 " + c.valueAt(0.75));
+        assertEquals(h.valueAt(1.0), c.valueAt(1.0));
+        assertEquals(100, h.count()); // the original is untouched
+
+        assertEquals(100, h.correctedFor(200_000_000).count()); // nothing longer than the interval
+        assertEquals(100, h.correctedFor(0).count());
+    }
+
+    @Test
+    public void testCumulativeCounts() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(50_000);      // 50 us
+        h.record(2_000_000);   // 2 ms
+        h.record(2_000_000);
+        h.record(3_000_000_000L); // 3 s
+        h.record(-5);          // clock went backwards, counts as 0
+        long[] cum = h.cumulative(new long[]{100_000, 10_000_000, 1_000_000_000});
+        assertArrayEquals(new long[]{2, 4, 4, 5}, cum);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram h = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) h.record(i);
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        assertEquals(400_000, h.count());
+    }
+}
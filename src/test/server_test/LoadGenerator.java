@@ -0,0 +1,486 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Load generator for SimpleHttpServer. Replays a weighted request mix
+ * against a running server over a fixed pool of keep-alive connections,
+ * all driven by one selector thread:
+ * <pre>
+ *   static    GET of a small static file
+ *   range     Range request for rangeBytes at a random offset of a video
+ *   playlist  GET /playlist
+ *   upload    multipart POST /upload of uploadBytes, named loadgen-*.bin
+ * </pre>
+ * model=closed: each connection sends its next request as soon as the
+ * previous response is complete, so the rate is whatever the server
+ * sustains. model=open: requests fall due at a fixed rate whether or not
+ * earlier ones finished; one that finds every connection busy waits for a
+ * free one, as it would in a client's connection pool.
+ * <p>
+ * Reports requests/s and latency percentiles per kind of request twice:
+ * service time (request written to response complete), and latency
+ * corrected for coordinated omission. The open loop measures the latter
+ * from the moment each request fell due, so waiting behind a stalled server
+ * counts. A closed loop sends nothing during a stall, which hides the
+ * requests it would have sent; those are back-filled with
+ * {@link LatencyHistogram#correctedFor}, taking the median service time (or
+ * interval=ms) as the interval between requests on a connection.
+ *
+ * Run with: java -cp <classes> LoadGenerator [key=value...], keys and defaults:
+ *   host=127.0.0.1 port=8080 model=closed connections=32 rate=1000 (open loop, requests/s)
+ *   duration=30 warmup=5 (seconds) mix=static:70,range:20,playlist:8,upload:2
+ *   static=/ video=(path) rangeBytes=65536 uploadBytes=65536 interval=(ms) seed=1
+ *   uploads=(the server's uploads folder) where this run's loadgen-*.bin files are deleted
+ *   afterwards; uploads= (empty) keeps them, e.g. for a server on another host
+ * video= names a large file on the server and is required when the mix has range requests.
+ * Start the server first, with whatever settings are being compared. The
+ * generator busy-polls just before each open-loop send, so give it a core
+ * of its own when the server has to be measured under full load.
+ */
+public class LoadGenerator {
+
+    enum Kind { STATIC, RANGE, PLAYLIST, UPLOAD }
+
+    private static final Kind[] KINDS = Kind.values();
+    private static final long DRAIN_NANOS = 10_000_000_000L; // in-flight requests get this long after the run
+    private static final String BOUNDARY = "loadgen7MA4YWxkTrZu0gW";
+    private static final byte[] EPILOGUE = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 0.9999, 1.0};
+    private static final String[] QUANTILE_LABELS = {"p50", "p90", "p99", "p99.9", "p99.99", "max"};
+
+    /** One keep-alive connection and the exchange on it */
+    private static final class Conn {
+        SocketChannel channel;
+        SelectionKey key;
+        boolean busy;
+        Kind kind;
+        ByteBuffer[] request;
+        long due;               // when the request should have been sent
+        long sent;              // when its first byte was written
+        final byte[] head = new byte[16 * 1024];
+        int headLength;
+        long bodyLeft;          // -1 while the head is read
+        boolean untilEof;       // no Content-Length, the body ends with the connection
+        boolean close;
+        int status;
+        long received;
+    }
+
+    private static final class Stats {
+        final LatencyHistogram service = new LatencyHistogram();
+        final LatencyHistogram response = new LatencyHistogram(); // from the due time, open loop
+        long failed;  // answered 4xx or 5xx
+        long broken;  // connection lost before the response was complete
+        long bytes;
+    }
+
+    private final InetSocketAddress addr;
+    private final boolean open;
+    private final int connections;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int[] weights = new int[KINDS.length];
+    private final int totalWeight;
+    private final byte[] staticRequest;
+    private final byte[] playlistRequest;
+    private final String video;
+    private final int rangeBytes;
+    private final byte[] payload;
+    private final long intervalNanos;
+    private final Random random;
+    private final Path uploads;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final Stats[] stats = new Stats[KINDS.length];
+    private final Stats all = new Stats();
+    private long videoLength;
+    private long uploadsSent;
+    private long measureFrom, end;
+    private long backlogPeak;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opt = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("expected key=value: " + a);
+            opt.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        new LoadGenerator(opt).run();
+    }
+
+    private LoadGenerator(Map<String, String> opt) {
+        addr = new InetSocketAddress(take(opt, "host", "127.0.0.1"), Integer.parseInt(take(opt, "port", "8080")));
+        String model = take(opt, "model", "closed");
+        if (!model.equals("open") && !model.equals("closed")) throw new IllegalArgumentException("model is open or closed");
+        open = model.equals("open");
+        connections = Integer.parseInt(take(opt, "connections", "32"));
+        rate = Double.parseDouble(take(opt, "rate", "1000"));
+        durationNanos = (long) (Double.parseDouble(take(opt, "duration", "30")) * 1e9);
+        warmupNanos = (long) (Double.parseDouble(take(opt, "warmup", "5")) * 1e9);
+        int sum = 0;
+        for (String entry : take(opt, "mix", "static:70,range:20,playlist:8,upload:2").split(",")) {
+            String[] kv = entry.split(":");
+            int w = Integer.parseInt(kv[1]);
+            weights[Kind.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = w;
+            sum += w;
+        }
+        if (sum <= 0) throw new IllegalArgumentException("mix has no weight");
+        totalWeight = sum;
+        staticRequest = ascii("GET " + take(opt, "static", "/") + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        playlistRequest = ascii("GET /playlist HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        video = take(opt, "video", null);
+        if (video == null && weights[Kind.RANGE.ordinal()] > 0)
+            throw new IllegalArgumentException("range requests need video=<path of a large file on the server>");
+        rangeBytes = Integer.parseInt(take(opt, "rangeBytes", "65536"));
+        payload = new byte[Integer.parseInt(take(opt, "uploadBytes", "65536"))];
+        String interval = take(opt, "interval", null);
+        intervalNanos = interval == null ? -1 : (long) (Double.parseDouble(interval) * 1e6);
+        random = new Random(Long.parseLong(take(opt, "seed", "1")));
+        random.nextBytes(payload);
+        String dir = take(opt, "uploads", SimpleHttpServer.UPLOADS);
+        uploads = dir.isEmpty() ? null : Paths.get(dir);
+        if (!opt.isEmpty()) throw new IllegalArgumentException("unknown option(s) " + opt.keySet());
+        if (open && rate <= 0) throw new IllegalArgumentException("rate must be positive");
+        for (int i = 0; i < stats.length; i++) stats[i] = new Stats();
+    }
+
+    private static String take(Map<String, String> opt, String key, String def) {
+        String v = opt.remove(key);
+        return v == null ? def : v;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void run() throws IOException {
+        if (weights[Kind.RANGE.ordinal()] > 0) videoLength = videoLength();
+
+        Selector selector = Selector.open();
+        Conn[] conns = new Conn[connections];
+        ArrayDeque<Conn> idle = new ArrayDeque<>(connections);
+        ByteBuffer buf = ByteBuffer.allocate(256 * 1024);
+        try {
+            for (int i = 0; i < connections; i++) {
+                conns[i] = new Conn();
+                connect(conns[i], selector);
+                idle.add(conns[i]);
+            }
+            long start = System.nanoTime();
+            measureFrom = start + warmupNanos;
+            end = measureFrom + durationNanos;
+            long issued = 0; // open loop: requests taken off the schedule
+            int inFlight = 0;
+
+            while (true) {
+                long now = System.nanoTime();
+                boolean issuing = now < end;
+                long nextDue = Long.MAX_VALUE;
+                if (issuing && open) {
+                    long dueCount = (long) ((now - start) * rate / 1e9) + 1;
+                    while (issued < dueCount && !idle.isEmpty()) {
+                        if (send(idle.peek(), start + (long) (issued * 1e9 / rate), now)) {
+                            idle.poll();
+                            inFlight++;
+                        }
+                        issued++;
+                    }
+                    backlogPeak = Math.max(backlogPeak, dueCount - issued);
+                    if (issued >= dueCount) nextDue = start + (long) (issued * 1e9 / rate);
+                } else if (issuing) {
+                    while (!idle.isEmpty()) {
+                        if (send(idle.peek(), now, now)) {
+                            idle.poll();
+                            inFlight++;
+                        }
+                    }
+                } else if (inFlight == 0 || now - end > DRAIN_NANOS) {
+                    break;
+                }
+
+                long wait = Math.min(nextDue, issuing ? end : end + DRAIN_NANOS) - now;
+                if (wait < 1_000_000) selector.selectNow();
+                else selector.select(Math.min(100, wait / 1_000_000));
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Conn c = (Conn) key.attachment();
+                    if (!key.isValid() || key != c.key) continue;
+                    try {
+                        if (key.isWritable()) write(c);
+                        if (key.isReadable() && read(c, buf)) {
+                            boolean wasBusy = c.busy;
+                            if (wasBusy) {
+                                finish(c);
+                                inFlight--;
+                            }
+                            if (c.close) connect(c, selector);
+                            if (wasBusy) idle.add(c);
+                        }
+                    } catch (IOException e) {
+                        if (c.busy) {
+                            if (counts(c)) {
+                                stats[c.kind.ordinal()].broken++;
+                                all.broken++;
+                            }
+                            c.busy = false;
+                            inFlight--;
+                            idle.add(c);
+                        }
+                        connect(c, selector);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            report(inFlight);
+        } finally {
+            for (Conn c : conns) if (c != null && c.channel != null) c.channel.close();
+            selector.close();
+            if (uploads != null && Files.isDirectory(uploads)) deleteUploads();
+        }
+    }
+
+    private void connect(Conn c, Selector selector) throws IOException {
+        if (c.channel != null) {
+            c.key.cancel();
+            c.channel.close();
+        }
+        c.channel = SocketChannel.open(addr);
+        c.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        c.channel.configureBlocking(false);
+        c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+        c.close = false;
+    }
+
+    /**
+     * Starts the next request on an idle connection.
+     * @return true if the connection took it, false if it was already gone
+     * (the request then counts as broken and the caller keeps the connection idle)
+     */
+    private boolean send(Conn c, long due, long now) throws IOException {
+        c.kind = pick();
+        c.request = request(c.kind);
+        c.due = due;
+        c.sent = now;
+        c.busy = true;
+        c.headLength = 0;
+        c.bodyLeft = -1;
+        c.untilEof = false;
+        c.close = false;
+        c.received = 0;
+        try {
+            write(c);
+            return true;
+        } catch (IOException e) {
+            // the server closed it while idle and the selector has not said so yet
+            if (counts(c)) {
+                stats[c.kind.ordinal()].broken++;
+                all.broken++;
+            }
+            c.busy = false;
+            connect(c, c.key.selector());
+            return false;
+        }
+    }
+
+    private Kind pick() {
+        int r = random.nextInt(totalWeight);
+        for (Kind k : KINDS) {
+            r -= weights[k.ordinal()];
+            if (r < 0) return k;
+        }
+        throw new AssertionError();
+    }
+
+    private ByteBuffer[] request(Kind kind) {
+        switch (kind) {
+            case STATIC:
+                return new ByteBuffer[]{ByteBuffer.wrap(staticRequest)};
+            case PLAYLIST:
+                return new ByteBuffer[]{ByteBuffer.wrap(playlistRequest)};
+            case RANGE: {
+                long from = (long) (random.nextDouble() * Math.max(1, videoLength - rangeBytes));
+                long last = Math.min(videoLength, from + rangeBytes) - 1;
+                return new ByteBuffer[]{ByteBuffer.wrap(ascii("GET " + video + " HTTP/1.1\r\nHost: localhost\r\n" +
+                        "Range: bytes=" + from + "-" + last + "\r\n\r\n"))};
+            }
+            default: {
+                String name = "loadgen-" + runId + "-" + (uploadsSent++) + ".bin";
+                String preamble = "--" + BOUNDARY + "\r\n" +
+                        "Content-Disposition: form-data; name=\"file\"; filename=\"" + name + "\"\r\n" +
+                        "Content-Type: application/octet-stream\r\n\r\n";
+                long length = preamble.length() + payload.length + EPILOGUE.length;
+                String head = "POST /upload HTTP/1.1\r\nHost: localhost\r\n" +
+                        "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n" +
+                        "Content-Length: " + length + "\r\n\r\n";
+                return new ByteBuffer[]{ByteBuffer.wrap(ascii(head + preamble)),
+                        ByteBuffer.wrap(payload), ByteBuffer.wrap(EPILOGUE)};
+            }
+        }
+    }
+
+    private static void write(Conn c) throws IOException {
+        c.channel.write(c.request);
+        boolean done = !c.request[c.request.length - 1].hasRemaining();
+        c.key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Reads what arrived and follows the response.
+     * @return true when the response is complete or the server closed an idle connection
+     * @throws IOException also when the connection is lost mid-response
+     */
+    private boolean read(Conn c, ByteBuffer buf) throws IOException {
+        buf.clear();
+        int r = c.channel.read(buf);
+        if (r < 0) {
+            if (!c.busy) {
+                c.close = true; // keep-alive timeout
+                return true;
+            }
+            if (c.untilEof) return true;
+            throw new IOException("connection closed mid-response");
+        }
+        buf.flip();
+        c.received += r;
+        while (buf.hasRemaining()) {
+            if (!c.busy) throw new IOException("unexpected bytes on an idle connection");
+            if (c.bodyLeft < 0) {
+                if (c.headLength == c.head.length) throw new IOException("response head too large");
+                c.head[c.headLength++] = buf.get();
+                if (c.headLength >= 4 && c.head[c.headLength - 1] == '\n' && c.head[c.headLength - 2] == '\r'
+                        && c.head[c.headLength - 3] == '\n' && c.head[c.headLength - 4] == '\r') {
+                    parseHead(c);
+                    if (c.bodyLeft == 0) return true;
+                }
+            } else if (c.untilEof) {
+                buf.position(buf.limit());
+            } else {
+                int n = (int) Math.min(buf.remaining(), c.bodyLeft);
+                buf.position(buf.position() + n);
+                c.bodyLeft -= n;
+                if (c.bodyLeft == 0) return true;
+            }
+        }
+        return false;
+    }
+
+    private static void parseHead(Conn c) throws IOException {
+        String head = new String(c.head, 0, c.headLength, StandardCharsets.ISO_8859_1);
+        if (!head.startsWith("HTTP/1.")) throw new IOException("not an HTTP response");
+        c.status = Integer.parseInt(head.substring(9, 12));
+        long length = -1;
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon < 0) continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) length = Long.parseLong(value);
+            else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) c.close = true;
+        }
+        if (c.status < 200 || c.status == 204 || c.status == 304) length = 0;
+        if (length < 0) {
+            c.untilEof = true;
+            c.close = true;
+            c.bodyLeft = Long.MAX_VALUE;
+        } else {
+            c.bodyLeft = length;
+        }
+    }
+
+    /** Only requests due inside the measured window count */
+    private boolean counts(Conn c) {
+        return c.due >= measureFrom && c.due < end;
+    }
+
+    private void finish(Conn c) {
+        c.busy = false;
+        if (!counts(c)) return;
+        long now = System.nanoTime();
+        for (Stats s : new Stats[]{stats[c.kind.ordinal()], all}) {
+            s.service.record(now - c.sent);
+            s.response.record(now - c.due);
+            s.bytes += c.received;
+            if (c.status >= 400) s.failed++;
+        }
+    }
+
+    private void report(int unfinished) {
+        double seconds = durationNanos / 1e9;
+        System.out.printf("%s loop, %d connections, %.0f s after %.0f s warm-up: %.1f requests/s, %.1f MB/s%n",
+                open ? "open" : "closed", connections, seconds, warmupNanos / 1e9,
+                all.service.count() / seconds, all.bytes / seconds / (1 << 20));
+        if (open) System.out.printf("target %.0f requests/s, peak backlog %d requests, %d unfinished%n",
+                rate, backlogPeak, unfinished);
+
+        LatencyHistogram[] service = new LatencyHistogram[KINDS.length + 1];
+        LatencyHistogram[] corrected = new LatencyHistogram[KINDS.length + 1];
+        long interval = intervalNanos >= 0 ? intervalNanos : all.service.valueAt(0.5);
+        for (int i = 0; i <= KINDS.length; i++) {
+            Stats s = i < KINDS.length ? stats[i] : all;
+            service[i] = s.service;
+            corrected[i] = open ? s.response : s.service.correctedFor(interval);
+        }
+        table("service time", service);
+        table(open ? "latency from when each request fell due (coordinated omission corrected)"
+                : String.format("corrected for coordinated omission, expected interval %.3f ms", interval / 1e6), corrected);
+    }
+
+    private void table(String title, LatencyHistogram[] h) {
+        System.out.printf("%n%s, ms%n%-9s %9s %7s %7s", title, "", "requests", "failed", "broken");
+        for (String label : QUANTILE_LABELS) System.out.printf(" %9s", label);
+        System.out.println();
+        for (int i = 0; i <= KINDS.length; i++) {
+            Stats s = i < KINDS.length ? stats[i] : all;
+            if (i < KINDS.length && weights[i] == 0) continue;
+            System.out.printf("%-9s %9d %7d %7d", i < KINDS.length ? KINDS[i].name().toLowerCase(Locale.ROOT) : "all",
+                    h[i].count(), s.failed, s.broken);
+            for (double q : QUANTILES) System.out.printf(" %9.3f", h[i].valueAt(q) / 1e6);
+            System.out.println();
+        }
+    }
+
+    /** Asks for the first byte of the video to learn its length from Content-Range */
+    private long videoLength() throws IOException {
+        try (SocketChannel c = SocketChannel.open(addr)) {
+            ByteBuffer req = ByteBuffer.wrap(ascii("GET " + video + " HTTP/1.1\r\nHost: localhost\r\n" +
+                    "Range: bytes=0-0\r\nConnection: close\r\n\r\n"));
+            while (req.hasRemaining()) c.write(req);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            while (c.read(buf) >= 0) {
+                out.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            String response = out.toString(StandardCharsets.ISO_8859_1);
+            for (String line : response.split("\r\n")) {
+                if (line.regionMatches(true, 0, "Content-Range:", 0, 14))
+                    return Long.parseLong(line.substring(line.lastIndexOf('/') + 1).trim());
+                if (line.isEmpty()) break;
+            }
+            throw new IllegalStateException(video + " answered " + response.lines().findFirst().orElse("nothing"));
+        }
+    }
+
+    private void deleteUploads() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(uploads, "loadgen-" + runId + "-*")) {
+            for (Path p : files) Files.deleteIfExists(p);
+        }
+    }
+}
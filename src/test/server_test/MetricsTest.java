@@ -0,0 +1,42 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTest {
+
+    @Test
+    public void testRouteOfPath() {
+        assertEquals(Metrics.Route.INDEX, Metrics.Route.of("/index.html"));
+        assertEquals(Metrics.Route.INDEX, Metrics.Route.of("/"));
+        assertEquals(Metrics.Route.IMAGES, Metrics.Route.of("/images/a.png"));
+        assertEquals(Metrics.Route.FILES, Metrics.Route.of("/files/a.pdf"));
+        assertEquals(Metrics.Route.VIDEO, Metrics.Route.of("/video/a.mp4"));
+        assertEquals(Metrics.Route.UPLOADS, Metrics.Route.of("/uploads/a.bin"));
+        assertEquals(Metrics.Route.PLAYLIST, Metrics.Route.of("/playlist"));
+        assertEquals(Metrics.Route.METRICS, Metrics.Route.of("/metrics"));
+        assertEquals(Metrics.Route.INDEX, Metrics.Route.of("/videos"));
+    }
+
+    @Test
+    public void testRenderHistogramAndSamples() {
+        Metrics m = new Metrics();
+        m.record(Metrics.Route.VIDEO, 2_000_000);   // 2 ms
+        m.record(Metrics.Route.VIDEO, 300_000_000); // 300 ms
+        m.bytesSent.add(1234);
+        m.gauge("io_pool_queued", "Waiting requests", () -> 3);
+        m.gauge("buffer_pool_hit_ratio", "Pool hits", () -> 0.75);
+
+        String text = m.render();
+        assertTrue(text.contains("# TYPE http_request_duration_seconds histogram\n"));
+        assertTrue(text.contains("http_request_duration_seconds_bucket{route=\"/video\",le=\"0.001\"} 0\n"));
+        assertTrue(text.contains("http_request_duration_seconds_bucket{route=\"/video\",le=\"0.0025\"} 1\n"));
+        assertTrue(text.contains("http_request_duration_seconds_bucket{route=\"/video\",le=\"0.5\"} 2\n"));
+        assertTrue(text.contains("http_request_duration_seconds_bucket{route=\"/video\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("http_request_duration_seconds_sum{route=\"/video\"} 0.302\n"));
+        assertTrue(text.contains("http_request_duration_seconds_count{route=\"/video\"} 2\n"));
+        assertTrue(text.contains("http_request_duration_seconds_count{route=\"upload\"} 0\n"));
+        assertTrue(text.contains("# TYPE http_sent_bytes_total counter\nhttp_sent_bytes_total 1234\n"));
+        assertTrue(text.contains("# TYPE io_pool_queued gauge\nio_pool_queued 3\n"));
+        assertTrue(text.contains("buffer_pool_hit_ratio 0.75\n"));
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MultipartStreamParserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @TempDir
+    Path dir;
+    private byte[] fileA;
+    private byte[] fileB;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Random rnd = new Random(42);
+        fileA = new byte[100_000];
+        rnd.nextBytes(fileA);
+        // a body full of near-misses of the delimiter
+        fileB = ("\r\n--" + BOUNDARY.substring(0, 10) + "\r\r\n--\r\n-" + BOUNDARY + "x").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] body() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"title\"\r\n\r\n" +
+                "holiday\r\n" +
+                "--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(fileA);
+        out.write(("\r\n--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"../b c.txt\"\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(fileB);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    private MultipartStreamParser parseInChunks(byte[] body, int chunkSize) throws IOException {
+        MultipartStreamParser parser = new MultipartStreamParser(BOUNDARY, dir);
+        ByteBuffer direct = ByteBuffer.allocateDirect(chunkSize);
+        for (int off = 0; off < body.length; off += chunkSize) {
+            int n = Math.min(chunkSize, body.length - off);
+            direct.clear();
+            direct.put(body, off, n).flip();
+            parser.feed(direct);
+            assertFalse(direct.hasRemaining());
+        }
+        parser.finish();
+        return parser;
+    }
+
+    @Test
+    public void testPartsAreWrittenForEveryChunkSize() throws IOException {
+        byte[] body = body();
+        for (int chunk : new int[]{1, 3, 7, 41, 4096, body.length}) {
+            MultipartStreamParser parser = parseInChunks(body, chunk);
+            assertEquals(List.of(), parser.errors(), "chunk " + chunk);
+            assertEquals(2, parser.saved().size(), "chunk " + chunk);
+            assertArrayEquals(fileA, Files.readAllBytes(dir.resolve(parser.saved().get(0))));
+            assertArrayEquals(fileB, Files.readAllBytes(dir.resolve(parser.saved().get(1))));
+            assertEquals((long) fileA.length, parser.savedSizes().get(0));
+            for (String name : parser.saved()) Files.delete(dir.resolve(name));
+        }
+    }
+
+    @Test
+    public void testFilenamesAreSanitizedAndMadeUnique() throws IOException {
+        MultipartStreamParser first = parseInChunks(body(), 8192);
+        MultipartStreamParser second = parseInChunks(body(), 8192);
+        assertEquals("a.bin", first.saved().get(0));
+        assertEquals("b_c.txt", first.saved().get(1));
+        assertNotEquals(first.saved().get(0), second.saved().get(0));
+        assertTrue(second.saved().get(0).startsWith("a_") && second.saved().get(0).endsWith(".bin"));
+    }
+
+    @Test
+    public void testPartKeepsATemporaryNameUntilItEnds() throws IOException {
+        byte[] body = body();
+        MultipartStreamParser parser = new MultipartStreamParser(BOUNDARY, dir);
+        parser.feed(ByteBuffer.wrap(body, 0, body.length / 2)); // inside a.bin
+        assertTrue(Files.exists(dir.resolve("a.bin" + MultipartStreamParser.TEMP_SUFFIX)));
+        assertFalse(Files.exists(dir.resolve("a.bin")));
+
+        parser.feed(ByteBuffer.wrap(body, body.length / 2, body.length - body.length / 2));
+        parser.finish();
+        assertEquals(List.of("a.bin", "b_c.txt"), parser.saved());
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(List.of("a.bin", "b_c.txt"), files.map(p -> p.getFileName().toString()).sorted().toList());
+        }
+    }
+
+    @Test
+    public void testAbortDeletesPartialFiles() throws IOException {
+        byte[] body = body();
+        MultipartStreamParser parser = new MultipartStreamParser(BOUNDARY, dir);
+        parser.feed(ByteBuffer.wrap(body, 0, body.length / 2));
+        parser.abort();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testMissingBoundaryIsReported() throws IOException {
+        MultipartStreamParser parser = new MultipartStreamParser(BOUNDARY, dir);
+        parser.feed(ByteBuffer.wrap("no multipart here".getBytes(StandardCharsets.US_ASCII)));
+        parser.finish();
+        assertEquals(List.of("Malformed multipart body"), parser.errors());
+        assertTrue(parser.saved().isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboundQueueTest {
+
+    private ServerSocketChannel server;
+    private SocketChannel writer;
+    private SocketChannel reader;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        reader = SocketChannel.open(server.getLocalAddress());
+        writer = server.accept();
+        writer.configureBlocking(false);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        reader.close();
+        writer.close();
+        server.close();
+    }
+
+    private static ByteBuffer text(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String drainAndRead(OutboundQueue q, int expected) throws IOException {
+        assertTrue(q.drain(writer));
+        ByteBuffer buf = ByteBuffer.allocate(expected);
+        while (buf.hasRemaining()) if (reader.read(buf) < 0) break;
+        return new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testResponsesGoOutInRequestOrder() throws IOException {
+        OutboundQueue q = new OutboundQueue();
+        long first = q.reserve(), second = q.reserve(), third = q.reserve();
+        assertEquals(3, q.unfinished());
+
+        q.complete(third, false, text("C"));
+        q.complete(second, false, text("B1"), text("B2"));
+        assertTrue(q.isEmpty());            // both wait for the first
+        assertEquals(0, q.pendingBytes());
+
+        q.complete(first, false, text("A"));
+        assertEquals(0, q.unfinished());
+        assertEquals(6, q.pendingBytes());
+        assertEquals("AB1B2C", drainAndRead(q, 6));
+    }
+
+    @Test
+    public void testNothingIsSentAfterAClosingResponse() throws IOException {
+        OutboundQueue q = new OutboundQueue();
+        long first = q.reserve(), second = q.reserve(), third = q.reserve();
+        q.complete(third, false, text("C"));
+        q.complete(second, true, text("B"));
+        q.complete(first, false, text("A"));
+        assertTrue(q.isClosing());
+        assertEquals("AB", drainAndRead(q, 2));
+
+        q.complete(q.reserve(), false, text("D"));
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    public void testParkedFileRegionsAreReleasedOnClose() throws IOException {
+        OutboundQueue q = new OutboundQueue();
+        long first = q.reserve(), second = q.reserve();
+        int[] released = {0};
+        q.complete(second, false, new OutboundQueue.FileRegion(null, null, 0, 10, () -> released[0]++));
+        q.release();
+        assertEquals(1, released[0]);
+        q.complete(first, false, text("A"));
+    }
+}
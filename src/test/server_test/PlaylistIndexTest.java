@@ -0,0 +1,105 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlaylistIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Files.createFile(dir.resolve("b.mp4"));
+        Files.createFile(dir.resolve("a.png"));
+        Files.createFile(dir.resolve("c.webm" + MultipartStreamParser.TEMP_SUFFIX));
+        Files.createDirectory(dir.resolve("sub"));
+    }
+
+    private static String json(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testInitialScanSkipsTempFilesAndFolders() throws IOException {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        assertEquals("[{\"name\":\"a.png\",\"type\":\"image\"},{\"name\":\"b.mp4\",\"type\":\"video\"}]",
+                json(index.snapshot().json));
+    }
+
+    @Test
+    public void testSnapshotIsReusedUntilSomethingChanges() throws IOException {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        PlaylistIndex.Snapshot first = index.snapshot();
+        assertSame(first, index.snapshot());
+
+        index.added("a.png"); // already listed
+        assertSame(first, index.snapshot());
+
+        index.added("d \"quoted\".ogg");
+        PlaylistIndex.Snapshot second = index.snapshot();
+        assertNotSame(first, second);
+        assertNotEquals(first.etag, second.etag);
+        assertTrue(json(second.json).contains("{\"name\":\"d \\\"quoted\\\".ogg\",\"type\":\"video\"}"));
+
+        index.removed("a.png");
+        assertFalse(json(index.snapshot().json).contains("a.png"));
+        index.added("x.mp4" + MultipartStreamParser.TEMP_SUFFIX);
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testUploadInProgressIsNotListed() throws IOException {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        RawBodyWriter raw = new RawBodyWriter(dir, "e.mp4");
+        index.rescan();
+        assertEquals(2, index.size());
+        raw.finish();
+        index.added(raw.name());
+        index.rescan();
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testFinishedUploadNamedTmpIsListed() throws IOException {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        RawBodyWriter raw = new RawBodyWriter(dir, "notes.tmp");
+        raw.finish();
+        assertEquals("notes.tmp", raw.name());
+        index.added(raw.name());
+        assertTrue(json(index.snapshot().json).contains("notes.tmp"));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testPagination() throws IOException {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        index.added("c.jpg");
+        assertEquals("{\"version\":2,\"items\":[{\"name\":\"a.png\",\"type\":\"image\"},"
+                + "{\"name\":\"b.mp4\",\"type\":\"video\"}],\"next\":\"b.mp4\"}", json(index.page(null, 2)));
+        assertEquals("{\"version\":2,\"items\":[{\"name\":\"c.jpg\",\"type\":\"image\"}],\"next\":null}",
+                json(index.page("b.mp4", 2)));
+        // a cursor that was deleted meanwhile still positions the page
+        assertEquals("{\"version\":2,\"items\":[{\"name\":\"c.jpg\",\"type\":\"image\"}],\"next\":null}",
+                json(index.page("bb", 2)));
+        assertEquals("{\"version\":2,\"items\":[],\"next\":null}", json(index.page("z", 2)));
+    }
+
+    @Test
+    public void testWatcherPicksUpNewAndDeletedFiles() throws Exception {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        index.watch();
+        Files.createFile(dir.resolve("new.mp4"));
+        Files.delete(dir.resolve("a.png"));
+        for (int i = 0; i < 1000 && json(index.snapshot().json).contains("a.png"); i++) Thread.sleep(10);
+        for (int i = 0; i < 1000 && !json(index.snapshot().json).contains("new.mp4"); i++) Thread.sleep(10);
+        assertEquals("[{\"name\":\"b.mp4\",\"type\":\"video\"},{\"name\":\"new.mp4\",\"type\":\"video\"}]",
+                json(index.snapshot().json));
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compares request latency with the fixed ioPool and with the virtual-thread
+ * executor: starts SimpleHttpServer in a child JVM per mode, opens N
+ * connections, fires one Range request on each at the same moment and
+ * reports p50/p99/max time to the complete response.
+ *
+ * Run with: java -cp <classes> RequestExecutorBenchmark [requests] [path] [rangeBytes] [maxOffset]
+ * (default 1000 - 65536 2000000). Without a path, or with "-", the server is
+ * given a temporary route to a sparse file of maxOffset + rangeBytes bytes.
+ * Needs the server's port 8080 free. On a JDK without virtual threads the VIRTUAL run uses platform threads.
+ */
+public class RequestExecutorBenchmark {
+
+    private static final InetSocketAddress ADDR = new InetSocketAddress("127.0.0.1", 8080);
+
+    private static final class Exchange {
+        final long started;
+        final ByteBuffer head = ByteBuffer.allocate(16);
+        long bytes;
+        long finished;
+
+        Exchange(long started) {
+            this.started = started;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String path = args.length > 1 && !args[1].equals("-") ? args[1] : null;
+        int rangeBytes = args.length > 2 ? Integer.parseInt(args[2]) : 65536;
+        long maxOffset = args.length > 3 ? Long.parseLong(args[3]) : 2_000_000;
+
+        Path fixture = null;
+        Path routes = null;
+        if (path == null) {
+            fixture = Files.createTempDirectory("executor-bench");
+            try (RandomAccessFile f = new RandomAccessFile(fixture.resolve("bench.bin").toFile(), "rw")) {
+                f.setLength(maxOffset + rangeBytes);
+            }
+            routes = fixture.resolve("routes.properties");
+            Files.writeString(routes, "/bench/=" + fixture.toAbsolutePath() + "\n");
+            path = "/bench/bench.bin";
+        }
+        try {
+            for (String mode : new String[]{"fixed", "virtual"}) {
+                Process server = startServer(mode, routes);
+                try {
+                    run(Math.min(n, 100), path, rangeBytes, maxOffset); // warm-up
+                    long[] lat = run(n, path, rangeBytes, maxOffset);
+                    Arrays.sort(lat);
+                    System.out.printf("%-8s %5d requests  p50 %7.2f ms  p99 %7.2f ms  max %7.2f ms%n",
+                            mode, lat.length, pct(lat, 0.50), pct(lat, 0.99), lat[lat.length - 1] / 1e6);
+                } finally {
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+        } finally {
+            if (fixture != null) {
+                Files.deleteIfExists(fixture.resolve("bench.bin"));
+                Files.deleteIfExists(routes);
+                Files.deleteIfExists(fixture);
+            }
+        }
+    }
+
+    private static double pct(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+    }
+
+    /** @param routes a -Droutes.file for the server, or null for its default routes */
+    private static Process startServer(String mode, Path routes) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                "-Dio.executor=" + mode));
+        if (routes != null) command.add("-Droutes.file=" + routes);
+        command.add("SimpleHttpServer");
+        Process p = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                SocketChannel.open(ADDR).close();
+                return p;
+            } catch (IOException notYet) {
+                Thread.sleep(100);
+            }
+        }
+        p.destroy();
+        throw new IllegalStateException("server did not start");
+    }
+
+    /** Opens n connections, then sends all requests at once; returns per-request latency in ns */
+    private static long[] run(int n, String path, int rangeBytes, long maxOffset) throws IOException {
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>(n);
+        try {
+            for (int i = 0; i < n; i++) {
+                SocketChannel c = SocketChannel.open(ADDR);
+                c.configureBlocking(false);
+                channels.add(c);
+            }
+            List<Exchange> exchanges = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                long from = (long) i * 4096 % Math.max(1, maxOffset - rangeBytes);
+                ByteBuffer req = ByteBuffer.wrap(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" +
+                        "Range: bytes=" + from + "-" + (from + rangeBytes - 1) + "\r\n" +
+                        "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                Exchange ex = new Exchange(System.nanoTime());
+                SocketChannel c = channels.get(i);
+                while (req.hasRemaining()) c.write(req);
+                c.register(selector, SelectionKey.OP_READ, ex);
+                exchanges.add(ex);
+            }
+
+            ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+            int open = n;
+            while (open > 0) {
+                if (selector.select(10_000) == 0) throw new IllegalStateException(open + " responses timed out");
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Exchange ex = (Exchange) key.attachment();
+                    buf.clear();
+                    int r = ((SocketChannel) key.channel()).read(buf);
+                    if (r > 0) {
+                        buf.flip();
+                        while (ex.head.hasRemaining() && buf.hasRemaining()) ex.head.put(buf.get());
+                        ex.bytes += r;
+                    } else if (r < 0) {
+                        ex.finished = System.nanoTime();
+                        String status = new String(ex.head.array(), 0, ex.head.position(), StandardCharsets.US_ASCII);
+                        if (!status.startsWith("HTTP/1.1 206")) throw new IllegalStateException("unexpected " + status);
+                        key.cancel();
+                        open--;
+                    }
+                }
+            }
+            long[] lat = new long[n];
+            for (int i = 0; i < n; i++) lat[i] = exchanges.get(i).finished - exchanges.get(i).started;
+            return lat;
+        } finally {
+            for (SocketChannel c : channels) c.close();
+            selector.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestExecutorTest {
+
+    private static void runAll(RequestExecutor executor, int tasks, int limit) throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                int now = running.incrementAndGet();
+                peak.accumulateAndGet(now, Math::max);
+                try { Thread.sleep(2); } catch (InterruptedException ignored) {}
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertTrue(peak.get() <= limit, "peak " + peak.get() + " over limit " + limit);
+        // permits are handed back once the tasks return
+        for (int i = 0; i < 100 && executor.active() > 0; i++) Thread.sleep(10);
+        assertEquals(0, executor.active());
+        assertEquals(0, executor.queued());
+    }
+
+    @Test
+    public void testFixedModeRunsEverythingWithinLimit() throws Exception {
+        RequestExecutor executor = new RequestExecutor(RequestExecutor.Mode.FIXED, 4);
+        assertFalse(executor.usesVirtualThreads());
+        runAll(executor, 200, 4);
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void testVirtualModeIsLimitedBySemaphore() throws Exception {
+        // on JDKs without virtual threads this exercises the platform-thread fallback
+        RequestExecutor executor = new RequestExecutor(RequestExecutor.Mode.VIRTUAL, 10);
+        assertEquals(RequestExecutor.Mode.VIRTUAL, executor.mode());
+        runAll(executor, 500, 10);
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void testExecuteNeverBlocksTheCaller() throws Exception {
+        RequestExecutor executor = new RequestExecutor(RequestExecutor.Mode.VIRTUAL, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try { release.await(); } catch (InterruptedException ignored) {}
+        });
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 1000; i++) executor.execute(() -> {});
+        assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, executor.active());
+        assertEquals(1000, executor.queued());
+        release.countDown();
+        for (int i = 0; i < 200 && executor.queued() > 0; i++) Thread.sleep(10);
+        assertEquals(0, executor.queued());
+        executor.shutdown(1000);
+    }
+}
@@ -0,0 +1,69 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseHeadersTest {
+
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+    private static String text(ByteBuffer b) {
+        return StandardCharsets.US_ASCII.decode(b).toString();
+    }
+
+    @Test
+    public void testDatesMatchJavaTime() {
+        long[] fixed = {0, 784111777000L, 951782400000L /* 2000-02-29 */, 4102444799000L, -86_400_000L};
+        Random rnd = new Random(42);
+        for (int i = 0; i < 10_000 + fixed.length; i++) {
+            long millis = i < fixed.length ? fixed[i] : (long) (rnd.nextDouble() * 8_000_000_000_000L);
+            String line = text(ResponseHeaders.lines().dateHeader(ResponseHeaders.LAST_MODIFIED, millis).toBuffer());
+            assertEquals("Last-Modified: " + IMF_FIXDATE.format(Instant.ofEpochMilli(millis)) + "\r\n", line);
+        }
+    }
+
+    @Test
+    public void testHeadIsAssembledInOrder() {
+        String head = text(ResponseHeaders.status(ResponseHeaders.PARTIAL_CONTENT)
+                .etag("\"abc\"")
+                .put(ResponseHeaders.ACCEPT_RANGES)
+                .header(ResponseHeaders.CONTENT_TYPE, "video/mp4")
+                .header(ResponseHeaders.CONTENT_LENGTH, 100)
+                .contentRange(0, 99, 1_234_567_890_123L)
+                .connection(false)
+                .end());
+        assertTrue(head.startsWith("HTTP/1.1 206 Partial Content\r\nDate: "));
+        assertTrue(head.matches("(?s).*\r\nDate: \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT\r\n.*"));
+        assertTrue(head.endsWith("ETag: \"abc\"\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Content-Type: video/mp4\r\n" +
+                "Content-Length: 100\r\n" +
+                "Content-Range: bytes 0-99/1234567890123\r\n" +
+                "Connection: close\r\n\r\n"));
+    }
+
+    @Test
+    public void testMissingEtagAndUnsatisfiedRange() {
+        String head = text(ResponseHeaders.lines()
+                .etag(null)
+                .unsatisfiedRange(42)
+                .header(ResponseHeaders.CONTENT_LENGTH, 0)
+                .end());
+        assertEquals("Content-Range: bytes */42\r\nContent-Length: 0\r\n\r\n", head);
+    }
+
+    @Test
+    public void testGrowsPastInitialCapacity() {
+        String longValue = "x".repeat(1000);
+        ResponseHeaders h = ResponseHeaders.lines().header(ResponseHeaders.CONTENT_TYPE, longValue);
+        assertEquals("Content-Type: " + longValue + "\r\n", new String(h.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RouteTableTest {
+
+    private static final Path BASE = Paths.get("/srv/site");
+
+    @Test
+    public void testDefaultRoutesMatchLongestPrefix() {
+        RouteTable t = new RouteTable(BASE, RouteTable.DEFAULT_ROUTES, 16);
+        assertEquals(BASE.resolve("Public/index.html"), t.resolve("/index.html"));
+        assertEquals(BASE.resolve("images/a/b.png"), t.resolve("/images/a/b.png"));
+        assertEquals(BASE.resolve("documents/cv.pdf"), t.resolve("/files/cv.pdf"));
+        assertEquals(BASE.resolve("video/test.mp4"), t.resolve("/video/test.mp4"));
+        assertEquals(BASE.resolve("uploads/x.bin"), t.resolve("/uploads/x.bin"));
+        // no trailing slash, so it is a file in Public
+        assertEquals(BASE.resolve("Public/images"), t.resolve("/images"));
+    }
+
+    @Test
+    public void testDirectoryOfRouteIsNotAFile() {
+        RouteTable t = new RouteTable(BASE, RouteTable.DEFAULT_ROUTES, 16);
+        assertNull(t.resolve("/"));
+        assertNull(t.resolve("/images/"));
+        assertNull(t.resolve("/images//"));
+    }
+
+    @Test
+    public void testUnmatchedPathHasNoFile() {
+        Map<String, String> routes = new LinkedHashMap<>();
+        routes.put("/static/", "assets");
+        RouteTable t = new RouteTable(BASE, routes, 16);
+        assertNull(t.resolve("/index.html"));
+        assertEquals(BASE.resolve("assets/app.js"), t.resolve("/static/app.js"));
+    }
+
+    @Test
+    public void testTraversalIsRejected() {
+        assertFalse(RouteTable.isSafe("/../etc/passwd"));
+        assertFalse(RouteTable.isSafe("/images/../../x"));
+        assertFalse(RouteTable.isSafe("/images/.."));
+        assertFalse(RouteTable.isSafe("/images/..\\x"));
+        assertFalse(RouteTable.isSafe("/a\u0000b"));
+        assertTrue(RouteTable.isSafe("/images/..png"));
+        assertTrue(RouteTable.isSafe("/images/a..b/c"));
+        assertTrue(RouteTable.isSafe("/./index.html"));
+        assertTrue(RouteTable.isSafe("/images/%2e%2e/x")); // not decoded, so a literal name
+    }
+
+    @Test
+    public void testResolvedPathsAreCachedAndBounded() {
+        RouteTable t = new RouteTable(BASE, RouteTable.DEFAULT_ROUTES, 2);
+        Path first = t.resolve("/a.html");
+        assertSame(first, t.resolve("/a.html"));
+        Path second = t.resolve("/b.html");
+        t.resolve("/c.html");
+        assertEquals(2, t.cached());
+        // eviction picks no particular entry, but one of the first two is gone
+        assertTrue(first != t.resolve("/a.html") || second != t.resolve("/b.html"));
+    }
+
+    @Test
+    public void testLoadFromPropertiesFile() throws IOException {
+        Path file = Files.createTempFile("routes", ".properties");
+        Files.writeString(file, "# prefix = folder\n/ = Public\n/media/ = video\n/abs/ = /var/data\n");
+        RouteTable t = RouteTable.load(BASE, file, 16);
+        assertEquals(BASE.resolve("video/a.mp4"), t.resolve("/media/a.mp4"));
+        assertEquals(Paths.get("/var/data/x"), t.resolve("/abs/x"));
+        assertEquals(3, t.roots().size());
+        assertTrue(t.roots().containsAll(List.of(BASE.resolve("Public"), BASE.resolve("video"), Paths.get("/var/data"))));
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,98 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Connection deadlines of a running server. Starts SimpleHttpServer in a child
+ * JVM with short timeouts, since they are read once at class load; needs the
+ * server's port 8080 free.
+ */
+public class SimpleHttpServerTimeoutTest {
+
+    private static final long HEADER_TIMEOUT_MILLIS = 300;
+
+    private static Process server;
+
+    @BeforeAll
+    static void start() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-Dtimeout.headerMillis=" + HEADER_TIMEOUT_MILLIS, "-Dtimeout.idleMillis=30000", "SimpleHttpServer")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", 8080).close();
+                return;
+            } catch (IOException notYet) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not start");
+    }
+
+    @AfterAll
+    static void stop() throws InterruptedException {
+        server.destroy();
+        server.waitFor();
+    }
+
+    private static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) n++;
+        return n;
+    }
+
+    @Test
+    public void testPipeliningPastTheHeaderTimeoutIsNotTimedOut() throws Exception {
+        byte[] request = "GET /metrics HTTP/1.1\r\nHost: test\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        int half = request.length / 2;
+        // the end of one request and the start of the next, in one segment
+        byte[] straddle = new byte[request.length];
+        System.arraycopy(request, half, straddle, 0, request.length - half);
+        System.arraycopy(request, 0, straddle, request.length - half, half);
+        int requests = 0;
+        try (Socket s = new Socket("127.0.0.1", 8080)) {
+            s.setTcpNoDelay(true);
+            OutputStream out = s.getOutputStream();
+            // every write ends inside a request, so the buffer never runs empty between them
+            out.write(request, 0, half);
+            long until = System.currentTimeMillis() + 4 * HEADER_TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < until) {
+                Thread.sleep(HEADER_TIMEOUT_MILLIS / 6);
+                out.write(straddle);
+                requests++;
+            }
+            out.write(request, half, request.length - half);
+            requests++;
+
+            s.setSoTimeout(2000);
+            InputStream in = s.getInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            String text = "";
+            try {
+                for (int n; count(text, "HTTP/1.1 ") < requests && (n = in.read(buf)) != -1; ) {
+                    received.write(buf, 0, n);
+                    text = received.toString(StandardCharsets.ISO_8859_1);
+                }
+            } catch (SocketTimeoutException ignored) {
+                // counted below
+            }
+            assertEquals(0, count(text, "HTTP/1.1 408"));
+            assertEquals(requests, count(text, "HTTP/1.1 200"));
+        }
+    }
+}
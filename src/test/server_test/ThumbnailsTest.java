@@ -0,0 +1,127 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ThumbnailsTest {
+
+    @TempDir
+    Path tmp;
+    private Path uploads;
+    private Path dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        uploads = Files.createDirectory(tmp.resolve("uploads"));
+        dir = tmp.resolve("thumbs"); // made by Thumbnails
+    }
+
+    private static Path image(Path dir, String name, int w, int h, int type, String format) throws IOException {
+        BufferedImage img = new BufferedImage(w, h, type);
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++) img.setRGB(x, y, (x * 255 / w) << 16 | (y * 255 / h) << 8 | 0x80000000);
+        Path p = dir.resolve(name);
+        assertTrue(ImageIO.write(img, format, p.toFile()));
+        return p;
+    }
+
+    private static Path thumbnail(Thumbnails t, Path src) throws IOException {
+        long size = Files.size(src);
+        long lastModified = Files.getLastModifiedTime(src).toMillis();
+        return await(() -> t.get(src, size, lastModified));
+    }
+
+    private static <T> T await(Supplier<T> s) {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            T v = s.get();
+            if (v != null) return v;
+            try { Thread.sleep(10); } catch (InterruptedException e) { throw new AssertionError(e); }
+        }
+        throw new AssertionError("timed out");
+    }
+
+    private static long count(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.count();
+        }
+    }
+
+    @Test
+    public void testLargeImageIsScaledToFit() throws IOException {
+        Thumbnails t = new Thumbnails(dir, 100, 1, 4);
+        Path src = image(uploads, "photo.JPG", 2000, 1000, BufferedImage.TYPE_INT_RGB, "jpeg");
+        assertNull(t.get(src, Files.size(src), Files.getLastModifiedTime(src).toMillis())); // queued
+
+        Path thumb = thumbnail(t, src);
+        assertTrue(thumb.getFileName().toString().endsWith(".jpg"));
+        BufferedImage img = ImageIO.read(thumb.toFile());
+        assertEquals(100, img.getWidth());
+        assertEquals(50, img.getHeight());
+        assertTrue(Files.size(thumb) < Files.size(src));
+        assertEquals(1, t.generated());
+    }
+
+    @Test
+    public void testSmallImageKeepsItsSizeAndAlpha() throws IOException {
+        Thumbnails t = new Thumbnails(dir, 100, 1, 4);
+        Path src = image(uploads, "icon.png", 40, 30, BufferedImage.TYPE_INT_ARGB, "png");
+        t.submit(src);
+
+        BufferedImage img = ImageIO.read(thumbnail(t, src).toFile());
+        assertEquals(40, img.getWidth());
+        assertEquals(30, img.getHeight());
+        assertTrue(img.getColorModel().hasAlpha());
+    }
+
+    @Test
+    public void testChangedImageReplacesTheOldThumbnail() throws IOException {
+        Thumbnails t = new Thumbnails(dir, 100, 1, 4);
+        Path src = image(uploads, "a.png", 400, 400, BufferedImage.TYPE_INT_RGB, "png");
+        Path first = thumbnail(t, src);
+
+        image(uploads, "a.png", 400, 200, BufferedImage.TYPE_INT_RGB, "png");
+        Files.setLastModifiedTime(src, FileTime.fromMillis(Files.getLastModifiedTime(src).toMillis() + 1000));
+        Path second = thumbnail(t, src);
+        assertNotEquals(first, second);
+        assertEquals(50, ImageIO.read(second.toFile()).getHeight());
+        await(() -> Files.exists(first) ? null : true);
+        assertEquals(1, count(dir));
+    }
+
+    @Test
+    public void testUndecodableImageIsNotRetried() throws IOException {
+        Thumbnails t = new Thumbnails(dir, 100, 1, 4);
+        Path src = Files.writeString(uploads.resolve("broken.jpg"), "not a jpeg");
+        t.submit(src);
+        await(() -> t.failures() == 1 ? true : null);
+
+        assertEquals(src, t.get(src, Files.size(src), Files.getLastModifiedTime(src).toMillis()));
+        assertEquals(1, t.failures());
+        assertEquals(0, t.generated());
+        assertEquals(0, count(dir)); // no temp file left behind
+    }
+
+    @Test
+    public void testOnlyImageNamesAreSupported() throws IOException {
+        assertTrue(Thumbnails.supported("a.jpeg"));
+        assertTrue(Thumbnails.supported("B.GIF"));
+        assertFalse(Thumbnails.supported("clip.mp4"));
+        assertFalse(Thumbnails.supported("png"));
+
+        Thumbnails t = new Thumbnails(dir, 100, 1, 4);
+        t.submit(Files.writeString(uploads.resolve("notes.txt"), "hello"));
+        assertEquals(0, t.queued());
+        assertEquals(0, count(dir));
+    }
+}
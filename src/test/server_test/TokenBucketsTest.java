@@ -0,0 +1,55 @@
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketsTest {
+
+    private static InetAddress ip(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+    }
+
+    @Test
+    public void testBurstThenRefill() throws UnknownHostException {
+        TokenBuckets q = new TokenBuckets(2, 3, 100); // 2 per second, burst of 3
+        InetAddress a = ip(1);
+        for (int i = 0; i < 3; i++) assertEquals(0, q.tryAcquire(a, 1000));
+        assertEquals(500, q.tryAcquire(a, 1000));
+        assertEquals(250, q.tryAcquire(a, 1250));
+        assertEquals(0, q.tryAcquire(a, 1500));
+        assertEquals(2, q.rejected());
+    }
+
+    @Test
+    public void testRefillIsCappedAtBurst() throws UnknownHostException {
+        TokenBuckets q = new TokenBuckets(10, 2, 100);
+        InetAddress a = ip(1);
+        q.tryAcquire(a, 0);
+        q.tryAcquire(a, 0);
+        // an hour idle still only earns the burst
+        assertEquals(0, q.tryAcquire(a, 3_600_000));
+        assertEquals(0, q.tryAcquire(a, 3_600_000));
+        assertTrue(q.tryAcquire(a, 3_600_000) > 0);
+    }
+
+    @Test
+    public void testClientsAreIndependent() throws UnknownHostException {
+        TokenBuckets q = new TokenBuckets(1, 1, 100);
+        assertEquals(0, q.tryAcquire(ip(1), 0));
+        assertTrue(q.tryAcquire(ip(1), 0) > 0);
+        assertEquals(0, q.tryAcquire(ip(2), 0));
+    }
+
+    @Test
+    public void testFullBucketsAreSweptAtCapacity() throws UnknownHostException {
+        TokenBuckets q = new TokenBuckets(1, 1, 2);
+        q.tryAcquire(ip(1), 0);
+        q.tryAcquire(ip(2), 5000);
+        // ip(1) has refilled by now and goes; ip(2) is still empty and stays
+        q.tryAcquire(ip(3), 5000);
+        assertEquals(2, q.clients());
+        assertTrue(q.tryAcquire(ip(2), 5000) > 0);
+    }
+}
@@ -0,0 +1,79 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UploadAdmissionTest {
+
+    @Test
+    public void testConcurrencyLimit() {
+        UploadAdmission a = new UploadAdmission(2, Long.MAX_VALUE, 0, () -> Long.MAX_VALUE);
+        UploadAdmission.Permit p1 = a.tryAdmit(10);
+        UploadAdmission.Permit p2 = a.tryAdmit(10);
+        assertNotNull(p1);
+        assertNotNull(p2);
+        assertNull(a.tryAdmit(10));
+        assertEquals(1, a.rejectedBusy());
+        p1.release();
+        assertNotNull(a.tryAdmit(10));
+        assertEquals(2, a.active());
+    }
+
+    @Test
+    public void testInFlightBytesLimit() {
+        UploadAdmission a = new UploadAdmission(10, 100, 0, () -> Long.MAX_VALUE);
+        UploadAdmission.Permit p = a.tryAdmit(70);
+        assertNull(a.tryAdmit(31));
+        assertNotNull(a.tryAdmit(30));
+        assertEquals(100, a.reserved());
+        p.release();
+        assertEquals(30, a.reserved());
+    }
+
+    @Test
+    public void testReleaseIsIdempotent() {
+        UploadAdmission a = new UploadAdmission(1, 100, 0, () -> Long.MAX_VALUE);
+        UploadAdmission.Permit p = a.tryAdmit(50);
+        p.release();
+        p.release();
+        assertEquals(0, a.active());
+        assertEquals(0, a.reserved());
+    }
+
+    @Test
+    public void testDiskCheckCountsReservedBytes() {
+        AtomicLong free = new AtomicLong(1000);
+        UploadAdmission a = new UploadAdmission(10, Long.MAX_VALUE, 200, free::get);
+        assertTrue(a.diskHasRoomFor(800));
+        assertFalse(a.diskHasRoomFor(801));
+        a.tryAdmit(500);
+        // the running upload has not written anything yet, but its bytes are spoken for
+        assertFalse(a.diskHasRoomFor(400));
+        assertTrue(a.diskHasRoomFor(300));
+        free.set(100);
+        assertFalse(a.diskHasRoomFor(0));
+        assertEquals(3, a.rejectedDiskFull());
+    }
+
+    @Test
+    public void testWrittenBytesAreNotCountedTwice() {
+        AtomicLong free = new AtomicLong(1000);
+        UploadAdmission a = new UploadAdmission(10, Long.MAX_VALUE, 200, free::get);
+        UploadAdmission.Permit p = a.tryAdmit(500);
+        assertFalse(a.diskHasRoomFor(301));
+
+        // 400 of its bytes are on disk now, so only 100 are still spoken for
+        free.set(600);
+        p.wrote(400);
+        assertEquals(100, a.unwritten());
+        assertTrue(a.diskHasRoomFor(300));
+        assertFalse(a.diskHasRoomFor(301));
+
+        p.wrote(200); // never returns more than was reserved
+        assertEquals(0, a.unwritten());
+        p.release();
+        assertEquals(0, a.unwritten());
+        assertEquals(0, a.reserved());
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Upload throughput of one large body: the multipart path, and a raw
+ * application/octet-stream body in BUFFER mode (pooled direct read buffer)
+ * and TRANSFER mode (FileChannel.transferFrom from the socket). Starts
+ * SimpleHttpServer in a child JVM per mode, sends the body over one
+ * connection as fast as the socket takes it and reports MB/s up to the
+ * complete response.
+ *
+ * Run with: java -cp <classes> UploadBenchmark [megabytes] [uploadsDir]
+ * (default 1024 and the server's uploads folder, where each uploaded file is
+ * deleted again). Needs the server's port 8080 free.
+ */
+public class UploadBenchmark {
+
+    private static final InetSocketAddress ADDR = new InetSocketAddress("127.0.0.1", 8080);
+    private static final String BOUNDARY = "bench" + Long.toHexString(new Random(7).nextLong());
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+        Path uploads = Paths.get(args.length > 1 ? args[1] : "/home/sudheshna/IdeaProjects/JavaAssignments/src/uploads");
+
+        ByteBuffer block = ByteBuffer.allocateDirect(1024 * 1024);
+        byte[] random = new byte[block.capacity()];
+        new Random(42).nextBytes(random);
+        block.put(random).flip();
+
+        String[][] runs = {{"multipart", "buffer"}, {"raw", "buffer"}, {"raw", "transfer"}};
+        for (String[] run : runs) {
+            Process server = startServer(run[1], size);
+            try {
+                upload(run[0], 16L * 1024 * 1024, block); // warm-up
+                Files.deleteIfExists(uploads.resolve("bench.bin"));
+                long nanos = upload(run[0], size, block);
+                System.out.printf("%-9s %-8s %6d MB  %7.0f ms  %7.1f MB/s%n", run[0], run[1],
+                        size >> 20, nanos / 1e6, (size >> 20) / (nanos / 1e9));
+            } finally {
+                server.destroy();
+                server.waitFor();
+                Files.deleteIfExists(uploads.resolve("bench.bin"));
+            }
+        }
+    }
+
+    private static Process startServer(String rawMode, long size) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-Dupload.rawMode=" + rawMode,
+                "-Dupload.maxBytes=" + (size + 1024 * 1024),
+                "-Dupload.maxInFlightBytes=" + (size + 1024 * 1024),
+                "SimpleHttpServer")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                SocketChannel.open(ADDR).close();
+                return p;
+            } catch (IOException notYet) {
+                Thread.sleep(100);
+            }
+        }
+        p.destroy();
+        throw new IllegalStateException("server did not start");
+    }
+
+    /** Sends one upload of {@code size} file bytes and waits for its response; returns elapsed ns */
+    private static long upload(String kind, long size, ByteBuffer block) throws IOException {
+        boolean multipart = kind.equals("multipart");
+        byte[] preamble = ("--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] epilogue = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = multipart ? preamble.length + size + epilogue.length : size;
+        String head = "POST /upload HTTP/1.1\r\nHost: localhost\r\n" +
+                (multipart ? "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                        : "Content-Type: application/octet-stream\r\nUpload-Name: bench.bin\r\n") +
+                "Content-Length: " + contentLength + "\r\nConnection: close\r\n\r\n";
+
+        long start = System.nanoTime();
+        try (SocketChannel c = SocketChannel.open(ADDR)) {
+            writeFully(c, ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)));
+            if (multipart) writeFully(c, ByteBuffer.wrap(preamble));
+            for (long left = size; left > 0; ) {
+                ByteBuffer b = block.duplicate();
+                if (left < b.remaining()) b.limit((int) left);
+                left -= b.remaining();
+                writeFully(c, b);
+            }
+            if (multipart) writeFully(c, ByteBuffer.wrap(epilogue));
+
+            ByteBuffer response = ByteBuffer.allocate(4096);
+            while (c.read(response) >= 0 && response.hasRemaining()) { }
+            String status = new String(response.array(), 0, Math.min(12, response.position()), StandardCharsets.US_ASCII);
+            if (!status.equals("HTTP/1.1 200")) throw new IllegalStateException(kind + ": unexpected " + status);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void writeFully(SocketChannel c, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) c.write(b);
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UploadSessionsTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static ByteBuffer ascii(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testChunksResumeAfterRestart() throws IOException {
+        Path uploads = Files.createDirectory(dir.resolve("uploads")); // sessions only look at *.part files
+        UploadSessions sessions = new UploadSessions(dir, DAY);
+        UploadSessions.Session s = sessions.create("notes.txt", 11);
+        assertTrue(s.claim());
+        s.write(ascii("hello "));
+        s.release();
+        sessions.sync();
+
+        UploadSessions reopened = new UploadSessions(dir, DAY);
+        UploadSessions.Session r = reopened.get(s.id);
+        assertNotNull(r);
+        assertEquals(6, r.offset());
+        assertEquals("notes.txt", r.name);
+        assertTrue(r.claim());
+        r.write(ascii("world"));
+        r.release();
+        assertTrue(r.isComplete());
+
+        assertEquals("notes.txt", reopened.complete(r, uploads));
+        assertEquals("hello world", Files.readString(uploads.resolve("notes.txt")));
+        assertNull(reopened.get(s.id));
+        reopened.sync();
+        assertEquals(0, new UploadSessions(dir, DAY).size());
+    }
+
+    @Test
+    public void testUnjournaledBytesAreCutOff() throws IOException {
+        UploadSessions sessions = new UploadSessions(dir, DAY);
+        UploadSessions.Session s = sessions.create("a.bin", 100);
+        assertTrue(s.claim());
+        s.write(ascii("0123456789"));
+        s.release();
+        sessions.sync();
+        // bytes that reached the file after the last journaled offset, as after a crash
+        Files.write(dir.resolve(s.id + ".part"), "junk".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        Files.write(dir.resolve("stray.part"), new byte[3]);
+
+        UploadSessions reopened = new UploadSessions(dir, DAY);
+        assertEquals(10, reopened.get(s.id).offset());
+        assertEquals(10, Files.size(dir.resolve(s.id + ".part")));
+        assertFalse(Files.exists(dir.resolve("stray.part")));
+    }
+
+    @Test
+    public void testOneChunkAtATime() throws IOException {
+        UploadSessions sessions = new UploadSessions(dir, DAY);
+        UploadSessions.Session s = sessions.create("../../etc/passwd", 5);
+        assertEquals("passwd", s.name);
+        assertTrue(s.claim());
+        assertFalse(s.claim());
+        assertTrue(s.isBusy());
+        s.release();
+        s.release();
+        assertFalse(s.isBusy());
+        assertTrue(s.claim());
+        s.release();
+        sessions.delete(s);
+        sessions.sync();
+        assertNull(sessions.get(s.id));
+        assertFalse(Files.exists(dir.resolve(s.id + ".part")));
+    }
+
+    @Test
+    public void testExpiredSessionsAreDropped() throws IOException {
+        UploadSessions sessions = new UploadSessions(dir, DAY);
+        sessions.create("old.bin", 5);
+        sessions.sync();
+        assertEquals(0, new UploadSessions(dir, -1).size());
+    }
+}